@@ -0,0 +1,76 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Index of the content-defined blocks of the local files: block hash -> where to read it, file hash -> block list
+public class BlockIndex {
+    // Location of a block in a local file
+    private static class Location {
+        final File file;
+        final long offset;
+        final int length;
+
+        Location(File file, long offset, int length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Map<String, Location> blocks = new ConcurrentHashMap<>();
+    private final Map<String, List<ContentChunker.Block>> manifests = new ConcurrentHashMap<>();
+    private final Map<String, Long> indexedFiles = new ConcurrentHashMap<>(); // path -> last modified time when indexed
+
+    // Split the file into blocks and index them, unless it was indexed and has not changed since
+    public List<ContentChunker.Block> addFile(File file, String fileHash) throws IOException {
+        List<ContentChunker.Block> manifest = manifests.get(fileHash);
+        Long indexedAt = indexedFiles.get(file.getAbsolutePath());
+        if (manifest != null && indexedAt != null && indexedAt == file.lastModified()) {
+            return manifest;
+        }
+        long lastModified = file.lastModified();
+        manifest = ContentChunker.split(file);
+        addManifest(file, fileHash, manifest);
+        indexedFiles.put(file.getAbsolutePath(), lastModified);
+        return manifest;
+    }
+
+    // Index the blocks of a file whose block list is already known (e.g. a file that was just downloaded)
+    public void addManifest(File file, String fileHash, List<ContentChunker.Block> manifest) {
+        for (ContentChunker.Block block : manifest) {
+            blocks.put(block.hash, new Location(file, block.offset, block.length));
+        }
+        manifests.put(fileHash, manifest);
+    }
+
+    // Block list of a local file, null if it was not indexed
+    public List<ContentChunker.Block> getManifest(String fileHash) {
+        return manifests.get(fileHash);
+    }
+
+    // Read a block from whichever local file contains it, returns null if no file has it
+    // The data is verified, so a block of a file modified after indexing is never returned
+    public byte[] readBlock(String blockHash) {
+        Location location = blocks.get(blockHash);
+        if (location == null) {
+            return null;
+        }
+        byte[] data = new byte[location.length];
+        try (RandomAccessFile raf = new RandomAccessFile(location.file, "r")) {
+            raf.seek(location.offset);
+            raf.readFully(data);
+        } catch (IOException e) {
+            blocks.remove(blockHash, location);
+            return null;
+        }
+        if (!ContentChunker.hashBlock(ByteBuffer.wrap(data)).equals(blockHash)) {
+            blocks.remove(blockHash, location); // Stale entry
+            return null;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,69 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Pool of direct buffers, one list per power-of-two size, so that chunk-sized buffers are not allocated for every chunk
+public class BufferPool {
+    // Shared pool of chunk buffers used by the downloads, from the smallest to the largest chunk size
+    static final BufferPool CHUNKS = new BufferPool(FileMetadata.MIN_CHUNK_SIZE, FileMetadata.MAX_CHUNK_SIZE, 16 * 1024 * 1024);
+
+    // Buffers of one size
+    private static class Size {
+        final int maxPooled;
+        final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pooled = new AtomicInteger();
+
+        Size(int maxPooled) {
+            this.maxPooled = maxPooled;
+        }
+    }
+
+    private final int minSize;
+    private final int maxSize;
+    private final Size[] sizes; // minSize << i at i
+
+    // Sizes are powers of two, every size keeps up to maxPooledBytes of buffers (at least one)
+    public BufferPool(int minSize, int maxSize, long maxPooledBytes) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        sizes = new Size[Integer.numberOfTrailingZeros(maxSize) - Integer.numberOfTrailingZeros(minSize) + 1];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = new Size((int) Math.max(1, maxPooledBytes / ((long) minSize << i)));
+        }
+    }
+
+    // Get a cleared buffer of at least size bytes (allocated if the pool is empty, on the heap if larger than the pool)
+    public ByteBuffer acquire(int size) {
+        if (size > maxSize) {
+            return ByteBuffer.allocate(size);
+        }
+        int i = indexOf(Math.max(size, minSize));
+        ByteBuffer buffer = sizes[i].buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(minSize << i);
+        }
+        sizes[i].pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    // Give a buffer back, it must not be used afterwards
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || capacity < minSize || capacity > maxSize || Integer.bitCount(capacity) != 1) {
+            return; // Not from the pool
+        }
+        Size pool = sizes[indexOf(capacity)];
+        if (pool.pooled.incrementAndGet() <= pool.maxPooled) {
+            pool.buffers.offer(buffer);
+        } else {
+            pool.pooled.decrementAndGet(); // Pool is full, let the GC free it
+        }
+    }
+
+    // Index of the smallest size that holds size bytes (minSize <= size <= maxSize)
+    private int indexOf(int size) {
+        int rounded = Integer.highestOneBit(size - 1) << 1;
+        return Integer.numberOfTrailingZeros(Math.max(rounded, minSize)) - Integer.numberOfTrailingZeros(minSize);
+    }
+}
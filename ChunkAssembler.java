@@ -0,0 +1,286 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+// Reassembles the fragments of one chunk (or block, or manifest page): each fragment is copied once, from the received
+// packet straight to its position in a pooled buffer; a bitmap of the received fragments is the only other state
+// With parity fragments (see ChunkFec), the only missing fragment of a group is rebuilt from the others
+class ChunkAssembler {
+    static final String FRAGMENTS_OPTION = "frags="; // request option, the fragments to send again (e.g. frags=3.7-9)
+
+    private final byte[] key; // expected hash, as written by DataOutputStream.writeUTF (ASCII)
+    private final int index;
+    private final BitSet received = new BitSet();
+    private ByteBuffer buffer; // from BufferPool.CHUNKS unless the data is larger than a chunk
+    private int totalFragments = -1;
+    private int stride = -1; // size of every fragment but the last, known from the first one received
+    private byte[] pendingLast; // last fragment, received before the stride was known
+    private int lastSize;
+    private int encoding = ChunkCompression.RAW;
+    private int rawLength = -1;
+    private byte[][] parity; // parity fragment of each group, null until one arrives
+    private int dataLength = -1; // length of the data, sent with the parity fragments
+    private int arrived; // data fragments that arrived (not rebuilt)
+    private int recovered; // data fragments rebuilt from the parity
+
+    ChunkAssembler(String key, int index) {
+        this.key = key.getBytes(StandardCharsets.US_ASCII);
+        this.index = index;
+    }
+
+    // Add a received fragment packet, returns false if it belongs to another chunk or does not fit it
+    boolean add(byte[] packet, int packetLength) {
+        ByteBuffer in = ByteBuffer.wrap(packet, 0, packetLength);
+        if (packetLength < 2 + key.length + 16 || in.getShort() != key.length) {
+            return false;
+        }
+        for (byte b : key) {
+            if (in.get() != b) {
+                return false;
+            }
+        }
+        if (in.getInt() != index) {
+            return false;
+        }
+        int fragmentIndex = in.getInt();
+        int total = in.getInt();
+        int size = in.getInt();
+        if (total < 0) {
+            // Extended format (see NodeDiscovery.encodeFragment)
+            total = -total;
+            if (in.remaining() < 5) {
+                return false;
+            }
+            encoding = in.get();
+            rawLength = in.getInt();
+            if (fragmentIndex < 0) {
+                return addParity(in, -1 - fragmentIndex, total, size);
+            }
+        }
+        if (fragmentIndex < 0 || fragmentIndex >= total || size < 0 || size > in.remaining()
+                || (totalFragments >= 0 && total != totalFragments)) {
+            return false;
+        }
+        totalFragments = total;
+        if (received.get(fragmentIndex)) {
+            return true; // Duplicate
+        }
+
+        boolean last = fragmentIndex == total - 1;
+        if (!last) {
+            if (stride < 0) {
+                stride = size;
+            } else if (size != stride) {
+                return false;
+            }
+        }
+        if (last) {
+            lastSize = size;
+            if (stride < 0 && total > 1) {
+                // Its offset is not known yet, keep it aside until another fragment arrives
+                pendingLast = new byte[size];
+                in.get(pendingLast);
+                received.set(fragmentIndex);
+                arrived++;
+                return true;
+            }
+        }
+        put(in, (long) fragmentIndex * Math.max(stride, 0), size);
+        received.set(fragmentIndex);
+        arrived++;
+        placePendingLast();
+        if (parity != null) {
+            recover(fragmentIndex % parity.length);
+        }
+        return true;
+    }
+
+    // Add a parity fragment (extended format, after the raw length: group count and data length), returns false if it
+    // does not fit the chunk
+    private boolean addParity(ByteBuffer in, int group, int total, int size) {
+        if (in.remaining() < ChunkFec.PARITY_HEADER) {
+            return false;
+        }
+        int groupCount = in.getInt();
+        int length = in.getInt();
+        if (total < 2 || groupCount < 1 || groupCount > total || group >= groupCount || size <= 0 || size > in.remaining()
+                || (totalFragments >= 0 && total != totalFragments) || (parity != null && parity.length != groupCount)
+                || (stride >= 0 && size != stride) || length <= (long) (total - 1) * size || length > (long) total * size) {
+            return false;
+        }
+        totalFragments = total;
+        dataLength = length;
+        if (parity == null) {
+            parity = new byte[groupCount][];
+        }
+        if (parity[group] != null) {
+            return true; // Duplicate
+        }
+        parity[group] = new byte[size];
+        in.get(parity[group]);
+        if (stride < 0) {
+            stride = size; // Every fragment but the last has the size of the parity
+            placePendingLast();
+        }
+        recover(group);
+        return true;
+    }
+
+    // Copy the last fragment to its place once the size of the others is known
+    private void placePendingLast() {
+        if (pendingLast != null && stride >= 0) {
+            put(ByteBuffer.wrap(pendingLast), (long) (totalFragments - 1) * stride, pendingLast.length);
+            pendingLast = null;
+        }
+    }
+
+    // Rebuild the missing fragment of a group if its parity arrived and it is the only one missing: the XOR of the parity
+    // and the other fragments of the group
+    private void recover(int group) {
+        byte[] groupParity = parity[group];
+        if (groupParity == null) {
+            return;
+        }
+        int missing = -1;
+        for (int i = group; i < totalFragments; i += parity.length) {
+            if (!received.get(i)) {
+                if (missing >= 0) {
+                    return; // More than one
+                }
+                missing = i;
+            }
+        }
+        if (missing < 0) {
+            return;
+        }
+        byte[] data = groupParity.clone();
+        byte[] fragment = new byte[stride];
+        for (int i = group; i < totalFragments; i += parity.length) {
+            if (i != missing) {
+                int size = i == totalFragments - 1 ? lastSize : stride;
+                buffer.get(i * stride, fragment, 0, size);
+                ChunkFec.xor(fragment, 0, data, 0, size);
+            }
+        }
+        int size = missing == totalFragments - 1 ? dataLength - (totalFragments - 1) * stride : stride;
+        if (missing == totalFragments - 1) {
+            lastSize = size;
+        }
+        put(ByteBuffer.wrap(data, 0, size), (long) missing * stride, size);
+        received.set(missing);
+        recovered++;
+    }
+
+    // True when all the fragments arrived
+    boolean isComplete() {
+        return totalFragments >= 0 && received.cardinality() == totalFragments;
+    }
+
+    // True when at least one fragment arrived
+    boolean hasFragments() {
+        return totalFragments >= 0;
+    }
+
+    // The missing fragments as ranges (3.7-9), null if the list would be longer than maxLength
+    String getMissingFragments(int maxLength) {
+        StringBuilder sb = new StringBuilder();
+        for (int from = received.nextClearBit(0); from < totalFragments; from = received.nextClearBit(from)) {
+            int to = Math.min(received.nextSetBit(from) < 0 ? totalFragments : received.nextSetBit(from), totalFragments) - 1;
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            sb.append(from);
+            if (to > from) {
+                sb.append('-').append(to);
+            }
+            if (sb.length() > maxLength) {
+                return null;
+            }
+            from = to + 1;
+        }
+        return sb.toString();
+    }
+
+    // Parse a list of fragments written by getMissingFragments, null if it is invalid
+    static BitSet parseFragments(String ranges) {
+        BitSet fragments = new BitSet();
+        try {
+            for (String range : ranges.split("\\.")) {
+                int dash = range.indexOf('-');
+                int from = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+                int to = dash < 0 ? from : Integer.parseInt(range.substring(dash + 1));
+                if (from < 0 || to < from) {
+                    return null;
+                }
+                fragments.set(from, to + 1);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return fragments;
+    }
+
+    // Number of fragments of the data, -1 until a fragment arrives
+    int getTotalFragments() {
+        return totalFragments;
+    }
+
+    // Data fragments that arrived, and the ones rebuilt from the parity fragments
+    int getArrived() {
+        return arrived;
+    }
+
+    int getRecovered() {
+        return recovered;
+    }
+
+    int getEncoding() {
+        return encoding;
+    }
+
+    // Uncompressed length of a compressed chunk, -1 if it was sent raw
+    int getRawLength() {
+        return rawLength;
+    }
+
+    // Take the assembled data (a direct buffer comes from BufferPool.CHUNKS and must be released), null if it is not complete
+    ByteBuffer take() {
+        if (!isComplete()) {
+            return null;
+        }
+        ByteBuffer data = buffer != null ? buffer : ByteBuffer.allocate(0);
+        data.limit(totalFragments == 1 ? lastSize : (totalFragments - 1) * stride + lastSize);
+        data.position(0);
+        buffer = null;
+        return data;
+    }
+
+    // Give back the buffer of an incomplete chunk
+    void release() {
+        if (buffer != null && buffer.isDirect()) {
+            BufferPool.CHUNKS.release(buffer);
+        }
+        buffer = null;
+    }
+
+    // Copy size bytes of the packet to the offset of the chunk
+    private void put(ByteBuffer in, long offset, int size) {
+        long end = offset + size;
+        if (buffer == null) {
+            // Sized for the whole chunk (every fragment but the last is stride bytes), up to the largest chunk size
+            long expected = Math.min((long) totalFragments * Math.max(stride, 0), FileMetadata.MAX_CHUNK_SIZE);
+            buffer = BufferPool.CHUNKS.acquire((int) Math.max(end, expected));
+        } else if (end > buffer.capacity()) {
+            // Last fragment larger than the others (not sent by this version)
+            ByteBuffer larger = BufferPool.CHUNKS.acquire((int) end);
+            buffer.clear();
+            larger.put(buffer);
+            release();
+            buffer = larger;
+        }
+        ByteBuffer fragment = in.slice();
+        fragment.limit(size);
+        buffer.position((int) offset);
+        buffer.put(fragment);
+    }
+}
@@ -0,0 +1,222 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// LRU cache of the chunks served to other nodes, keyed by (file hash, chunk size, chunk index)
+// The chunks are kept in direct buffers (off the heap, allocated once and reused), so a popular file is read from disk
+// about once per chunk instead of once per requester; forward reads of a requester prefetch the next chunks
+// Files have their own chunk size, the buffers are reused for chunks of the same size and dropped to make room for others
+public class ChunkCache {
+    private static final int READ_AHEAD = 2; // chunks prefetched after a forward read
+    private static final int MAX_STREAMS = 256; // requesters tracked for read-ahead
+
+    // A cached chunk
+    private static class Entry {
+        final ByteBuffer data;
+        final int length;
+
+        Entry(ByteBuffer data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private final long maxBytes;
+    private long allocatedBytes;
+    private final Map<Integer, ArrayDeque<ByteBuffer>> freeSlots = new HashMap<>(); // by chunk size
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // access order, eldest = LRU
+    private final Set<String> loading = new HashSet<>(); // chunks being prefetched
+
+    // Last chunk read per requester and file, to detect forward reads
+    private final Map<String, Integer> lastRead = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_STREAMS;
+        }
+    };
+
+    // One prefetch thread, prefetches beyond the queue capacity are skipped
+    private final ThreadPoolExecutor prefetcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(16), runnable -> {
+                Thread thread = new Thread(runnable, "chunk-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+
+    // maxBytes = memory for the cached chunks (0 = no caching)
+    public ChunkCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // Read a chunk of a file into target (at least chunkSize bytes), from the cache if possible, returns the chunk length
+    // requester identifies the reader for the read-ahead (e.g. its IP address)
+    public int read(File file, String fileHash, int chunkSize, int chunkIndex, byte[] target, String requester) throws IOException {
+        String key = fileHash + ":" + chunkSize + ":" + chunkIndex;
+        int length = copyCached(key, target);
+        if (length >= 0) {
+            Metrics.get().chunkCacheHits.increment();
+        } else {
+            Metrics.get().chunkCacheMisses.increment();
+            if (chunkSize > maxBytes) {
+                return readFile(file, chunkSize, chunkIndex, ByteBuffer.wrap(target, 0, chunkSize));
+            }
+            ByteBuffer slot = takeSlot(chunkSize);
+            try {
+                length = readFile(file, chunkSize, chunkIndex, slot);
+            } catch (IOException | RuntimeException e) {
+                releaseSlot(slot);
+                throw e;
+            }
+            slot.flip();
+            slot.get(target, 0, length);
+            insert(key, slot, length);
+        }
+        readAhead(file, fileHash, chunkSize, chunkIndex, requester);
+        return length;
+    }
+
+    // Memory of the chunk buffers
+    public synchronized long getMemoryBytes() {
+        return allocatedBytes;
+    }
+
+    // Stop the prefetch thread
+    public void close() {
+        prefetcher.shutdownNow();
+    }
+
+    // Copy a cached chunk into target, returns its length or -1 if it is not cached
+    private synchronized int copyCached(String key, byte[] target) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return -1;
+        }
+        entry.data.duplicate().clear().get(target, 0, entry.length);
+        return entry.length;
+    }
+
+    // Prefetch the next chunks if the requester reads the file forward
+    private void readAhead(File file, String fileHash, int chunkSize, int chunkIndex, String requester) {
+        if (chunkSize > maxBytes) {
+            return;
+        }
+        long totalChunks = FileMetadata.chunkCount(file.length(), chunkSize);
+        Integer previous;
+        synchronized (lastRead) {
+            previous = lastRead.put(requester + ":" + fileHash, chunkIndex);
+        }
+        // Downloaders spread the chunks over their peers, so a forward read may skip a few chunks
+        if (previous == null || chunkIndex <= previous || chunkIndex - previous > READ_AHEAD + 1) {
+            return;
+        }
+        for (int i = chunkIndex + 1; i <= chunkIndex + READ_AHEAD && i < totalChunks; i++) {
+            String key = fileHash + ":" + chunkSize + ":" + i;
+            synchronized (this) {
+                if (entries.containsKey(key) || !loading.add(key)) {
+                    continue;
+                }
+            }
+            int index = i;
+            prefetcher.execute(() -> prefetch(file, key, chunkSize, index));
+        }
+    }
+
+    // Load a chunk into the cache (prefetch thread)
+    private void prefetch(File file, String key, int chunkSize, int chunkIndex) {
+        ByteBuffer slot = takeSlot(chunkSize);
+        try {
+            int length = readFile(file, chunkSize, chunkIndex, slot);
+            slot.flip();
+            insert(key, slot, length);
+            Metrics.get().chunksPrefetched.increment();
+        } catch (IOException | RuntimeException e) {
+            releaseSlot(slot);
+        } finally {
+            synchronized (this) {
+                loading.remove(key);
+            }
+        }
+    }
+
+    // Read a chunk of a file into the buffer (from its position), returns the number of bytes read
+    private int readFile(File file, int chunkSize, int chunkIndex, ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long position = (long) chunkIndex * chunkSize;
+            while (buffer.position() - start < chunkSize) {
+                int bytesRead = channel.read(buffer, position + buffer.position() - start);
+                if (bytesRead < 0) {
+                    break;
+                }
+            }
+        }
+        return buffer.position() - start;
+    }
+
+    // Get a free buffer of the chunk size, evicting the least recently used chunks if the cache is full
+    // (evicted buffers of another size are dropped and freed by the GC)
+    private synchronized ByteBuffer takeSlot(int chunkSize) {
+        ArrayDeque<ByteBuffer> free = freeSlots.computeIfAbsent(chunkSize, k -> new ArrayDeque<>());
+        ByteBuffer slot = free.poll();
+        while (slot == null) {
+            if (allocatedBytes + chunkSize > maxBytes && dropFreeSlot()) {
+                continue; // Room made by a free buffer of another size
+            }
+            if (allocatedBytes + chunkSize <= maxBytes || entries.isEmpty()) {
+                // Within the limit, or all the other buffers are being loaded
+                allocatedBytes += chunkSize;
+                slot = ByteBuffer.allocateDirect(chunkSize);
+            } else {
+                Iterator<Entry> eldest = entries.values().iterator();
+                ByteBuffer evicted = eldest.next().data;
+                eldest.remove();
+                if (evicted.capacity() == chunkSize) {
+                    slot = evicted;
+                } else {
+                    allocatedBytes -= evicted.capacity();
+                }
+            }
+        }
+        slot.clear();
+        return slot;
+    }
+
+    // Drop one free buffer (of any size), returns false if there is none (called with the lock held)
+    private boolean dropFreeSlot() {
+        for (ArrayDeque<ByteBuffer> free : freeSlots.values()) {
+            ByteBuffer slot = free.poll();
+            if (slot != null) {
+                allocatedBytes -= slot.capacity();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Give back a buffer that was not inserted
+    private synchronized void releaseSlot(ByteBuffer slot) {
+        freeSlots.computeIfAbsent(slot.capacity(), k -> new ArrayDeque<>()).push(slot);
+    }
+
+    // Add a loaded chunk (another thread may have loaded it already)
+    private synchronized void insert(String key, ByteBuffer slot, int length) {
+        if (entries.containsKey(key)) {
+            releaseSlot(slot);
+        } else {
+            entries.put(key, new Entry(slot, length));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Per-chunk Deflate compression, used when the requester asks for it and the data is worth compressing
+public class ChunkCompression {
+    // Encodings of a chunk on the wire
+    static final byte RAW = 0;
+    static final byte DEFLATE = 1;
+
+    // Option sent in REQUEST_CHUNK by nodes that can decompress
+    static final String OPTION = "deflate";
+
+    private static final int SAMPLE_SIZE = 16 * 1024; // bytes compressed to estimate the ratio
+    private static final double MAX_RATIO = 0.9; // compress only if it saves at least 10%
+
+    // Formats that are already compressed, never worth another pass
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4", "lzma", "jar", "war", "apk",
+            "docx", "xlsx", "pptx", "odt", "ods", "epub", "pdf",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "avif",
+            "mp3", "aac", "m4a", "ogg", "opus", "flac",
+            "mp4", "m4v", "mkv", "avi", "mov", "webm", "wmv");
+
+    // Reused by the (single) thread that serves chunks
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] output = new byte[0];
+
+    // True if the file name has an extension of a compressed format
+    static boolean isCompressedFormat(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // Compress the chunk if a sample shows it is worth it, returns the compressed length or -1 to send it raw
+    // The compressed data is in getOutput()
+    public int compress(byte[] data, int length) {
+        if (length <= 0) {
+            return -1;
+        }
+
+        // Sample the middle of the chunk (headers at the start are often more compressible than the rest)
+        int sampleLength = Math.min(SAMPLE_SIZE, length);
+        int sampleStart = (length - sampleLength) / 2;
+        if (deflate(data, sampleStart, sampleLength) > sampleLength * MAX_RATIO) {
+            return -1;
+        }
+
+        int compressedLength = deflate(data, 0, length);
+        return compressedLength <= length * MAX_RATIO ? compressedLength : -1;
+    }
+
+    // Compressed data of the last call to compress
+    public byte[] getOutput() {
+        return output;
+    }
+
+    // Deflate data[start, start + length) into output, returns the compressed length
+    private int deflate(byte[] data, int start, int length) {
+        int bound = length + length / 1000 + 64; // worst case of Deflate on incompressible data
+        if (output.length < bound) {
+            output = new byte[bound];
+        }
+        deflater.reset();
+        deflater.setInput(data, start, length);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished() && compressedLength < output.length) {
+            compressedLength += deflater.deflate(output, compressedLength, output.length - compressedLength);
+        }
+        return compressedLength;
+    }
+
+    // Decompress a chunk into the buffer (from its position), returns false if the data is corrupt
+    static boolean inflate(Inflater inflater, ByteBuffer compressed, ByteBuffer target, int rawLength) {
+        inflater.reset();
+        inflater.setInput(compressed);
+        int start = target.position();
+        try {
+            while (!inflater.finished() && target.position() - start < rawLength) {
+                if (inflater.inflate(target) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return false;
+                }
+            }
+        } catch (DataFormatException e) {
+            return false;
+        }
+        return target.position() - start == rawLength;
+    }
+}
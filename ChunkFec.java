@@ -0,0 +1,84 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Forward error correction of the chunk fragments: XOR parity fragments, one for every group of fragments, so that the
+// requester rebuilds a lost fragment without asking for it again
+// A group is made of every groupCount-th fragment (fragment i is in group i % groupCount), so a burst of lost datagrams
+// hits several groups instead of one. The requester measures the loss of each peer and asks for more parity as it grows
+// (fec=<data fragments per parity fragment>); on a link without loss it asks for none
+class ChunkFec {
+    static final String OPTION = "fec="; // request option, followed by the number of data fragments per parity fragment
+    static final int PARITY_HEADER = 8; // extra header of a parity fragment: group count and data length
+    static final int MIN_GROUP_SIZE = 2; // 50% parity
+    static final int MAX_GROUP_SIZE = 32; // 3% parity
+    private static final double MIN_LOSS = 0.001; // below this loss no parity is asked for
+    private static final double GROUP_LOSS = 0.1; // group size * loss rate: about 1 group in 200 loses 2 fragments
+    private static final int WINDOW = 4096; // fragments the loss rate is measured over (the older ones count half)
+
+    private static final Map<String, ChunkFec> PEERS = new ConcurrentHashMap<>();
+
+    private double fragments;
+    private double lost;
+
+    // Loss measured towards a peer (shared by all the downloads)
+    static ChunkFec forPeer(Peer peer) {
+        return PEERS.computeIfAbsent(peer.getIpAddress(), k -> new ChunkFec());
+    }
+
+    // Fragments of an answer and how many of them did not arrive with it (lost, whether they were rebuilt or asked again)
+    synchronized void record(int total, int missing) {
+        fragments += total;
+        lost += missing;
+        if (fragments > WINDOW) {
+            fragments /= 2;
+            lost /= 2;
+        }
+    }
+
+    synchronized double getLossRate() {
+        return fragments > 0 ? lost / fragments : 0;
+    }
+
+    // Data fragments per parity fragment to ask for, 0 for none
+    int groupSize() {
+        double lossRate = getLossRate();
+        if (lossRate < MIN_LOSS) {
+            return 0;
+        }
+        return (int) Math.max(MIN_GROUP_SIZE, Math.min(MAX_GROUP_SIZE, GROUP_LOSS / lossRate));
+    }
+
+    // Group size asked for in the request options, 0 if none
+    static int parseGroupSize(String option) {
+        try {
+            int groupSize = Integer.parseInt(option.substring(OPTION.length()));
+            return groupSize >= 1 && groupSize <= MAX_GROUP_SIZE ? groupSize : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Number of parity fragments for a chunk of total fragments
+    static int groupCount(int totalFragments, int groupSize) {
+        return (totalFragments + groupSize - 1) / groupSize;
+    }
+
+    // XOR the fragments of every group of data[0, length) into parity (groupCount * stride bytes, the last fragment is
+    // padded with zeros), parity of group g at g * stride
+    static void encode(byte[] data, int length, int stride, int groupCount, byte[] parity) {
+        Arrays.fill(parity, 0, groupCount * stride, (byte) 0);
+        int totalFragments = (length + stride - 1) / stride;
+        for (int i = 0; i < totalFragments; i++) {
+            int start = i * stride;
+            xor(data, start, parity, (i % groupCount) * stride, Math.min(stride, length - start));
+        }
+    }
+
+    // dst[dstOffset, + length) ^= src[srcOffset, + length)
+    static void xor(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] ^= src[srcOffset + i];
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+// Write-behind stage of a download: the file is preallocated, adjacent chunks are coalesced into one sequential
+// gathering write, and the data is forced to disk only at checkpoints and on close
+// A chunk (or block) is reported as durable once it was forced, so a resumed download never skips unwritten data
+class ChunkWriter {
+    private static final int MAX_BATCH = 8; // buffers per write (up to 32 MB of the largest chunks)
+    private static final long CHECKPOINT_BYTES = 32 * 1024 * 1024;
+    private static final long CHECKPOINT_NANOS = TimeUnit.SECONDS.toNanos(2); // same period as the saved download queue
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final IntConsumer onDurable;
+
+    // Chunks waiting to be written, contiguous from batchOffset
+    private final List<ByteBuffer> batch = new ArrayList<>();
+    private long batchOffset;
+    private long batchEnd;
+
+    // Chunks written or waiting, not forced yet
+    private final BitSet pending = new BitSet();
+    private long unforcedBytes;
+    private long lastCheckpoint = System.nanoTime();
+
+    // Open the file and preallocate it to its final size (sparse where the file system supports it)
+    ChunkWriter(File target, long size, IntConsumer onDurable) throws IOException {
+        this.file = new RandomAccessFile(target, "rw");
+        this.channel = file.getChannel();
+        this.onDurable = onDurable;
+        if (file.length() != size) {
+            file.setLength(size);
+        }
+    }
+
+    // Queue the data of a unit (chunk or block index) at the offset, the writer takes the buffer
+    // (a direct buffer is given back to BufferPool.CHUNKS once written)
+    void write(ByteBuffer data, long offset, int unit) throws IOException {
+        if (!batch.isEmpty() && (offset != batchEnd || batch.size() == MAX_BATCH)) {
+            flush();
+        }
+        if (batch.isEmpty()) {
+            batchOffset = offset;
+            batchEnd = offset;
+        }
+        batchEnd += data.remaining();
+        unforcedBytes += data.remaining();
+        batch.add(data);
+        pending.set(unit);
+
+        if (unforcedBytes >= CHECKPOINT_BYTES || System.nanoTime() - lastCheckpoint >= CHECKPOINT_NANOS) {
+            checkpoint();
+        }
+    }
+
+    // True if the unit was queued but is not durable yet
+    boolean isPending(int unit) {
+        return pending.get(unit);
+    }
+
+    // Read data already queued (the queued chunks are written first)
+    void read(long offset, byte[] data) throws IOException {
+        flush();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    // Write the queued chunks with one gathering write, without forcing them to disk
+    void flush() throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+        channel.position(batchOffset);
+        long remaining = batchEnd - batchOffset;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.isDirect()) {
+                BufferPool.CHUNKS.release(buffer);
+            }
+        }
+        batch.clear();
+    }
+
+    // Write and force the queued chunks, then report them as durable
+    void checkpoint() throws IOException {
+        flush();
+        channel.force(false);
+        for (int unit = pending.nextSetBit(0); unit >= 0; unit = pending.nextSetBit(unit + 1)) {
+            onDurable.accept(unit);
+        }
+        pending.clear();
+        unforcedBytes = 0;
+        lastCheckpoint = System.nanoTime();
+    }
+
+    // Checkpoint and close the file
+    void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            file.close();
+        }
+    }
+}
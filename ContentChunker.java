@@ -0,0 +1,134 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Content-defined chunking: block boundaries depend on the data (rolling gear hash), not on fixed offsets,
+// so an insertion or deletion only changes the blocks around it and the other blocks keep their hash
+public class ContentChunker {
+    static final int MIN_BLOCK_SIZE = 64 * 1024; // 64 KB
+    static final int MAX_BLOCK_SIZE = 512 * 1024; // 512 KB, a block always fits in one chunk transfer
+    private static final long BOUNDARY_MASK = 0xFFFFC00000000000L; // top 18 bits, about 256 KB per block on average
+
+    // Hash length in bytes in a manifest page
+    private static final int HASH_SIZE = 32;
+    // Blocks per manifest page, a page is sent like a chunk so it must fit in 512 KB
+    static final int PAGE_BLOCKS = (MAX_BLOCK_SIZE - 4) / (HASH_SIZE + 4);
+
+    // Random values per byte value, the seed is fixed because every node must find the same boundaries
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5EED_C0DEL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    // A block of a file
+    public static class Block {
+        final long offset;
+        final int length;
+        final String hash; // SHA-256 of the block (hex)
+
+        Block(long offset, int length, String hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    // Split a file into blocks
+    public static List<Block> split(File file) throws IOException {
+        List<Block> blocks = new ArrayList<>();
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[1024 * 1024];
+        long blockOffset = 0;
+        int blockLength = 0;
+        long hash = 0;
+
+        try (InputStream in = new FileInputStream(file)) {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                int start = 0;
+                for (int i = 0; i < bytesRead; i++) {
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                    blockLength++;
+                    if ((blockLength >= MIN_BLOCK_SIZE && (hash & BOUNDARY_MASK) == 0) || blockLength == MAX_BLOCK_SIZE) {
+                        digest.update(buffer, start, i + 1 - start);
+                        blocks.add(new Block(blockOffset, blockLength, toHex(digest.digest())));
+                        blockOffset += blockLength;
+                        blockLength = 0;
+                        hash = 0;
+                        start = i + 1;
+                    }
+                }
+                digest.update(buffer, start, bytesRead - start);
+            }
+        }
+        if (blockLength > 0) {
+            blocks.add(new Block(blockOffset, blockLength, toHex(digest.digest())));
+        }
+        return blocks;
+    }
+
+    // SHA-256 of the remaining bytes of a buffer (hex), the position of the buffer is not changed
+    static String hashBlock(ByteBuffer data) {
+        MessageDigest digest = newDigest();
+        digest.update(data.duplicate());
+        return toHex(digest.digest());
+    }
+
+    // Encode a page of the manifest of a file: total number of blocks, then (hash, length) of the blocks of the page
+    static byte[] encodeManifestPage(List<Block> blocks, int page) {
+        int from = Math.min(page * PAGE_BLOCKS, blocks.size());
+        int to = Math.min(from + PAGE_BLOCKS, blocks.size());
+        ByteBuffer buffer = ByteBuffer.allocate(4 + (to - from) * (HASH_SIZE + 4));
+        buffer.putInt(blocks.size());
+        for (int i = from; i < to; i++) {
+            Block block = blocks.get(i);
+            for (int j = 0; j < HASH_SIZE; j++) {
+                buffer.put((byte) Integer.parseInt(block.hash.substring(j * 2, j * 2 + 2), 16));
+            }
+            buffer.putInt(block.length);
+        }
+        return buffer.array();
+    }
+
+    // Decode a manifest page and append its blocks (the offsets follow the blocks already in the list), returns the total number of blocks
+    static int decodeManifestPage(byte[] data, List<Block> blocks) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int totalBlocks = buffer.getInt();
+        byte[] hash = new byte[HASH_SIZE];
+        while (buffer.remaining() >= HASH_SIZE + 4) {
+            buffer.get(hash);
+            int length = buffer.getInt();
+            Block last = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+            long offset = last != null ? last.offset + last.length : 0;
+            blocks.add(new Block(offset, length, toHex(hash)));
+        }
+        return totalBlocks;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+
+// Bloom filter of the file hashes of a node (about 1% false positives at 10 bits per file)
+// It is split into pages of 512 bytes that each hold the hashes of one part of the hash space, so every page fits in
+// one datagram and a lost page only hides the files of that page until it is sent again
+class ContentFilter {
+    static final int PAGE_BYTES = 512;
+    static final int MAX_PAGES = 1024; // 512 KB, about 400 000 files at 10 bits per file (more files share the bits)
+    private static final int PAGE_BITS = PAGE_BYTES * 8;
+    private static final int BITS_PER_FILE = 10;
+    private static final int HASHES = 7; // bits set per file, optimal for 10 bits per file
+
+    private final BitSet[] pages; // null until received
+
+    ContentFilter(int pageCount) {
+        this.pages = new BitSet[Math.max(1, pageCount)];
+    }
+
+    // Filter of the hashes (SHA-256 in hex), sized from their number
+    static ContentFilter of(Collection<String> fileHashes) {
+        long bits = (long) fileHashes.size() * BITS_PER_FILE;
+        ContentFilter filter = new ContentFilter((int) Math.min(MAX_PAGES, (bits + PAGE_BITS - 1) / PAGE_BITS));
+        for (int i = 0; i < filter.pages.length; i++) {
+            filter.pages[i] = new BitSet(PAGE_BITS);
+        }
+        for (String fileHash : fileHashes) {
+            filter.add(fileHash);
+        }
+        return filter;
+    }
+
+    // The hashes are already uniform: the page and the bit positions are taken from their first 40 hex digits
+    private void add(String fileHash) {
+        if (!isValidHash(fileHash)) {
+            return;
+        }
+        BitSet page = pages[pageOf(fileHash)];
+        long h1 = Long.parseUnsignedLong(fileHash.substring(8, 24), 16);
+        long h2 = Long.parseUnsignedLong(fileHash.substring(24, 40), 16);
+        for (int i = 0; i < HASHES; i++) {
+            page.set(bitOf(h1, h2, i));
+        }
+    }
+
+    // False if the node does not have the file, true if it may have it (also if the page was not received)
+    boolean mightContain(String fileHash) {
+        if (!isValidHash(fileHash)) {
+            return false;
+        }
+        BitSet page = pages[pageOf(fileHash)];
+        if (page == null) {
+            return true;
+        }
+        long h1 = Long.parseUnsignedLong(fileHash.substring(8, 24), 16);
+        long h2 = Long.parseUnsignedLong(fileHash.substring(24, 40), 16);
+        for (int i = 0; i < HASHES; i++) {
+            if (!page.get(bitOf(h1, h2, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getPageCount() {
+        return pages.length;
+    }
+
+    // Bits of a page (trailing zero bytes are left out)
+    byte[] getPage(int index) {
+        return pages[index].toByteArray();
+    }
+
+    void setPage(int index, byte[] bits) {
+        pages[index] = BitSet.valueOf(bits);
+    }
+
+    // Size of the filter in bytes
+    int sizeInBytes() {
+        return pages.length * PAGE_BYTES;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ContentFilter && Arrays.equals(pages, ((ContentFilter) other).pages);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(pages);
+    }
+
+    private int pageOf(String fileHash) {
+        return (int) (Long.parseLong(fileHash.substring(0, 8), 16) % pages.length);
+    }
+
+    // Bit of the i-th hash function (double hashing)
+    private static int bitOf(long h1, long h2, int i) {
+        return (int) Long.remainderUnsigned(h1 + i * h2, PAGE_BITS);
+    }
+
+    private static boolean isValidHash(String fileHash) {
+        if (fileHash == null || fileHash.length() < 40) {
+            return false;
+        }
+        for (int i = 0; i < 40; i++) {
+            if (Character.digit(fileHash.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+
+// Read-only channel over a file that is still downloading (Channels.newInputStream gives a blocking InputStream)
+// A read waits until the chunk at the position is written, and moves the read position of the download there
+public class DownloadChannel implements SeekableByteChannel {
+    private final File partFile;
+    private final File targetFile;
+    private final long size;
+    private final int chunkSize;
+    private final StreamWindow window;
+    private FileChannel channel; // opened at the first read
+    private long position;
+    private boolean open = true;
+
+    DownloadChannel(File partFile, File targetFile, long size, int chunkSize, StreamWindow window) {
+        this.partFile = partFile;
+        this.targetFile = targetFile;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.window = window;
+    }
+
+    // Read from the position, at most up to the end of its chunk (blocks until the chunk is downloaded)
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (true) {
+            long start;
+            synchronized (this) {
+                if (!open) {
+                    throw new ClosedChannelException();
+                }
+                if (position >= size) {
+                    return -1;
+                }
+                if (!dst.hasRemaining()) {
+                    return 0;
+                }
+                start = position;
+            }
+            int chunk = (int) (start / chunkSize);
+            window.await(chunk); // Without the lock, so the channel can be closed meanwhile
+
+            synchronized (this) {
+                if (!open) {
+                    throw new ClosedChannelException();
+                }
+                if (position != start) {
+                    continue; // Moved by another thread, wait for the chunk at the new position
+                }
+                if (channel == null) {
+                    channel = openFile();
+                }
+                long chunkEnd = Math.min(size, (long) (chunk + 1) * chunkSize);
+                int limit = dst.limit();
+                dst.limit((int) Math.min(limit, dst.position() + (chunkEnd - position)));
+                try {
+                    int bytesRead = channel.read(dst, position);
+                    if (bytesRead < 0) {
+                        throw new IOException("Unexpected end of file: " + position);
+                    }
+                    position += bytesRead;
+                    return bytesRead;
+                } finally {
+                    dst.limit(limit);
+                }
+            }
+        }
+    }
+
+    // The .part file while the download runs (the open file survives its rename), the file itself once it is complete
+    private FileChannel openFile() throws IOException {
+        if (!window.isComplete()) {
+            try {
+                return FileChannel.open(partFile.toPath(), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                // Renamed in the meantime
+            }
+        }
+        return FileChannel.open(targetFile.toPath(), StandardOpenOption.READ);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        return position;
+    }
+
+    // Seek, the next read waits for the chunk at the new position
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    // Size of the whole file, also before it is downloaded
+    @Override
+    public synchronized long size() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        open = false;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
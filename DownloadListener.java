@@ -0,0 +1,5 @@
+// Receives progress updates from a FileDownloader (implemented by the GUI and the headless node)
+public interface DownloadListener {
+    // Called every time a chunk is written, progress is a percentage between 0 and 100
+    void updateDownloadProgress(String fileName, int progress);
+}
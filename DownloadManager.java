@@ -0,0 +1,720 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Queue of downloads: runs at most maxConcurrent downloads at a time under a global rate limit,
+// by priority and favouring files that are already started; the queue is saved to a file to survive restarts
+public class DownloadManager {
+    // States of a download
+    public enum State { QUEUED, RUNNING, PAUSED, COMPLETED, CANCELLED }
+
+    // A queued download
+    public static class Download {
+        final String fileName;
+        final String fileHash;
+        final long fileSize;
+        final String targetFolderPath;
+        final int chunkSize; // chunk size advertised with the file, the written chunks are in this size
+        final long sequence; // order of arrival
+        volatile int priority; // higher first
+        volatile State state = State.QUEUED;
+        volatile int progress;
+        BitSet completed = new BitSet(); // chunks or blocks written, to resume
+        boolean completedBlocks;
+        FileDownloader downloader; // while running
+        StreamWindow stream; // set once the file is opened for reading while it downloads
+        final List<File> copies = new ArrayList<>(); // other paths asked for the same content, copied once it is complete
+        File localSource; // local file with the same content being copied instead of downloaded
+        File previousTarget; // where the same content was downloaded before
+        boolean localCopyFailed; // the local file did not have the content, download it
+
+        Download(String fileName, String fileHash, long fileSize, int chunkSize, String targetFolderPath, int priority, long sequence) {
+            this.fileName = fileName;
+            this.fileHash = fileHash;
+            this.fileSize = fileSize;
+            this.chunkSize = chunkSize;
+            this.targetFolderPath = targetFolderPath;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getFileHash() {
+            return fileHash;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public int getProgress() {
+            return progress;
+        }
+
+        // True if part of the file is already downloaded
+        boolean isStarted() {
+            return progress > 0 || !completed.isEmpty();
+        }
+    }
+
+    // Next download to start: highest priority, then started files (to finish them), then the oldest
+    private static final Comparator<Download> SCHEDULING_ORDER = Comparator
+            .comparingInt((Download d) -> -d.priority)
+            .thenComparing(d -> !d.isStarted())
+            .thenComparingLong(d -> d.sequence);
+
+    private static final int STREAM_PRIORITY = 100; // a file being read goes before the other downloads
+    private static final long STREAM_LOOK_AHEAD = 16 * 1024 * 1024; // bytes after the read position downloaded first
+
+    private final Map<String, Download> downloads = new LinkedHashMap<>(); // file hash -> download, guarded by this
+    private final File queueFile;
+    private final DownloadListener listener;
+    private final RateLimiter rateLimiter = new RateLimiter();
+    private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
+    private final List<FolderDownloader> folderDownloads = new ArrayList<>(); // running, guarded by this
+    private int maxConcurrent = 3;
+    private long nextSequence;
+
+    // Where the peers of a file come from (null while disconnected) and extra settings for each downloader
+    private volatile Function<String, List<Peer>> peerLookup;
+    private volatile Function<String, File> localLookup; // local file with a hash, null if there is none
+    private volatile Consumer<FileDownloader> downloaderSetup;
+    private volatile Consumer<Download> onChangeCallback;
+    private volatile TransportFactory transportFactory = UdpTransport.FACTORY; // the authenticated transports of the node
+
+    public DownloadManager(File queueFile, DownloadListener listener) {
+        this.queueFile = queueFile;
+        this.listener = listener;
+        load();
+
+        // Start queued downloads whose peers became known, and save the progress regularly
+        executorService.scheduleWithFixedDelay(() -> {
+            schedule();
+            save();
+        }, 2, 2, TimeUnit.SECONDS);
+    }
+
+    // Setters
+    public void setPeerLookup(Function<String, List<Peer>> peerLookup) {
+        this.peerLookup = peerLookup;
+        if (peerLookup != null) {
+            executorService.execute(this::schedule);
+        }
+    }
+
+    public void setLocalLookup(Function<String, File> localLookup) {
+        this.localLookup = localLookup;
+    }
+
+    public void setTransportFactory(TransportFactory transportFactory) {
+        this.transportFactory = transportFactory;
+    }
+
+    public void setDownloaderSetup(Consumer<FileDownloader> downloaderSetup) {
+        this.downloaderSetup = downloaderSetup;
+    }
+
+    public void setOnChangeCallback(Consumer<Download> callback) {
+        this.onChangeCallback = callback;
+    }
+
+    public synchronized void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        executorService.execute(this::schedule);
+    }
+
+    public synchronized int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    // Global download limit in bytes per second (0 = unlimited)
+    public void setRateLimit(long bytesPerSecond) {
+        rateLimiter.setRate(bytesPerSecond);
+    }
+
+    public long getRateLimit() {
+        return rateLimiter.getRate();
+    }
+
+    // Add a file to the queue (a file already in the queue keeps its place), returns its download
+    public Download enqueue(String fileName, String fileHash, long fileSize, String targetFolderPath, int priority) {
+        return enqueue(fileName, fileHash, fileSize, FileMetadata.chunkSizeFor(fileSize), targetFolderPath, priority);
+    }
+
+    // Add a file with the chunk size advertised by its peers
+    // The same content asked again joins its download: it is transferred once and copied to the other path
+    public Download enqueue(String fileName, String fileHash, long fileSize, int chunkSize, String targetFolderPath, int priority) {
+        File target = FileMetadata.resolve(targetFolderPath, fileName);
+        Download download;
+        synchronized (this) {
+            download = downloads.get(fileHash);
+            if (download != null && download.state != State.COMPLETED && download.state != State.CANCELLED) {
+                if (target != null && !target.equals(targetOf(download)) && !download.copies.contains(target)) {
+                    download.copies.add(target);
+                }
+                Metrics.get().downloadsCoalesced.increment();
+                return download;
+            }
+            Download previous = download;
+            download = new Download(fileName, fileHash, fileSize, chunkSize, targetFolderPath, priority, nextSequence++);
+            if (previous != null && previous.state == State.COMPLETED) {
+                download.previousTarget = targetOf(previous);
+            }
+            downloads.put(fileHash, download);
+        }
+        changed(download);
+        executorService.execute(this::schedule);
+        return download;
+    }
+
+    // Open a file for reading while it downloads: the download starts right away (also beyond the concurrent downloads)
+    // and fetches the chunks in the order the returned channel reads them, returns null if the path is not valid
+    public DownloadChannel openStream(String fileName, String fileHash, long fileSize, int chunkSize, String targetFolderPath) {
+        File target = FileMetadata.resolve(targetFolderPath, fileName);
+        if (target == null) {
+            return null;
+        }
+        Download download = enqueue(fileName, fileHash, fileSize, chunkSize, targetFolderPath, STREAM_PRIORITY);
+        StreamWindow window;
+        FileDownloader running;
+        synchronized (this) {
+            if (download.stream == null) {
+                int lookAhead = (int) Math.max(1, STREAM_LOOK_AHEAD / download.chunkSize);
+                download.stream = new StreamWindow(FileMetadata.chunkCount(download.fileSize, download.chunkSize), lookAhead);
+            }
+            window = download.stream;
+            download.priority = Math.max(download.priority, STREAM_PRIORITY);
+            if (download.state == State.PAUSED) {
+                download.state = State.QUEUED;
+            } else if (download.state == State.COMPLETED) {
+                window.complete();
+            }
+            running = download.downloader;
+        }
+        if (running != null) {
+            running.setStreaming(window); // Already downloading, follow the reader from now on
+        }
+        changed(download);
+        executorService.execute(this::schedule);
+        return new DownloadChannel(new File(download.targetFolderPath, download.fileName + ".part"), target, download.fileSize,
+                download.chunkSize, window);
+    }
+
+    // Stop a download and keep its data, it is not started again until it is resumed
+    public void pause(String fileHash) {
+        stop(fileHash, State.PAUSED);
+    }
+
+    // Put a paused download back in the queue
+    public void resume(String fileHash) {
+        Download download;
+        synchronized (this) {
+            download = downloads.get(fileHash);
+            if (download == null || download.state != State.PAUSED) {
+                return;
+            }
+            download.state = State.QUEUED;
+        }
+        changed(download);
+        executorService.execute(this::schedule);
+    }
+
+    // Stop a download and delete its partial file
+    public void cancel(String fileHash) {
+        stop(fileHash, State.CANCELLED);
+    }
+
+    // Change the priority of a download (higher first)
+    public void setPriority(String fileHash, int priority) {
+        Download download;
+        synchronized (this) {
+            download = downloads.get(fileHash);
+            if (download == null) {
+                return;
+            }
+            download.priority = priority;
+        }
+        changed(download);
+        executorService.execute(this::schedule);
+    }
+
+    // Download the files of a folder (relative paths) into the target folder: the small files together on one thread,
+    // the larger ones through the queue; name is shown in the progress, returns the started folder download
+    public FolderDownloader downloadFolder(String name, List<FileMetadata> files, String targetFolderPath, int priority, boolean compression) {
+        Function<String, List<Peer>> lookup = peerLookup;
+        FolderDownloader downloader = new FolderDownloader(name, files, targetFolderPath,
+                fileHash -> lookup != null ? lookup.apply(fileHash) : Collections.emptyList(), listener, transportFactory);
+        downloader.setRateLimiter(rateLimiter);
+        downloader.setCompression(compression);
+        downloader.setQueue(this, priority);
+        downloader.setLocalLookup(localLookup);
+        synchronized (this) {
+            folderDownloads.add(downloader);
+        }
+        new Thread(() -> {
+            downloader.run();
+            synchronized (this) {
+                folderDownloads.remove(downloader);
+                notifyAll();
+            }
+        }, "download-folder-" + name).start();
+        return downloader;
+    }
+
+    // Wait until a folder download returned, returns true if every file of the folder was downloaded
+    public synchronized boolean awaitFolder(FolderDownloader downloader) throws InterruptedException {
+        while (folderDownloads.contains(downloader)) {
+            wait();
+        }
+        return downloader.isComplete();
+    }
+
+    // Find a download by the hash of its file
+    public synchronized Download findByHash(String fileHash) {
+        return downloads.get(fileHash);
+    }
+
+    // Find a download by the name of its file (the transfers table shows names)
+    public synchronized Download findByName(String fileName) {
+        for (Download download : downloads.values()) {
+            if (download.fileName.equals(fileName)) {
+                return download;
+            }
+        }
+        return null;
+    }
+
+    // Snapshot of the downloads in arrival order
+    public synchronized List<Download> getDownloads() {
+        return new ArrayList<>(downloads.values());
+    }
+
+    // Stop the running downloads and put them back in the queue (disconnect or exit)
+    public void suspend() {
+        peerLookup = null;
+        List<FileDownloader> running = new ArrayList<>();
+        synchronized (this) {
+            for (Download download : downloads.values()) {
+                if (download.state == State.RUNNING) {
+                    download.state = State.QUEUED;
+                    if (download.downloader != null) {
+                        running.add(download.downloader); // (a local copy runs to its end)
+                    }
+                }
+            }
+        }
+        for (FileDownloader downloader : running) {
+            downloader.stop();
+        }
+        List<FolderDownloader> folders;
+        synchronized (this) {
+            folders = new ArrayList<>(folderDownloads);
+        }
+        for (FolderDownloader downloader : folders) {
+            downloader.stop(); // The complete files are skipped when the folder is downloaded again
+        }
+        save();
+    }
+
+    // Wait until the download is completed or cancelled, returns true if it completed
+    public synchronized boolean awaitCompletion(String fileHash) throws InterruptedException {
+        while (true) {
+            Download download = downloads.get(fileHash);
+            if (download == null || download.state == State.CANCELLED) {
+                return false;
+            }
+            if (download.state == State.COMPLETED) {
+                return true;
+            }
+            wait();
+        }
+    }
+
+    // Stop a download and move it to the state
+    private void stop(String fileHash, State state) {
+        Download download;
+        FileDownloader downloader = null;
+        File partial = null;
+        synchronized (this) {
+            download = downloads.get(fileHash);
+            if (download == null || download.state == State.COMPLETED || download.state == State.CANCELLED) {
+                return;
+            }
+            if (download.state == State.RUNNING) {
+                downloader = download.downloader; // Finished in onFinished
+            } else if (state == State.CANCELLED) {
+                partial = discardProgress(download);
+            }
+            if (state == State.CANCELLED && download.stream != null) {
+                download.stream.fail("Download cancelled: " + download.fileName);
+            }
+            download.state = state;
+            notifyAll();
+        }
+        if (downloader != null) {
+            downloader.stop();
+        }
+        if (partial != null) {
+            partial.delete();
+        }
+        changed(download);
+        executorService.execute(this::schedule);
+    }
+
+    // Start the next queued downloads while there are free slots
+    private void schedule() {
+        Function<String, List<Peer>> lookup = peerLookup;
+        if (lookup == null) {
+            return; // Not connected
+        }
+        List<Download> started = new ArrayList<>();
+        synchronized (this) {
+            int running = 0;
+            List<Download> queued = new ArrayList<>();
+            for (Download download : downloads.values()) {
+                if (download.state == State.RUNNING) {
+                    running++;
+                } else if (download.state == State.QUEUED && download.downloader == null && download.localSource == null) {
+                    queued.add(download); // (a suspended download is only queued again once its downloader returned)
+                }
+            }
+            queued.sort(SCHEDULING_ORDER);
+            for (Download download : queued) {
+                if (running >= maxConcurrent && download.stream == null) {
+                    continue; // A file being read does not wait for a free slot
+                }
+                File source = download.localCopyFailed ? null : findLocalSource(download);
+                if (source != null) {
+                    download.localSource = source; // Copied instead of downloaded
+                    download.state = State.RUNNING;
+                    started.add(download);
+                    running++;
+                    continue;
+                }
+                List<Peer> peers = lookup.apply(download.fileHash);
+                if (peers.isEmpty()) {
+                    continue; // No source yet, try again later
+                }
+                download.downloader = createDownloader(download, peers);
+                download.state = State.RUNNING;
+                started.add(download);
+                running++;
+            }
+        }
+        for (Download download : started) {
+            FileDownloader downloader = download.downloader;
+            if (downloader == null) {
+                File source = download.localSource;
+                new Thread(() -> onCopied(download, copyLocal(download, source)), "copy-" + download.fileName).start();
+            } else {
+                new Thread(() -> {
+                    downloader.run();
+                    onFinished(download, downloader);
+                }, "download-" + download.fileName).start();
+            }
+            changed(download);
+        }
+    }
+
+    // Local file that may have the content of a download (checked against the hash when it is copied): its own path
+    // (downloaded before), the path of a previous download of the same content or a shared file with the hash
+    private File findLocalSource(Download download) {
+        File target = targetOf(download);
+        if (target != null && target.isFile() && target.length() == download.fileSize) {
+            return target;
+        }
+        File previous = download.previousTarget;
+        if (previous != null && previous.isFile() && previous.length() == download.fileSize) {
+            return previous;
+        }
+        Function<String, File> lookup = localLookup;
+        return lookup != null ? lookup.apply(download.fileHash) : null;
+    }
+
+    // Copy a local file with the content of a download to its path, returns false if the file does not have the content
+    // (the file may have changed since it was hashed)
+    private boolean copyLocal(Download download, File source) {
+        File target = targetOf(download);
+        if (target == null) {
+            return false;
+        }
+        if (source.equals(target)) {
+            if (!download.fileHash.equals(FileMetadata.calculateHash(target))) {
+                return false;
+            }
+        } else if (!copyFile(source, target, download.fileHash)) {
+            return false;
+        }
+        new File(target.getPath() + ".part").delete(); // Progress of an earlier attempt
+        Metrics.get().downloadsCopiedLocally.increment();
+        Metrics.get().dedupSavedBytes.add(download.fileSize);
+        return true;
+    }
+
+    // Called on the copy thread when a local copy returns
+    private void onCopied(Download download, boolean copied) {
+        if (copied) {
+            deliverCopies(download);
+        }
+        File partial = null;
+        synchronized (this) {
+            download.localSource = null;
+            if (copied && download.state != State.CANCELLED) {
+                download.state = State.COMPLETED;
+                download.progress = 100;
+                listener.updateDownloadProgress(download.fileName, 100);
+                if (download.stream != null) {
+                    download.stream.complete();
+                }
+            } else {
+                download.localCopyFailed = !copied;
+                if (download.state == State.RUNNING) {
+                    download.state = State.QUEUED; // Download it from the network
+                } else if (download.state == State.CANCELLED) {
+                    partial = discardProgress(download);
+                }
+            }
+            notifyAll();
+        }
+        if (partial != null) {
+            partial.delete();
+        }
+        changed(download);
+        save();
+        schedule();
+    }
+
+    // Copy a complete download to the other paths that asked for the same content
+    private void deliverCopies(Download download) {
+        File source = targetOf(download);
+        List<File> copies;
+        synchronized (this) {
+            copies = new ArrayList<>(download.copies);
+            download.copies.clear();
+        }
+        for (File copy : copies) {
+            if (source != null && copyFile(source, copy, null)) {
+                listener.updateDownloadProgress(FileMetadata.relativePath(new File(download.targetFolderPath), copy), 100);
+            }
+        }
+    }
+
+    // Copy a file through a temporary file next to the target, renamed once it has the expected hash (null to not check)
+    private static boolean copyFile(File source, File target, String expectedHash) {
+        File temp = new File(target.getPath() + ".copy");
+        try {
+            target.getParentFile().mkdirs();
+            Files.copy(source.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (expectedHash != null && !expectedHash.equals(FileMetadata.calculateHash(temp))) {
+                temp.delete();
+                return false;
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return false;
+        }
+    }
+
+    // Path of the file of a download, null if the name is not a valid path inside its folder
+    private static File targetOf(Download download) {
+        return FileMetadata.resolve(download.targetFolderPath, download.fileName);
+    }
+
+    // Create the downloader of a download, resuming from its saved progress
+    private FileDownloader createDownloader(Download download, List<Peer> peers) {
+        DownloadListener progressListener = (fileName, progress) -> {
+            download.progress = progress;
+            listener.updateDownloadProgress(fileName, progress);
+        };
+        FileDownloader downloader = new FileDownloader(download.fileName, download.fileHash, download.fileSize,
+                download.targetFolderPath, new ArrayList<>(peers), progressListener, transportFactory);
+        downloader.setRateLimiter(rateLimiter);
+        downloader.setChunkSize(download.chunkSize);
+        Consumer<FileDownloader> setup = downloaderSetup;
+        if (setup != null) {
+            setup.accept(downloader);
+        }
+        downloader.resumeFrom(download.completed, download.completedBlocks);
+        if (download.stream != null) {
+            downloader.setStreaming(download.stream);
+        }
+        return downloader;
+    }
+
+    // Called on the download thread when a downloader returns
+    private void onFinished(Download download, FileDownloader downloader) {
+        if (downloader.isComplete()) {
+            deliverCopies(download);
+        }
+        File partial = null;
+        synchronized (this) {
+            download.completed = downloader.getCompleted();
+            download.completedBlocks = downloader.isCompletedBlocks();
+            download.downloader = null;
+            if (downloader.isComplete()) {
+                download.state = State.COMPLETED;
+                download.progress = 100;
+                if (download.stream != null) {
+                    download.stream.complete();
+                }
+            } else if (download.state == State.RUNNING) {
+                download.state = State.QUEUED; // Failed, try again later
+            } else if (download.state == State.CANCELLED) {
+                partial = discardProgress(download);
+            }
+            notifyAll();
+        }
+        if (partial != null) {
+            partial.delete();
+        }
+        changed(download);
+        save();
+        schedule();
+    }
+
+    // Forget the progress of a cancelled download (called with the lock held), returns what it has written, deleted by the
+    // caller once the lock is released: only its .part file, the target is renamed from it once complete (a file already
+    // at the target belongs to the user)
+    private File discardProgress(Download download) {
+        download.completed = new BitSet();
+        download.progress = 0;
+        return new File(download.targetFolderPath, download.fileName + ".part");
+    }
+
+    // Notify the listener of a change of state or priority
+    private void changed(Download download) {
+        Consumer<Download> callback = onChangeCallback;
+        if (callback != null) {
+            callback.accept(download);
+        }
+    }
+
+    // Save the unfinished downloads, one per line: hash, name, size, folder, priority, state, blocks flag, written chunks, chunk size,
+    // other paths of the same content
+    public void save() {
+        List<String> lines = new ArrayList<>();
+        synchronized (this) {
+            for (Download download : downloads.values()) {
+                if (download.state == State.COMPLETED || download.state == State.CANCELLED) {
+                    continue;
+                }
+                // The progress of running downloads is read from their downloader
+                BitSet completed = download.downloader != null ? download.downloader.getCompleted() : download.completed;
+                boolean blocks = download.downloader != null ? download.downloader.isCompletedBlocks() : download.completedBlocks;
+                State state = download.state == State.PAUSED ? State.PAUSED : State.QUEUED;
+                lines.add(String.join("\t", download.fileHash, download.fileName, String.valueOf(download.fileSize),
+                        download.targetFolderPath, String.valueOf(download.priority), state.name(), String.valueOf(blocks),
+                        Base64.getEncoder().encodeToString(completed.toByteArray()), String.valueOf(download.chunkSize),
+                        encodePaths(download.copies)));
+            }
+        }
+
+        File temp = new File(queueFile.getPath() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(temp, "UTF-8")) {
+            for (String line : lines) {
+                writer.println(line);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), queueFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Read the queue saved by a previous run
+    private synchronized void load() {
+        if (!queueFile.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(queueFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", -1);
+                if (parts.length < 8 || parts.length > 10) {
+                    continue;
+                }
+                try {
+                    // Queues saved by older versions were downloaded in 512 KB chunks
+                    int chunkSize = parts.length >= 9 ? Integer.parseInt(parts[8]) : FileMetadata.LEGACY_CHUNK_SIZE;
+                    Download download = new Download(parts[1], parts[0], Long.parseLong(parts[2]), chunkSize, parts[3],
+                            Integer.parseInt(parts[4]), nextSequence++);
+                    download.state = State.valueOf(parts[5]);
+                    download.completedBlocks = Boolean.parseBoolean(parts[6]);
+                    download.completed = BitSet.valueOf(Base64.getDecoder().decode(parts[7]));
+                    if (parts.length == 10) {
+                        download.copies.addAll(decodePaths(parts[9]));
+                    }
+                    downloads.put(download.fileHash, download);
+                } catch (IllegalArgumentException e) {
+                    e.printStackTrace(); // Malformed line (e.g. edited by hand), only this download is skipped
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Paths as a comma separated list of Base64 strings
+    private static String encodePaths(List<File> paths) {
+        List<String> encoded = new ArrayList<>();
+        for (File path : paths) {
+            encoded.add(Base64.getEncoder().encodeToString(path.getPath().getBytes(StandardCharsets.UTF_8)));
+        }
+        return String.join(",", encoded);
+    }
+
+    private static List<File> decodePaths(String value) {
+        List<File> paths = new ArrayList<>();
+        for (String encoded : value.split(",")) {
+            if (!encoded.isEmpty()) {
+                paths.add(new File(new String(Base64.getDecoder().decode(encoded), StandardCharsets.UTF_8)));
+            }
+        }
+        return paths;
+    }
+
+    // Stop everything (exit)
+    public void shutdown() {
+        suspend();
+        executorService.shutdownNow();
+    }
+
+    // Downloads sorted in scheduling order (for listing)
+    public List<Download> getQueueOrder() {
+        List<Download> list = getDownloads();
+        Collections.sort(list, SCHEDULING_ORDER);
+        return list;
+    }
+}
@@ -1,12 +1,23 @@
 import java.io.*;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Inflater;
 
 public class FileDownloader implements Runnable {
     private String fileName;
@@ -14,44 +25,217 @@ public class FileDownloader implements Runnable {
     private long fileSize;
     private String targetFolderPath;
     private List<Peer> peers;
-    private MainScreen mainScreen;
-    private static final int CHUNK_SIZE = 512 * 1024; // 512 KB
-    private static final int MAX_UDP_PACKET_SIZE = 8192;
+    private DownloadListener listener;
+    private TransportFactory transportFactory = UdpTransport.FACTORY;
+    private int chunkTimeout = 10000; // 10 seconds
+    private boolean compression = true; // ask the peers to compress the chunks
+    private boolean fec = true; // ask the peers for parity fragments when fragments get lost
+    private Inflater inflater;
+    private BlockIndex blockIndex; // set to download by content-defined blocks
+    private List<Peer> blockSources = new ArrayList<>(); // other nodes that may have some of the blocks
+    private Map<Peer, int[]> blockSourceStats = new HashMap<>(); // blocks received and missing per other node
+    private RateLimiter rateLimiter; // shared limit of all downloads, null = unlimited
+    private int chunkSize; // chunk size of the file, as advertised by the peers
+    private volatile StreamWindow stream; // set to download in reading order, null for a normal download
+    private volatile boolean chunkMode; // downloading fixed chunks, the indices in completed are chunks
 
+    // State for pausing and resuming
+    private volatile boolean stopped;
+    private volatile boolean complete;
+    private volatile Transport activeSocket;
+    private final BitSet completed = new BitSet(); // chunks (or blocks in block mode) already written
+    private boolean completedBlocks; // the indices in completed are blocks
+    private byte[] packetBuffer; // receive buffer, reused for every packet
+    private static final ByteBuffer MISSING = ByteBuffer.allocate(0); // the peer does not have the requested block
+    private static final int MAX_REPAIRS = 3; // requests for the missing fragments in a row without any answer
+    private static final int MAX_COOKIES = 2; // cookies accepted for one request (the peer may renew it once)
+    private static final int MIN_GAP_TIMEOUT = 200; // ms without a fragment before the missing ones are requested
+    private static final int MAX_REPAIR_LIST = 600; // longest list of missing fragments in a request (it must fit in 1 KB)
 
-    public FileDownloader(String fileName, String fileHash, long fileSize, String targetFolderPath, List<Peer> peers, MainScreen mainScreen) {
+
+    public FileDownloader(String fileName, String fileHash, long fileSize, String targetFolderPath, List<Peer> peers, DownloadListener listener) {
         this.fileName = fileName;
         this.fileHash = fileHash;
         this.fileSize = fileSize;
         this.targetFolderPath = targetFolderPath;
         this.peers = peers;
-        this.mainScreen = mainScreen;
+        this.listener = listener;
+        this.chunkSize = FileMetadata.chunkSizeFor(fileSize);
+    }
+
+    // Constructor with an explicit transport (used by the load test)
+    public FileDownloader(String fileName, String fileHash, long fileSize, String targetFolderPath, List<Peer> peers, DownloadListener listener, TransportFactory transportFactory) {
+        this(fileName, fileHash, fileSize, targetFolderPath, peers, listener);
+        this.transportFactory = transportFactory;
+    }
+
+    // Enable or disable compressed chunks (enabled by default)
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    // Enable or disable parity fragments on lossy links (enabled by default, see ChunkFec)
+    public void setFec(boolean fec) {
+        this.fec = fec;
+    }
+
+    // Download by content-defined blocks: blocks found in local files are copied, the others can come from any node that has them
+    // Falls back to fixed chunks if the peers with the file do not send its block list
+    public void setBlockMode(BlockIndex blockIndex, List<Peer> blockSources) {
+        this.blockIndex = blockIndex;
+        this.blockSources = blockSources;
+    }
+
+    // Chunk size advertised with the file (512 KB for files of older nodes), set before resuming
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    // Download for a reader of the file (also while running): chunks in reading order from the position the reader waits at,
+    // each chunk is written to the file as soon as it arrives; block mode is not used for a streamed file
+    public void setStreaming(StreamWindow window) {
+        this.stream = window;
+        if (chunkMode) {
+            window.addAvailable(getCompleted());
+        }
+    }
+
+    // Limit the rate of the requested data (shared by the downloads of the node)
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    // Continue a stopped download: the chunks (or blocks) in completedUnits are already in the file
+    public void resumeFrom(BitSet completedUnits, boolean blocks) {
+        synchronized (completed) {
+            completed.clear();
+            completed.or(completedUnits);
+            completedBlocks = blocks;
+        }
+    }
+
+    // Chunks (or blocks) written so far, used to resume the download later
+    public BitSet getCompleted() {
+        synchronized (completed) {
+            return (BitSet) completed.clone();
+        }
+    }
+
+    // True if getCompleted() holds block indices
+    public boolean isCompletedBlocks() {
+        synchronized (completed) {
+            return completedBlocks;
+        }
+    }
+
+    // Stop the download as soon as possible, the written data is kept for resuming
+    public void stop() {
+        stopped = true;
+        Transport socket = activeSocket;
+        if (socket != null) {
+            socket.close(); // Wake up the receive
+        }
+    }
+
+    // True if the whole file was downloaded
+    public boolean isComplete() {
+        return complete;
+    }
+
+    // Set how long to wait for the next fragment of a chunk before requesting it again
+    public void setChunkTimeout(int millis) {
+        this.chunkTimeout = millis;
     }
 
     // This method is called when the thread is started
     @Override
     public void run() {
-        System.out.println("Starting download for " + fileName); // Uncomment for debugging
-        System.out.println("Peers: " + peers); // Uncomment for debugging
-        int totalChunks = (int) Math.ceil((double) fileSize / CHUNK_SIZE);
-        System.out.println("Total chunks: " + totalChunks); // Uncomment for debugging
-        boolean[] chunksReceived = new boolean[totalChunks];
-        File outputFile = new File(targetFolderPath, fileName);
-        
-        
-        try (RandomAccessFile file = new RandomAccessFile(outputFile, "rw")) {
-            int chunksDownloaded = 0;
-            while (chunksDownloaded < totalChunks) {
-                for (int i = 0; i < totalChunks; i++) {
-                    if (!chunksReceived[i]) {
+        try {
+            // The name is a path relative to the target folder (files in sub-folders of the peers)
+            File target = FileMetadata.resolve(targetFolderPath, fileName);
+            if (target == null) {
+                System.out.println("Not a valid path inside the download folder: " + fileName);
+                return;
+            }
+            target.getParentFile().mkdirs();
+
+            // A download that was started in fixed chunks continues in fixed chunks
+            boolean chunkProgress = !isCompletedBlocks() && !getCompleted().isEmpty();
+            if ((blockIndex == null || stream != null || chunkProgress || !downloadBlocks()) && !stopped) {
+                downloadChunks();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    // Download the file in fixed size chunks
+    private void downloadChunks() throws IOException {
+        // System.out.println("Starting download for " + fileName); // Uncomment for debugging
+        // System.out.println("Peers: " + peers); // Uncomment for debugging
+        int totalChunks = FileMetadata.chunkCount(fileSize, chunkSize);
+        // System.out.println("Total chunks: " + totalChunks); // Uncomment for debugging
+        boolean[] chunksRequested = new boolean[totalChunks];
+        File partFile = new File(targetFolderPath, fileName + ".part");
+        synchronized (completed) {
+            if (completedBlocks || !partFile.exists()) {
+                completed.clear(); // Nothing written by a previous chunk download
+            }
+            completedBlocks = false;
+        }
+        chunkMode = true;
+        StreamWindow window = stream;
+        if (window != null) {
+            window.addAvailable(getCompleted());
+        }
+
+        int chunksDownloaded = getCompleted().cardinality();
+        ChunkWriter file = new ChunkWriter(partFile, fileSize, this::markCompleted);
+        try {
+            while (chunksDownloaded < totalChunks && !stopped) {
+                for (int next = 0; next < totalChunks && !stopped; next++) {
+                    // A streamed file follows its reader, a failed chunk is requested again right away
+                    window = stream;
+                    int i = window != null ? window.nextChunk(index -> isCompleted(index) || file.isPending(index)) : next;
+                    if (i < 0) {
+                        break;
+                    }
+                    if (!isCompleted(i) && !file.isPending(i)) {
                         Peer selectedPeer = selectPeerForChunk(i);
-                        System.out.println("Selected peer: " + selectedPeer); // Uncomment for debugging
+                        // System.out.println("Selected peer: " + selectedPeer); // Uncomment for debugging
                         if (selectedPeer != null) {
-                            byte[] chunkData = receiveAndAssembleChunk(selectedPeer, i);
+                            // Requesting the same chunk again means the previous attempt failed
+                            if (chunksRequested[i]) {
+                                Metrics.get().retransmits.increment();
+                            }
+                            chunksRequested[i] = true;
+                            int chunkLength = FileMetadata.chunkLength(fileSize, chunkSize, i);
+                            acquireRate(chunkLength);
+                            ByteBuffer chunkData = receiveAndAssembleChunk(selectedPeer, i);
+                            if (chunkData != null && chunkData.remaining() != chunkLength) {
+                                // An older node that ignored the chunk size, or another version of the file
+                                System.out.println("Chunk " + i + " from " + selectedPeer + " has " + chunkData.remaining()
+                                        + " bytes instead of " + chunkLength);
+                                if (chunkData.isDirect()) {
+                                    BufferPool.CHUNKS.release(chunkData);
+                                }
+                                chunkData = null;
+                            }
                             if (chunkData != null) {
-                                System.out.println("Received chunk " + i + " from " + selectedPeer); // Uncomment for debugging
-                                writeChunkToFile(chunkData, i, file);
-                                chunksReceived[i] = true;
+                                // System.out.println("Received chunk " + i + " from " + selectedPeer); // Uncomment for debugging
+                                file.write(chunkData, (long) i * chunkSize, i);
+                                if (window != null) {
+                                    file.flush(); // Readable right away (forced to disk at the next checkpoint)
+                                    window.chunkAvailable(i);
+                                }
                                 chunksDownloaded++;
                                 updateDownloadProgress(chunksDownloaded, totalChunks);
                             }
@@ -59,96 +243,479 @@ public class FileDownloader implements Runnable {
                     }
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+        } finally {
+            file.close();
+        }
+        if (chunksDownloaded == totalChunks) {
+            complete = finishFile(partFile);
         }
     }
 
+    // Download the file block by block, returns false if no peer sent the block list of the file
+    // The file is written to a .part file first because blocks may be copied from an older version with the same name
+    private boolean downloadBlocks() throws IOException {
+        List<ContentChunker.Block> manifest = fetchManifest();
+        if (manifest == null) {
+            return false;
+        }
+
+        File partFile = new File(targetFolderPath, fileName + ".part");
+        Map<String, ContentChunker.Block> written = new HashMap<>(); // blocks already in the part file
+        synchronized (completed) {
+            if (!completedBlocks || !partFile.exists()) {
+                completed.clear(); // Nothing written by a previous block download
+            }
+            completedBlocks = true;
+        }
+        int blocksDownloaded = getCompleted().cardinality();
+        ChunkWriter file = new ChunkWriter(partFile, fileSize, this::markCompleted);
+        try {
+            for (int i = 0; i < manifest.size() && !stopped; i++) {
+                ContentChunker.Block block = manifest.get(i);
+                if (isCompleted(i)) {
+                    written.put(block.hash, block); // Written before the download was paused
+                    continue;
+                }
+                ByteBuffer blockData = readLocalBlock(block, written.get(block.hash), file);
+                if (blockData != null) {
+                    Metrics.get().blocksReused.increment();
+                    Metrics.get().dedupSavedBytes.add(block.length);
+                }
+                Set<Peer> missing = new HashSet<>(); // nodes that answered they do not have the block
+                if (blockData == null) {
+                    acquireRate(block.length);
+                }
+                while (blockData == null && !stopped) {
+                    Peer selectedPeer = selectPeerForBlock(missing);
+                    if (selectedPeer == null) {
+                        missing.clear(); // Every node was asked, start over
+                        continue;
+                    }
+                    blockData = receiveBlock(selectedPeer, block, missing);
+                }
+                if (blockData == null) {
+                    break; // Stopped
+                }
+
+                file.write(blockData, block.offset, i);
+                written.put(block.hash, block);
+                blocksDownloaded++;
+                updateDownloadProgress(blocksDownloaded, manifest.size());
+            }
+        } finally {
+            file.close();
+        }
+        if (blocksDownloaded < manifest.size()) {
+            return true; // Stopped, the part file is kept for resuming
+        }
+        if (finishFile(partFile)) {
+            // The blocks of the new file can be reused and served from now on
+            blockIndex.addManifest(new File(targetFolderPath, fileName), fileHash, manifest);
+            complete = true;
+        }
+        return true;
+    }
+
+    // Get the block list of the file page by page, null if the peers do not send it (e.g. older nodes)
+    private List<ContentChunker.Block> fetchManifest() throws IOException {
+        List<ContentChunker.Block> manifest = new ArrayList<>();
+        int totalBlocks = -1;
+        int page = 0;
+        int attempts = 0;
+        while (totalBlocks < 0 || manifest.size() < totalBlocks) {
+            Peer selectedPeer = selectPeerForChunk(page);
+            if (selectedPeer == null || stopped || attempts++ >= Math.max(2, peers.size())) {
+                return null;
+            }
+            ByteBuffer pageData = requestAndReceive(selectedPeer, "REQUEST_MANIFEST:" + fileHash + ":" + page, null, fileHash, -1 - page);
+            if (pageData == null || pageData == MISSING) {
+                continue;
+            }
+            byte[] bytes = new byte[pageData.remaining()];
+            pageData.get(bytes);
+            if (pageData.isDirect()) {
+                BufferPool.CHUNKS.release(pageData);
+            }
+            int received = manifest.size();
+            totalBlocks = ContentChunker.decodeManifestPage(bytes, manifest);
+            if (manifest.size() == received && received < totalBlocks) {
+                return null; // Empty page, the block list is inconsistent
+            }
+            page++;
+            attempts = 0;
+        }
+
+        // The blocks must cover the whole file
+        ContentChunker.Block last = manifest.isEmpty() ? null : manifest.get(manifest.size() - 1);
+        long length = last != null ? last.offset + last.length : 0;
+        return length == fileSize ? manifest : null;
+    }
+
+    // Read a block from the part file (same block earlier in the file) or from any local file, null if it is not available locally
+    private ByteBuffer readLocalBlock(ContentChunker.Block block, ContentChunker.Block writtenBlock, ChunkWriter file) throws IOException {
+        byte[] data = null;
+        if (writtenBlock != null) {
+            data = new byte[block.length];
+            file.read(writtenBlock.offset, data);
+        } else {
+            data = blockIndex.readBlock(block.hash); // Verified by the index
+        }
+        if (data == null || !ContentChunker.hashBlock(ByteBuffer.wrap(data)).equals(block.hash)) {
+            return null;
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    // Select a node for a block: the peers with the file always have it, the other nodes are asked until they miss too often
+    private Peer selectPeerForBlock(Set<Peer> missing) {
+        List<Peer> candidates = new ArrayList<>();
+        for (Peer peer : peers) {
+            if (!missing.contains(peer)) {
+                candidates.add(peer);
+            }
+        }
+        for (Peer peer : blockSources) {
+            int[] stats = blockSourceStats.computeIfAbsent(peer, k -> new int[2]);
+            if (!missing.contains(peer) && !peers.contains(peer) && stats[1] < stats[0] + 8) {
+                candidates.add(peer);
+            }
+        }
+        if (candidates.isEmpty()) return null;
+        return candidates.get(new Random().nextInt(candidates.size()));
+    }
+
+    // Request a block from a node and verify it, returns null if it failed (the node is added to missing if it does not have it)
+    private ByteBuffer receiveBlock(Peer peer, ContentChunker.Block block, Set<Peer> missing) throws IOException {
+        ByteBuffer blockData = requestAndReceive(peer, "REQUEST_BLOCK:" + block.hash, null, block.hash, 0);
+        int[] stats = blockSourceStats.get(peer);
+        if (blockData == MISSING) {
+            missing.add(peer);
+            if (stats != null) {
+                stats[1]++;
+            }
+            return null;
+        }
+        if (blockData == null) {
+            return null;
+        }
+        if (blockData.remaining() != block.length || !ContentChunker.hashBlock(blockData).equals(block.hash)) {
+            if (blockData.isDirect()) {
+                BufferPool.CHUNKS.release(blockData);
+            }
+            return null;
+        }
+        if (stats != null) {
+            stats[0]++;
+        }
+        return blockData;
+    }
+
     // Select a random peer from the list of peers
     private Peer selectPeerForChunk(int chunkIndex) {
         if (peers.isEmpty()) return null;
         return peers.get(new Random().nextInt(peers.size()));
     }
 
-    // Receive the chunk from the peer and assemble it
-    private byte[] receiveAndAssembleChunk(Peer peer, int chunkIndex) throws IOException {
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setSoTimeout(10000); // Set timeout to 10 seconds
-            requestChunkFromPeer(socket, peer, chunkIndex);
+    // Receive the chunk from the peer and assemble it (a direct buffer comes from BufferPool.CHUNKS and must be released)
+    private ByteBuffer receiveAndAssembleChunk(Peer peer, int chunkIndex) throws IOException {
+        return requestAndReceive(peer, "REQUEST_CHUNK:" + fileHash + ":" + chunkIndex, NodeDiscovery.CHUNK_SIZE_OPTION + chunkSize,
+                fileHash, chunkIndex);
+    }
+
+    // Send a request (with an extra option, or null) and assemble the fragments sent for (key, index), returns null if they
+    // did not all arrive or MISSING if the peer answered that it does not have the data
+    private ByteBuffer requestAndReceive(Peer peer, String request, String option, String key, int chunkIndex) throws IOException {
+        TransferEvents.ChunkDownload event = new TransferEvents.ChunkDownload();
+        event.begin();
+        ByteBuffer data = null;
+        event.result = "error";
+        try {
+            data = receiveData(peer, request, option, key, chunkIndex, event);
+            event.result = data == MISSING ? "missing" : data != null ? "completed" : stopped ? "stopped" : event.result;
+            return data;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.peer = peer.toString();
+                event.key = key;
+                event.chunkIndex = chunkIndex;
+                event.bytes = data != null ? data.remaining() : 0;
+                event.commit();
+            }
+        }
+    }
+
+    // Body of requestAndReceive, sets the details of the event (its result if the data did not arrive)
+    private ByteBuffer receiveData(Peer peer, String request, String option, String key, int chunkIndex,
+                                   TransferEvents.ChunkDownload event) throws IOException {
+        Transport socket = transportFactory.open(0);
+        activeSocket = socket;
+        try {
+            if (stopped) {
+                return null;
+            }
+            socket.setSoTimeout(chunkTimeout);
+            InetAddress address = InetAddress.getByName(peer.getIpAddress());
+            PathMtu path = PathMtu.forPeer(peer, transportFactory.getMtu(address));
+            int mtu = path.next();
+            event.mtu = mtu;
+
+            // Parity fragments as needed for the loss measured towards the peer, the same option in every request of the
+            // data so that the fragments asked again have the same size
+            ChunkFec loss = fec ? ChunkFec.forPeer(peer) : null;
+            int fecGroupSize = loss != null ? loss.groupSize() : 0;
+            if (fecGroupSize > 0) {
+                option = (option != null ? option + "," : "") + ChunkFec.OPTION + fecGroupSize;
+            }
+            long requestTime = System.nanoTime();
+            sendRequest(socket, peer, address, request, option, mtu, null);
+            Metrics metrics = Metrics.get();
+            LongAdder peerBytesReceived = metrics.peerReceived(peer.toString());
 
-            Map<Integer, byte[]> fragments = new HashMap<>();
-            int totalFragments = -1;
+            ChunkAssembler assembler = new ChunkAssembler(key, chunkIndex);
             boolean receivedAllFragments = false;
+            if (packetBuffer == null) {
+                packetBuffer = new byte[PathMtu.MAX_DATAGRAM + 20];
+            }
+            DatagramPacket packet = new DatagramPacket(packetBuffer, packetBuffer.length);
+            int repairs = 0;
+            int arrivedBeforeRepair = -1; // fragments of the first answer
+            int cookies = 0;
+            long lastArrival = 0;
+            long maxGap = 0;
+            int timeout = chunkTimeout; // current socket timeout
 
             // Keep receiving packets until all fragments are received
-            while (!receivedAllFragments) {
-                byte[] buffer = new byte[MAX_UDP_PACKET_SIZE + 20];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-
-                try {
-                    socket.receive(packet);
-                } catch (SocketTimeoutException e) {
-                    System.out.println("Socket timed out while waiting for chunk " + chunkIndex + " from " + peer);
-                    break;
-                }
+            // Once the fragments flow, a gap much longer than the gaps so far means the rest was lost: only the missing
+            // fragments are requested again (a lost datagram costs one fragment instead of the whole chunk)
+            try {
+                while (!receivedAllFragments) {
+                    packet.setLength(packetBuffer.length);
+                    try {
+                        socket.receive(packet);
+                        metrics.packetsReceived.increment();
+                        metrics.bytesReceived.add(packet.getLength());
+                        peerBytesReceived.add(packet.getLength());
+                    } catch (SocketTimeoutException e) {
+                        String missing = assembler.hasFragments() && repairs < MAX_REPAIRS
+                                ? assembler.getMissingFragments(MAX_REPAIR_LIST) : null;
+                        if (missing != null) {
+                            if (arrivedBeforeRepair < 0) {
+                                arrivedBeforeRepair = assembler.getArrived();
+                            }
+                            repairs++;
+                            event.repairs++;
+                            metrics.fragmentRepairs.increment();
+                            sendRequest(socket, peer, address, request, option, mtu, missing);
+                            timeout = chunkTimeout; // The request may wait in the queue of the peer
+                            socket.setSoTimeout(timeout);
+                            lastArrival = 0;
+                            continue;
+                        }
+                        System.out.println("Socket timed out while waiting for chunk " + chunkIndex + " from " + peer);
+                        metrics.timeouts.increment();
+                        event.result = "timeout";
+                        break;
+                    } catch (SocketException e) {
+                        if (stopped) {
+                            return null; // Closed by stop()
+                        }
+                        throw e;
+                    }
+
+                    // Text answers (NO_BLOCK, COOKIE), fragments start with the binary length of the key
+                    if (packet.getData()[0] == 'N') {
+                        return MISSING;
+                    }
+                    if (packet.getData()[0] == 'C' && cookies < MAX_COOKIES) {
+                        // The peer wants a cookie first: ask again with it right away
+                        String message = new String(packet.getData(), 0, packet.getLength());
+                        if (message.startsWith(PacketAuth.COOKIE_MESSAGE)) {
+                            cookies++;
+                            transportFactory.setCookie(address, message.substring(PacketAuth.COOKIE_MESSAGE.length()).trim());
+                            sendRequest(socket, peer, address, request, option, mtu, assembler.hasFragments()
+                                    ? assembler.getMissingFragments(MAX_REPAIR_LIST) : null);
+                        }
+                        continue;
+                    }
 
-                try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet.getData()))) {
-                    // Read the header of the packet to determine the type of packet
-                    String receivedFileHash = dis.readUTF();
-                    int receivedChunkIndex = dis.readInt();
-                    if (!receivedFileHash.equals(fileHash) || receivedChunkIndex != chunkIndex) {
-                        continue; // Skip if not the expected chunk
+                    // Copy the fragment to its place in the chunk, packets of other chunks are skipped
+                    if (assembler.add(packet.getData(), packet.getLength())) {
+                        receivedAllFragments = assembler.isComplete();
+                        event.fragments++;
+                        TransferEvents.FragmentReceived fragment = new TransferEvents.FragmentReceived();
+                        if (fragment.shouldCommit()) {
+                            fragment.peer = peer.toString();
+                            fragment.key = key;
+                            fragment.chunkIndex = chunkIndex;
+                            fragment.bytes = packet.getLength();
+                            fragment.commit();
+                        }
+                        repairs = 0; // The peer answers, a large chunk may need several repairs
+                        long now = System.nanoTime();
+                        if (lastArrival != 0) {
+                            maxGap = Math.max(maxGap, now - lastArrival);
+                        }
+                        lastArrival = now;
+                        int gapTimeout = (int) Math.min(chunkTimeout, Math.max(MIN_GAP_TIMEOUT, 4 * maxGap / 1_000_000));
+                        if (!receivedAllFragments && gapTimeout != timeout) {
+                            timeout = gapTimeout;
+                            socket.setSoTimeout(timeout);
+                        }
                     }
+                }
 
-                    // Read the fragment data from the packet
-                    int fragmentIndex = dis.readInt();
-                    totalFragments = dis.readInt();
-                    int size = dis.readInt();
-                    byte[] fragmentData = new byte[size];
-                    dis.readFully(fragmentData);
+                // Fragments of this size came through (even if some were lost), or none did
+                if (assembler.hasFragments()) {
+                    path.succeeded(mtu);
+                } else {
+                    path.failed(mtu);
+                }
 
-                    // Store the fragment data in a map
-                    fragments.put(fragmentIndex, fragmentData);
-                    receivedAllFragments = fragments.size() == totalFragments;
+                // Loss of the first answer, rebuilt or not
+                if (loss != null && assembler.hasFragments()) {
+                    int total = assembler.getTotalFragments();
+                    loss.record(total, total - (arrivedBeforeRepair >= 0 ? arrivedBeforeRepair : assembler.getArrived()));
+                }
+                if (assembler.getRecovered() > 0) {
+                    metrics.fragmentsRecovered.add(assembler.getRecovered());
+                    event.recovered = assembler.getRecovered();
+                }
+                if (!receivedAllFragments) {
+                    return null; // Fragments are still missing, the chunk is requested again
                 }
+                metrics.chunksReceived.increment();
+                metrics.chunkLatency.record((System.nanoTime() - requestTime) / 1_000_000);
+
+                ByteBuffer chunkData = assembler.take();
+                if (assembler.getEncoding() == ChunkCompression.RAW) {
+                    return chunkData;
+                }
+                ByteBuffer rawData = decompressChunk(chunkData, assembler.getRawLength());
+                if (chunkData.isDirect()) {
+                    BufferPool.CHUNKS.release(chunkData);
+                }
+                if (rawData == null) {
+                    event.result = "corrupt";
+                }
+                return rawData;
+            } finally {
+                assembler.release();
             }
+        } finally {
+            activeSocket = null;
+            socket.close();
+        }
+    }
 
-            // Assemble the chunk from the fragments
-            return assembleChunk(fragments, totalFragments);
+    // Wait until the rate limit allows to request the bytes
+    private void acquireRate(long bytes) {
+        if (rateLimiter != null) {
+            try {
+                rateLimiter.acquire(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopped = true;
+            }
         }
     }
 
-    // Send a request to the peer to send the chunk
-    private void requestChunkFromPeer(DatagramSocket socket, Peer peer, int chunkIndex) throws IOException {
-        String request = "REQUEST_CHUNK:" + fileHash + ":" + chunkIndex;
-        byte[] requestData = request.getBytes();
-        InetAddress address = InetAddress.getByName(peer.getIpAddress());
+    private boolean isCompleted(int index) {
+        synchronized (completed) {
+            return completed.get(index);
+        }
+    }
+
+    private void markCompleted(int index) {
+        synchronized (completed) {
+            completed.set(index);
+        }
+        StreamWindow window = stream;
+        if (window != null && chunkMode) {
+            window.chunkAvailable(index); // Written before the download was streamed
+        }
+    }
+
+    // Decompress a chunk into a pooled buffer, returns null if the data is corrupt
+    private ByteBuffer decompressChunk(ByteBuffer compressed, int rawLength) {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        ByteBuffer buffer = BufferPool.CHUNKS.acquire(rawLength);
+        buffer.limit(rawLength);
+        if (!ChunkCompression.inflate(inflater, compressed, buffer, rawLength)) {
+            if (buffer.isDirect()) {
+                BufferPool.CHUNKS.release(buffer);
+            }
+            return null;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Send a request (chunk, manifest page or block) to the peer
+    // Options: compression, the MTU of the fragments (mtu=<bytes>, IP packet size), the extra option of the request (null if none)
+    // the fragments to send again (null for all) and the cookie the peer gave to this node
+    private void sendRequest(Transport socket, Peer peer, InetAddress address, String request, String option, int mtu,
+                             String missing) throws IOException {
+        byte[] requestData = encodeRequest(request, compression, mtu, option, missing, transportFactory.getCookie(address));
         DatagramPacket requestPacket = new DatagramPacket(requestData, requestData.length, address, peer.getPort());
         socket.send(requestPacket);
+        TransferEvents.ChunkRequested event = new TransferEvents.ChunkRequested();
+        if (event.shouldCommit()) {
+            event.peer = peer.toString();
+            event.request = request;
+            event.mtu = mtu;
+            event.repair = missing != null;
+            event.commit();
+        }
+        Metrics.get().chunksRequested.increment();
+        Metrics.get().packetsSent.increment();
+        Metrics.get().bytesSent.add(requestData.length);
     }
 
-    // Assemble the chunk from the fragments
-    private byte[] assembleChunk(Map<Integer, byte[]> fragments, int totalFragments) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        for (int i = 0; i < totalFragments; i++) {
-            byte[] fragment = fragments.get(i);
-            if (fragment != null) {
-                baos.write(fragment, 0, fragment.length);
-            }
+    // Request with its options (also used by FolderDownloader)
+    static byte[] encodeRequest(String request, boolean compression, int mtu, String option, String missing, String cookie) {
+        request += ":" + (compression ? ChunkCompression.OPTION + "," : "") + PathMtu.OPTION + mtu;
+        if (option != null) {
+            request += "," + option;
+        }
+        if (missing != null) {
+            request += "," + ChunkAssembler.FRAGMENTS_OPTION + missing;
+        }
+        if (cookie != null) {
+            request += "," + PacketAuth.COOKIE_OPTION + cookie;
         }
-        return baos.toByteArray();
+        return request.getBytes();
     }
 
-    // Write the chunk data to the file
-    private void writeChunkToFile(byte[] chunkData, int chunkIndex, RandomAccessFile file) throws IOException {
-        long offset = (long) chunkIndex * CHUNK_SIZE;
-        file.seek(offset);
-        file.write(chunkData);
+    // Verify the written part file and rename it to the file name, returns false if its content is not the expected file
+    // (the part file is deleted and the download starts over)
+    private boolean finishFile(File partFile) throws IOException {
+        if (!fileHash.equals(FileMetadata.calculateHash(partFile))) {
+            System.out.println("Downloaded file does not match its hash, starting over: " + fileName);
+            StreamWindow window = stream;
+            if (window != null) {
+                window.fail("Downloaded data does not match the hash of " + fileName); // Already read by the reader
+            }
+            synchronized (completed) {
+                completed.clear();
+            }
+            partFile.delete();
+            return false;
+        }
+        Path target = new File(targetFolderPath, fileName).toPath();
+        try {
+            Files.move(partFile.toPath(), target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partFile.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
     }
 
-    // Update the progress of the download on the main screen
+    // Update the progress of the download on the listener (main screen or headless node)
     private void updateDownloadProgress(int chunksDownloaded, int totalChunks) {
         int progressPercentage = (int) (((double) chunksDownloaded / totalChunks) * 100);
-        mainScreen.updateDownloadProgress(fileName, progressPercentage);
+        listener.updateDownloadProgress(fileName, progressPercentage);
     }
 }
@@ -0,0 +1,174 @@
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+// Hashes the shared files on a background thread, so a node announces each file as soon as its hash is ready instead of
+// after hashing the whole share; files a peer searches for move to the front of the queue
+// Hashes are kept per file with its size and modification time, an unchanged file is never hashed again
+class FileHasher {
+    // Hash of a file as it was when it was hashed
+    private static class Entry {
+        final long length;
+        final long lastModified;
+        final String fileHash;
+
+        Entry(long length, long lastModified, String fileHash) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.fileHash = fileHash;
+        }
+    }
+
+    private final Map<File, Entry> hashes = new ConcurrentHashMap<>();
+    private final ArrayDeque<File> queue = new ArrayDeque<>(); // guarded by this
+    private final Set<File> queued = new HashSet<>(); // guarded by this
+    private final BiConsumer<File, String> onHashed; // called on the hashing thread
+    private File current; // being hashed, guarded by this
+    private int hashedInRun; // hashed since the queue was last empty, guarded by this
+    private Thread thread;
+
+    FileHasher(BiConsumer<File, String> onHashed) {
+        this.onHashed = onHashed;
+    }
+
+    // Start the hashing thread
+    synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this::run, "file-hasher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Stop the hashing thread, the queued files are dropped
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        queue.clear();
+        queued.clear();
+    }
+
+    // Hash of the file if it was hashed and has not changed since, null otherwise
+    String getHash(File file) {
+        Entry entry = hashes.get(file);
+        if (entry != null && entry.length == file.length() && entry.lastModified == file.lastModified()) {
+            return entry.fileHash;
+        }
+        return null;
+    }
+
+    // Queue the files that have no current hash (in the given order)
+    synchronized void submit(Collection<File> files) {
+        for (File file : files) {
+            if (!queued.contains(file) && getHash(file) == null) {
+                queued.add(file);
+                queue.addLast(file);
+            }
+        }
+        notifyAll();
+    }
+
+    // Move the queued files that match to the front of the queue, returns how many were moved
+    synchronized int prioritize(Predicate<File> filter) {
+        ArrayDeque<File> first = new ArrayDeque<>();
+        for (Iterator<File> it = queue.iterator(); it.hasNext(); ) {
+            File file = it.next();
+            if (filter.test(file)) {
+                it.remove();
+                first.addLast(file);
+            }
+        }
+        int moved = first.size();
+        while (!first.isEmpty()) {
+            queue.addFirst(first.pollLast());
+        }
+        return moved;
+    }
+
+    // Drop the hash of a file that is no longer shared
+    void forget(File file) {
+        hashes.remove(file);
+    }
+
+    // Hash of the file, computed on the calling thread if it has no current hash (null if it cannot be read)
+    String hashNow(File file) {
+        String fileHash = getHash(file);
+        return fileHash != null ? fileHash : hash(file);
+    }
+
+    // Files waiting to be hashed
+    synchronized int getQueueDepth() {
+        return queue.size() + (current != null ? 1 : 0);
+    }
+
+    // Files hashed since hashing started after an idle time (0 when idle)
+    synchronized int getHashedCount() {
+        return hashedInRun;
+    }
+
+    // True while files are waiting or being hashed
+    synchronized boolean isBusy() {
+        return current != null || !queue.isEmpty();
+    }
+
+    // Hashing loop
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            File file;
+            synchronized (this) {
+                try {
+                    while (queue.isEmpty()) {
+                        hashedInRun = 0;
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                file = queue.pollFirst();
+                queued.remove(file);
+                current = file;
+            }
+            try {
+                String fileHash = hash(file);
+                if (fileHash != null) {
+                    onHashed.accept(file, fileHash);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                synchronized (this) {
+                    current = null;
+                    hashedInRun++;
+                }
+            }
+        }
+    }
+
+    // Hash a file and keep the hash with the size and time it had before (a file that changes meanwhile is hashed again)
+    private String hash(File file) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        TransferEvents.FileHashed event = new TransferEvents.FileHashed();
+        event.begin();
+        String fileHash = FileMetadata.calculateHash(file);
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = file.getPath();
+            event.bytes = length;
+            event.commit();
+        }
+        if (fileHash != null) {
+            hashes.put(file, new Entry(length, lastModified, fileHash));
+        }
+        return fileHash;
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.swing.AbstractListModel;
+
+// List model of the files found in the network ("path:hash" keys), indexed by key and by hash
+public class FileListModel extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_REMOVED_RANGES = 32; // above this, removals are reported as one change
+
+    private final List<String> keys = new ArrayList<>();
+    private final Map<String, Integer> positions = new HashMap<>(); // key -> index in keys
+    private final Map<String, FileMetadata> metadataByKey = new HashMap<>();
+    private final Map<String, Set<String>> keysByHash = new HashMap<>();
+
+    @Override
+    public int getSize() {
+        return keys.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return keys.get(index);
+    }
+
+    // Metadata of the file shown with the given key
+    public FileMetadata getMetadata(String key) {
+        return metadataByKey.get(key);
+    }
+
+    public boolean containsKey(String key) {
+        return positions.containsKey(key);
+    }
+
+    // Add the files that are not in the list yet, with one notification for the whole batch
+    public void addAll(Collection<FileMetadata> files) {
+        int first = keys.size();
+        for (FileMetadata metadata : files) {
+            String key = FileMetadata.keyOf(metadata);
+            metadataByKey.put(key, metadata); // Keep the latest owner information
+            if (!positions.containsKey(key)) {
+                positions.put(key, keys.size());
+                keys.add(key);
+                keysByHash.computeIfAbsent(metadata.getFileHash(), k -> new HashSet<>()).add(key);
+            }
+        }
+        if (keys.size() > first) {
+            fireIntervalAdded(this, first, keys.size() - 1);
+        }
+    }
+
+    // Remove every file with one of the hashes, with one notification per removed range
+    public void removeHashes(Collection<String> fileHashes) {
+        boolean[] removed = new boolean[keys.size()];
+        boolean any = false;
+        for (String fileHash : fileHashes) {
+            Set<String> hashKeys = keysByHash.remove(fileHash);
+            if (hashKeys == null) {
+                continue;
+            }
+            for (String key : hashKeys) {
+                removed[positions.remove(key)] = true;
+                metadataByKey.remove(key);
+                any = true;
+            }
+        }
+        if (!any) {
+            return;
+        }
+
+        // Compact the list once and renumber the remaining keys
+        List<int[]> ranges = new ArrayList<>();
+        int write = 0;
+        for (int read = 0; read < removed.length; read++) {
+            if (removed[read]) {
+                if (!ranges.isEmpty() && ranges.get(ranges.size() - 1)[1] == read - 1) {
+                    ranges.get(ranges.size() - 1)[1] = read;
+                } else {
+                    ranges.add(new int[]{read, read});
+                }
+                continue;
+            }
+            String key = keys.get(read);
+            keys.set(write, key);
+            positions.put(key, write);
+            write++;
+        }
+        keys.subList(write, keys.size()).clear();
+
+        if (ranges.size() > MAX_REMOVED_RANGES) {
+            // Scattered removals: report the shrunk tail and the shifted rows instead of one event per range
+            fireIntervalRemoved(this, write, removed.length - 1);
+            if (write > ranges.get(0)[0]) {
+                fireContentsChanged(this, ranges.get(0)[0], write - 1);
+            }
+            return;
+        }
+
+        // Notify from the end so that the indices of the earlier ranges stay valid
+        for (int i = ranges.size() - 1; i >= 0; i--) {
+            fireIntervalRemoved(this, ranges.get(i)[0], ranges.get(i)[1]);
+        }
+    }
+
+    // Remove everything
+    public void clear() {
+        int size = keys.size();
+        keys.clear();
+        positions.clear();
+        metadataByKey.clear();
+        keysByHash.clear();
+        if (size > 0) {
+            fireIntervalRemoved(this, 0, size - 1);
+        }
+    }
+}
@@ -1,21 +1,133 @@
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.MessageDigest;
 
 public class FileMetadata {
+    // Chunk sizes: a power of two chosen from the file size and advertised with the file
+    public static final int LEGACY_CHUNK_SIZE = 512 * 1024; // used by older nodes for every file
+    public static final int MIN_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int TARGET_CHUNKS = 64; // chunks per file between the two limits
+
     // Instance Variables for FileMetadata
     private String fileName;
     private long fileSize;
     private String ownerIP;
     private int ownerPort;
     private String fileHash;
+    private int chunkSize;
+    private String path; // relative to the shared folder, '/' separated (the file name for files at its top)
 
     public FileMetadata(String fileName, long fileSize, String ownerIP, int ownerPort, String fileHash) {
+        this(fileName, fileSize, ownerIP, ownerPort, fileHash, chunkSizeFor(fileSize));
+    }
+
+    public FileMetadata(String fileName, long fileSize, String ownerIP, int ownerPort, String fileHash, int chunkSize) {
+        this(fileName, fileSize, ownerIP, ownerPort, fileHash, chunkSize, fileName);
+    }
+
+    public FileMetadata(String fileName, long fileSize, String ownerIP, int ownerPort, String fileHash, int chunkSize, String path) {
         this.fileName = fileName;
         this.fileSize = fileSize;
         this.ownerIP = ownerIP;
         this.ownerPort = ownerPort;
         this.fileHash = fileHash;
+        this.chunkSize = chunkSize;
+        this.path = path;
+    }
+
+    // Chunk size for a file: small files get small chunks (one round trip, more peers in parallel),
+    // large files get large ones (fewer requests)
+    public static int chunkSizeFor(long fileSize) {
+        long target = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, (fileSize + TARGET_CHUNKS - 1) / TARGET_CHUNKS));
+        return Integer.highestOneBit((int) target - 1) << 1; // Rounded up to a power of two
+    }
+
+    // True if a node may ask for chunks of this size
+    public static boolean isValidChunkSize(int chunkSize) {
+        return chunkSize >= MIN_CHUNK_SIZE && chunkSize <= MAX_CHUNK_SIZE && Integer.bitCount(chunkSize) == 1;
+    }
+
+    // Number of chunks of a file
+    public static int chunkCount(long fileSize, int chunkSize) {
+        return (int) ((fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    // Length of a chunk of a file (the last one may be shorter)
+    public static int chunkLength(long fileSize, int chunkSize, int chunkIndex) {
+        return (int) Math.max(0, Math.min(chunkSize, fileSize - (long) chunkIndex * chunkSize));
+    }
+
+    // Path of a file relative to a folder ('/' separated), the file name if it is not inside the folder
+    public static String relativePath(File folder, File file) {
+        Path base = folder.toPath().toAbsolutePath().normalize();
+        Path target = file.toPath().toAbsolutePath().normalize();
+        if (!target.startsWith(base) || target.equals(base)) {
+            return file.getName();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Path part : base.relativize(target)) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+
+    // True if a path received from another node stays inside the folder it is written to:
+    // relative, '/' separated, without empty, "." or ".." parts, drive letters or backslashes
+    public static boolean isSafePath(String path) {
+        if (path == null || path.isEmpty() || path.startsWith("/") || path.indexOf('\\') >= 0 || path.indexOf(':') >= 0
+                || path.indexOf('\0') >= 0) {
+            return false;
+        }
+        for (String part : path.split("/", -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // File of a relative path inside a folder, null if the path is not safe or leaves the folder (e.g. through a link)
+    public static File resolve(String folder, String path) {
+        if (!isSafePath(path)) {
+            return null;
+        }
+        File base = new File(folder);
+        File file = new File(base, path);
+        try {
+            String canonicalBase = base.getCanonicalPath();
+            String canonicalFile = file.getCanonicalPath();
+            if (!canonicalFile.startsWith(canonicalBase + File.separator)) {
+                return null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return file;
+    }
+
+    // Path as sent in a file broadcast (URL encoded, so that it holds no ':')
+    static String encodePath(String path) {
+        return URLEncoder.encode(path, StandardCharsets.UTF_8);
+    }
+
+    // Path of a file broadcast, null if it is not valid
+    static String decodePath(String value) {
+        try {
+            String path = URLDecoder.decode(value, StandardCharsets.UTF_8);
+            return isSafePath(path) ? path : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
     // Hashing Method based on the content of the file - ( Which helps us to identify the files that have the same content but different names )
@@ -48,6 +160,11 @@ public class FileMetadata {
         return stringBuffer.toString();
     }
 
+    // Unique key of a file (in case of duplicate file names), with its folder for files in sub-folders
+    public static String keyOf(FileMetadata metadata) {
+        return metadata.getPath() + ":" + metadata.getFileHash();
+    }
+
     // Getters and toString Method
     public String getFileName() {
         return fileName;
@@ -65,8 +182,22 @@ public class FileMetadata {
         return ownerPort;
     }
 
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    // The path is only added for files in sub-folders (older nodes ignore it)
     @Override
     public String toString() {
-        return fileName + ":" + fileSize + ":" + ownerIP + ":" + ownerPort + ":" + fileHash;
+        String text = fileName + ":" + fileSize + ":" + ownerIP + ":" + ownerPort + ":" + fileHash + ":" + chunkSize;
+        return path.equals(fileName) ? text : text + ":" + encodePath(path);
     }
 }
@@ -15,8 +15,16 @@ public class FileScanner {
 
     // Scan the shared folder for files
     public List<File> scanForFiles() {
+        TransferEvents.ScanCompleted event = new TransferEvents.ScanCompleted();
+        event.begin();
         List<File> fileList = new ArrayList<>();
         scanDirectory(new File(sharedFolderPath), fileList);
+        event.end();
+        if (event.shouldCommit()) {
+            event.folder = sharedFolderPath;
+            event.files = fileList.size();
+            event.commit();
+        }
         return fileList;
     }
 
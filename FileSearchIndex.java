@@ -0,0 +1,278 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Incremental trigram index over the names of the files in the network, with extension and size filters
+// Query syntax: words (all must appear in the name), ext:pdf, >10MB, <1GB, hash:<sha-256>
+public class FileSearchIndex {
+    // Entries by id, deleted entries are only marked (ids are never reused until the index is rebuilt)
+    private final List<FileMetadata> entries = new ArrayList<>();
+    private final List<String> lowerNames = new ArrayList<>();
+    private final BitSet alive = new BitSet();
+    private final Map<String, Integer> idByKey = new HashMap<>(); // "name:hash" -> id
+    private final Map<String, int[]> idsByHash = new HashMap<>();
+    private final Map<Long, Postings> postings = new HashMap<>(); // trigram -> ids in increasing order
+    private int deletedCount;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Sorted list of entry ids containing a trigram
+    private static class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return; // Trigram repeated in the same name
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    // Add a file if it is not in the index yet, returns true if it was added
+    public boolean add(FileMetadata metadata) {
+        String key = FileMetadata.keyOf(metadata);
+        lock.writeLock().lock();
+        try {
+            if (idByKey.containsKey(key)) {
+                return false;
+            }
+            int id = entries.size();
+            String lowerName = metadata.getFileName().toLowerCase(Locale.ROOT);
+            entries.add(metadata);
+            lowerNames.add(lowerName);
+            alive.set(id);
+            idByKey.put(key, id);
+            int[] hashIds = idsByHash.get(metadata.getFileHash());
+            if (hashIds == null) {
+                idsByHash.put(metadata.getFileHash(), new int[]{id});
+            } else {
+                int[] grown = Arrays.copyOf(hashIds, hashIds.length + 1);
+                grown[hashIds.length] = id;
+                idsByHash.put(metadata.getFileHash(), grown);
+            }
+            for (int i = 0; i + 3 <= lowerName.length(); i++) {
+                postings.computeIfAbsent(trigram(lowerName, i), k -> new Postings()).add(id);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Remove every file with the hash
+    public void removeHash(String fileHash) {
+        lock.writeLock().lock();
+        try {
+            int[] ids = idsByHash.remove(fileHash);
+            if (ids == null) {
+                return;
+            }
+            for (int id : ids) {
+                alive.clear(id);
+                idByKey.remove(FileMetadata.keyOf(entries.get(id)));
+                deletedCount++;
+            }
+
+            // Rebuild when most of the index is made of deleted entries
+            if (deletedCount > 1024 && deletedCount > entries.size() / 2) {
+                rebuild();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Remove everything
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            entries.clear();
+            lowerNames.clear();
+            alive.clear();
+            idByKey.clear();
+            idsByHash.clear();
+            postings.clear();
+            deletedCount = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size() - deletedCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Find the files matching the query, at most limit results
+    public List<FileMetadata> search(String query, int limit) {
+        Query parsed = new Query(query);
+        List<String> words = parsed.words;
+        String hash = parsed.hash;
+
+        List<FileMetadata> results = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            // Candidates: intersection of the postings of the trigrams of the words (or every entry)
+            int[] candidates = null;
+            int candidateCount = 0;
+            if (hash != null) {
+                // Only the entries with the hash
+                int[] hashIds = idsByHash.get(hash);
+                if (hashIds == null) {
+                    return results;
+                }
+                candidates = hashIds.clone();
+                candidateCount = hashIds.length;
+            }
+            for (String word : words) {
+                for (int i = 0; i + 3 <= word.length(); i++) {
+                    Postings list = postings.get(trigram(word, i));
+                    if (list == null) {
+                        return results; // No name contains this trigram
+                    }
+                    if (candidates == null) {
+                        candidates = Arrays.copyOf(list.ids, list.size);
+                        candidateCount = list.size;
+                    } else if (hash != null) {
+                        continue; // The few entries of the hash are verified below
+                    } else {
+                        candidateCount = intersect(candidates, candidateCount, list);
+                    }
+                }
+            }
+
+            int count = candidates != null ? candidateCount : entries.size();
+            for (int c = 0; c < count && results.size() < limit; c++) {
+                int id = candidates != null ? candidates[c] : c;
+                if (!alive.get(id)) {
+                    continue;
+                }
+                // Verify the words (trigrams may come from different places, short words have none)
+                FileMetadata metadata = entries.get(id);
+                if (parsed.matches(lowerNames.get(id), metadata.getFileSize())) {
+                    results.add(metadata);
+                }
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // True if a file that is not in an index (no hash yet) matches the name and size filters of the query
+    // (a query for a hash matches no such file)
+    static boolean matches(String query, String fileName, long fileSize) {
+        Query parsed = new Query(query);
+        return parsed.hash == null && parsed.matches(fileName.toLowerCase(Locale.ROOT), fileSize);
+    }
+
+    // A parsed query
+    private static class Query {
+        final List<String> words = new ArrayList<>();
+        String extension;
+        String hash;
+        long minSize = 0;
+        long maxSize = Long.MAX_VALUE;
+
+        Query(String query) {
+            for (String token : query.toLowerCase(Locale.ROOT).trim().split("\\s+")) {
+                if (token.isEmpty()) {
+                    continue;
+                }
+                if (token.startsWith("ext:") && token.length() > 4) {
+                    extension = "." + token.substring(4);
+                } else if (token.startsWith("hash:") && token.length() > 5) {
+                    hash = token.substring(5);
+                } else if (token.startsWith(">") && parseSize(token.substring(1)) >= 0) {
+                    minSize = parseSize(token.substring(1));
+                } else if (token.startsWith("<") && parseSize(token.substring(1)) >= 0) {
+                    maxSize = parseSize(token.substring(1));
+                } else {
+                    words.add(token);
+                }
+            }
+        }
+
+        // Words, extension and size filters (the hash is checked by the index)
+        boolean matches(String lowerName, long size) {
+            for (String word : words) {
+                if (!lowerName.contains(word)) {
+                    return false;
+                }
+            }
+            return (extension == null || lowerName.endsWith(extension)) && size >= minSize && size <= maxSize;
+        }
+    }
+
+    // Keep the candidates that are also in the postings, returns the new count
+    private static int intersect(int[] candidates, int count, Postings list) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            int id = candidates[i];
+            while (j < list.size && list.ids[j] < id) {
+                j++;
+            }
+            if (j < list.size && list.ids[j] == id) {
+                candidates[kept++] = id;
+            }
+        }
+        return kept;
+    }
+
+    // Pack three characters into a key
+    private static long trigram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    // Parse 10, 10kb, 10mb, 1.5gb... returns -1 if invalid
+    static long parseSize(String text) {
+        long multiplier = 1;
+        String number = text;
+        if (text.endsWith("kb") || text.endsWith("k")) {
+            multiplier = 1024L;
+        } else if (text.endsWith("mb") || text.endsWith("m")) {
+            multiplier = 1024L * 1024;
+        } else if (text.endsWith("gb") || text.endsWith("g")) {
+            multiplier = 1024L * 1024 * 1024;
+        }
+        number = number.replaceAll("[a-z]+$", "");
+        try {
+            return (long) (Double.parseDouble(number) * multiplier);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Rebuild the index without the deleted entries (called with the write lock held)
+    private void rebuild() {
+        List<FileMetadata> remaining = new ArrayList<>();
+        for (int id = alive.nextSetBit(0); id >= 0; id = alive.nextSetBit(id + 1)) {
+            remaining.add(entries.get(id));
+        }
+        entries.clear();
+        lowerNames.clear();
+        alive.clear();
+        idByKey.clear();
+        idsByHash.clear();
+        postings.clear();
+        deletedCount = 0;
+        for (FileMetadata metadata : remaining) {
+            add(metadata); // The write lock is reentrant
+        }
+    }
+}
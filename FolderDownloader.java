@@ -0,0 +1,746 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.zip.Inflater;
+
+// Downloads the files of a folder (relative paths) into a target folder
+// The small files share one socket: the chunks of the next files are requested while the answers of the previous ones
+// arrive, up to a window of requests per peer, so that a tree of many small files is bound by the bandwidth rather than
+// by one round trip per file; larger files go to the download queue
+// A peer serves the requests of a host in order, so an answer to a later request means that the earlier ones were lost:
+// only their missing fragments are requested again; the requests to a peer that stays silent are sent again
+// Files already present with the same content are skipped, and files with the same content are downloaded once
+public class FolderDownloader implements Runnable {
+    static final long MAX_PIPELINED_SIZE = 1024 * 1024; // larger files are downloaded by the download queue
+    private static final int WINDOW = 32; // outstanding requests per peer (a peer queues at most 64 requests of a host)
+    private static final long MAX_BUFFERED = 32 * 1024 * 1024; // data of the files being downloaded, held in memory
+    private static final int MIN_TIMEOUT = 200; // ms of silence of a peer before its outstanding requests are sent again
+    private static final int POLL_INTERVAL = 50; // ms between two checks of the timeouts
+    private static final int MAX_ATTEMPTS = 5; // requests for a chunk without any progress before another peer is tried
+    private static final int MAX_RESTARTS = 2; // downloads of a file whose content does not match its hash
+    private static final int MAX_REPAIR_LIST = 600; // longest list of missing fragments in a request (it must fit in 1 KB)
+    private static final int WRITERS = 4; // threads writing the complete files (creating a file costs more than receiving it)
+
+    // A file to download, with every path that has its content
+    private static class FileTask {
+        final FileMetadata metadata;
+        final List<File> targets = new ArrayList<>();
+        final Set<Peer> failedPeers = new HashSet<>(); // peers that did not send its chunks
+        List<Peer> peers;
+        byte[] data; // while it is downloaded
+        int remaining; // chunks not received yet
+        int restarts;
+        boolean finished;
+
+        FileTask(FileMetadata metadata) {
+            this.metadata = metadata;
+        }
+    }
+
+    // Request for one chunk of a file
+    private static class Request {
+        final FileTask file;
+        final int index;
+        PeerState peer; // null while it waits to be sent
+        ChunkAssembler assembler;
+        long sequence; // order of the last request sent for it among the requests to the peer
+        long firstSent;
+        long sentAt;
+        int mtu;
+        int attempts;
+        String cookie; // sent with the last request, null if none
+
+        Request(FileTask file, int index) {
+            this.file = file;
+            this.index = index;
+        }
+    }
+
+    // A peer and the requests waiting for its answer, by sequence
+    private static class PeerState {
+        final Peer peer;
+        final InetAddress address;
+        final PathMtu path;
+        final LongAdder bytesReceived; // per-peer metric, looked up once
+        final TreeMap<Long, Request> outstanding = new TreeMap<>();
+        long nextSequence;
+        long lastPacket;
+
+        PeerState(Peer peer, InetAddress address, PathMtu path) {
+            this.peer = peer;
+            this.address = address;
+            this.path = path;
+            this.bytesReceived = Metrics.get().peerReceived(peer.toString());
+        }
+    }
+
+    private final String name; // shown in the progress
+    private final List<FileMetadata> files;
+    private final String targetFolderPath;
+    private final Function<String, List<Peer>> peerLookup;
+    private final DownloadListener listener;
+    private TransportFactory transportFactory = UdpTransport.FACTORY;
+    private RateLimiter rateLimiter; // shared limit of all downloads, null = unlimited
+    private DownloadManager queue; // downloads the larger files, null to skip them
+    private int queuePriority;
+    private Function<String, File> localLookup; // shared file with a hash, copied instead of downloaded
+    private boolean compression = true;
+    private int chunkTimeout = 10000; // longest wait for a silent peer
+
+    private final ArrayDeque<Request> pending = new ArrayDeque<>(); // chunks to request, in path order
+    private final Map<String, Request> inFlight = new HashMap<>(); // "hash:index" -> request sent
+    private final Map<Peer, PeerState> peerStates = new HashMap<>();
+    private final List<FileTask> queued = new ArrayList<>(); // larger files with more than one path, copied once downloaded
+    private final MessageDigest digest;
+    private Transport socket;
+    private Inflater inflater;
+    private final AtomicLong buffered = new AtomicLong(); // bytes of the files being downloaded or written
+    private ExecutorService writers;
+    private long smoothedLatency = -1; // ns from the last request for a chunk to its last fragment
+    private int filesDone;
+    private int filesFailed;
+    private int lastProgress = -1;
+
+    private volatile boolean stopped;
+    private volatile boolean complete;
+
+    public FolderDownloader(String name, List<FileMetadata> files, String targetFolderPath, Function<String, List<Peer>> peerLookup,
+                            DownloadListener listener) {
+        this.name = name;
+        this.files = files;
+        this.targetFolderPath = targetFolderPath;
+        this.peerLookup = peerLookup;
+        this.listener = listener;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Constructor with an explicit transport (used by the load test)
+    public FolderDownloader(String name, List<FileMetadata> files, String targetFolderPath, Function<String, List<Peer>> peerLookup,
+                            DownloadListener listener, TransportFactory transportFactory) {
+        this(name, files, targetFolderPath, peerLookup, listener);
+        this.transportFactory = transportFactory;
+    }
+
+    // True if the file is downloaded with the other small files of the folder (in memory), false if it goes to the queue
+    static boolean isPipelined(FileMetadata metadata) {
+        return metadata.getFileSize() <= MAX_PIPELINED_SIZE;
+    }
+
+    // Queue the larger files in the download manager (without it they are skipped)
+    public void setQueue(DownloadManager queue, int priority) {
+        this.queue = queue;
+        this.queuePriority = priority;
+    }
+
+    // Where to find a local file with the content of a file (the shared files of the node)
+    public void setLocalLookup(Function<String, File> localLookup) {
+        this.localLookup = localLookup;
+    }
+
+    // Limit the rate of the requested data (shared by the downloads of the node)
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    // Enable or disable compressed chunks (enabled by default)
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    // Longest wait for a peer that stopped answering before its requests are sent again
+    public void setChunkTimeout(int millis) {
+        this.chunkTimeout = millis;
+    }
+
+    // Stop the download, the complete files are kept (downloading the folder again skips them)
+    public void stop() {
+        stopped = true;
+        Transport transport = socket;
+        if (transport != null) {
+            transport.close(); // Wake up the receive
+        }
+    }
+
+    // True if every file of the folder was downloaded
+    public boolean isComplete() {
+        return complete;
+    }
+
+    // Number of files that could not be downloaded
+    public synchronized int getFailedFiles() {
+        return filesFailed;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // This method is called when the thread is started
+    @Override
+    public void run() {
+        writers = Executors.newFixedThreadPool(WRITERS, runnable -> {
+            Thread thread = new Thread(runnable, "folder-writer-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            prepare();
+            if (!pending.isEmpty() && !stopped) {
+                downloadPipelined();
+            }
+            writers.shutdown();
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            copyQueuedFiles();
+            synchronized (this) {
+                complete = !stopped && filesFailed == 0 && filesDone == files.size();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writers.shutdown();
+            for (Request request : inFlight.values()) {
+                request.assembler.release();
+            }
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    // Group the paths by content, skip or copy the content found locally, queue the larger files and list the chunks to request
+    private void prepare() {
+        Map<String, FileTask> tasks = new LinkedHashMap<>();
+        for (FileMetadata metadata : files) {
+            File target = FileMetadata.resolve(targetFolderPath, metadata.getPath());
+            if (target == null) {
+                System.out.println("Not a valid path inside the download folder: " + metadata.getPath());
+                fileFailed(1);
+                continue;
+            }
+            tasks.computeIfAbsent(metadata.getFileHash(), k -> new FileTask(metadata)).targets.add(target);
+        }
+
+        for (FileTask task : tasks.values()) {
+            if (stopped) {
+                return;
+            }
+            FileMetadata metadata = task.metadata;
+
+            // Paths that already have the content are done, the others are copied from one of them
+            File local = null;
+            for (int i = task.targets.size() - 1; i >= 0; i--) {
+                File target = task.targets.get(i);
+                if (target.isFile() && target.length() == metadata.getFileSize()
+                        && metadata.getFileHash().equals(FileMetadata.calculateHash(target))) {
+                    local = target;
+                    task.targets.remove(i);
+                    fileDone(1);
+                }
+            }
+            if (local != null) {
+                copyToTargets(task, local.toPath());
+                continue;
+            }
+            File shared = localLookup != null && !task.targets.isEmpty() ? localLookup.apply(metadata.getFileHash()) : null;
+            if (shared != null) {
+                Metrics.get().downloadsCopiedLocally.increment();
+                Metrics.get().dedupSavedBytes.add(metadata.getFileSize());
+                copyToTargets(task, shared.toPath());
+                continue;
+            }
+            if (task.targets.isEmpty()) {
+                continue;
+            }
+
+            if (!isPipelined(metadata)) {
+                queueFile(task);
+                continue;
+            }
+            List<Peer> peers = peerLookup.apply(metadata.getFileHash());
+            if (peers == null || peers.isEmpty()) {
+                System.out.println("No peer has " + metadata.getPath());
+                fileFailed(task.targets.size());
+                continue;
+            }
+            task.peers = new ArrayList<>(peers);
+            int chunks = FileMetadata.chunkCount(metadata.getFileSize(), metadata.getChunkSize());
+            task.remaining = chunks;
+            if (chunks == 0) {
+                task.data = new byte[0];
+                finishFile(task); // Empty file
+            }
+            for (int i = 0; i < chunks; i++) {
+                pending.add(new Request(task, i));
+            }
+        }
+    }
+
+    // Queue a larger file in the download manager under its first path (the other paths are copied once it is complete)
+    private void queueFile(FileTask task) {
+        if (queue == null) {
+            System.out.println("Skipping large file: " + task.metadata.getPath());
+            fileFailed(task.targets.size());
+            return;
+        }
+        FileMetadata metadata = task.metadata;
+        String path = FileMetadata.relativePath(new File(targetFolderPath), task.targets.get(0));
+        queue.enqueue(path, metadata.getFileHash(), metadata.getFileSize(), metadata.getChunkSize(), targetFolderPath, queuePriority);
+        fileDone(1); // Reported by the queue from now on (a download of the same content is copied to the path)
+        task.targets.remove(0);
+        if (!task.targets.isEmpty()) {
+            queued.add(task);
+        }
+    }
+
+    // Wait for the queued files with more than one path and copy them to the other paths
+    private void copyQueuedFiles() throws InterruptedException {
+        for (FileTask task : queued) {
+            if (stopped) {
+                return;
+            }
+            if (!queue.awaitCompletion(task.metadata.getFileHash())) {
+                fileFailed(task.targets.size());
+                continue;
+            }
+            DownloadManager.Download download = queue.findByHash(task.metadata.getFileHash());
+            File source = download != null ? FileMetadata.resolve(download.targetFolderPath, download.fileName) : null;
+            if (source == null) {
+                fileFailed(task.targets.size());
+                continue;
+            }
+            copyToTargets(task, source.toPath());
+        }
+    }
+
+    // Copy a local file with the content of the task to all its paths
+    private void copyToTargets(FileTask task, Path source) {
+        for (File target : task.targets) {
+            try {
+                target.getParentFile().mkdirs();
+                Path part = new File(target.getPath() + ".part").toPath();
+                Files.copy(source, part, StandardCopyOption.REPLACE_EXISTING);
+                moveToTarget(part, target.toPath());
+                fileDone(1);
+            } catch (IOException e) {
+                e.printStackTrace();
+                fileFailed(1);
+            }
+        }
+        task.targets.clear();
+    }
+
+    // Request the chunks over one socket, keeping up to WINDOW requests outstanding per peer
+    private void downloadPipelined() throws IOException {
+        socket = transportFactory.open(0);
+        if (stopped) {
+            socket.close();
+            return;
+        }
+        byte[] packetBuffer = new byte[PathMtu.MAX_DATAGRAM + 20];
+        DatagramPacket packet = new DatagramPacket(packetBuffer, packetBuffer.length);
+        Metrics metrics = Metrics.get();
+        long lastCheck = System.nanoTime();
+        try {
+            socket.setSoTimeout(POLL_INTERVAL);
+            while (!stopped && (!pending.isEmpty() || !inFlight.isEmpty())) {
+                sendRequests();
+                packet.setLength(packetBuffer.length);
+                try {
+                    socket.receive(packet);
+                    metrics.packetsReceived.increment();
+                    metrics.bytesReceived.add(packet.getLength());
+                    onPacket(packet);
+                } catch (SocketTimeoutException e) {
+                    // Check the timeouts below
+                } catch (SocketException e) {
+                    if (stopped) {
+                        return; // Closed by stop()
+                    }
+                    throw e;
+                }
+                long now = System.nanoTime();
+                if (now - lastCheck >= POLL_INTERVAL * 1_000_000L) {
+                    lastCheck = now;
+                    checkTimeouts(now);
+                }
+            }
+        } finally {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    // Send the next requests while the peers have room in their window and the buffered data stays within its limit
+    private void sendRequests() throws IOException {
+        while (!pending.isEmpty() && !stopped) {
+            Request request = pending.peekFirst();
+            FileTask file = request.file;
+            if (file.finished) {
+                pending.pollFirst(); // The file failed
+                continue;
+            }
+            PeerState peer = selectPeer(file);
+            if (peer == null) {
+                System.out.println("No peer sent " + file.metadata.getPath());
+                failFile(file);
+                continue;
+            }
+            if (peer.outstanding.size() >= WINDOW) {
+                return;
+            }
+            if (file.data == null) {
+                long size = file.metadata.getFileSize();
+                if (buffered.get() > 0 && buffered.get() + size > MAX_BUFFERED) {
+                    return; // Wait for the files in progress
+                }
+                file.data = new byte[(int) size];
+                buffered.addAndGet(size);
+            }
+            pending.pollFirst();
+            acquireRate(FileMetadata.chunkLength(file.metadata.getFileSize(), file.metadata.getChunkSize(), request.index));
+            request.peer = peer;
+            request.assembler = new ChunkAssembler(file.metadata.getFileHash(), request.index);
+            request.mtu = peer.path.next();
+            request.attempts = 0;
+            request.firstSent = System.nanoTime();
+            inFlight.put(key(file.metadata.getFileHash(), request.index), request);
+            send(request, null);
+        }
+    }
+
+    // Peer for the next chunk of a file: the one with the fewest outstanding requests among those that did not fail
+    private PeerState selectPeer(FileTask file) throws IOException {
+        PeerState best = null;
+        for (Peer peer : file.peers) {
+            if (file.failedPeers.contains(peer)) {
+                continue;
+            }
+            PeerState state = peerStates.get(peer);
+            if (state == null) {
+                InetAddress address = InetAddress.getByName(peer.getIpAddress());
+                state = new PeerState(peer, address, PathMtu.forPeer(peer, transportFactory.getMtu(address)));
+                peerStates.put(peer, state);
+            }
+            if (best == null || state.outstanding.size() < best.outstanding.size()) {
+                best = state;
+            }
+        }
+        return best;
+    }
+
+    // Send the request of a chunk, or only its missing fragments
+    // Every request for a chunk asks for the same MTU, so that the fragments of an earlier answer that arrive late fit it
+    private void send(Request request, String missing) throws IOException {
+        PeerState peer = request.peer;
+        FileMetadata metadata = request.file.metadata;
+        request.cookie = transportFactory.getCookie(peer.address);
+        byte[] data = FileDownloader.encodeRequest("REQUEST_CHUNK:" + metadata.getFileHash() + ":" + request.index, compression,
+                request.mtu, NodeDiscovery.CHUNK_SIZE_OPTION + metadata.getChunkSize(), missing, request.cookie);
+        socket.send(new DatagramPacket(data, data.length, peer.address, peer.peer.getPort()));
+        Metrics.get().chunksRequested.increment();
+        Metrics.get().packetsSent.increment();
+        Metrics.get().bytesSent.add(data.length);
+
+        peer.outstanding.remove(request.sequence, request);
+        request.sequence = peer.nextSequence++;
+        peer.outstanding.put(request.sequence, request);
+        request.sentAt = System.nanoTime();
+    }
+
+    // A peer wants a cookie before it serves (COOKIE:<hex>): keep it and ask again for what was sent to it without it
+    private void onCookie(DatagramPacket packet) throws IOException {
+        String message = new String(packet.getData(), 0, packet.getLength());
+        if (!message.startsWith(PacketAuth.COOKIE_MESSAGE)) {
+            return;
+        }
+        String cookie = message.substring(PacketAuth.COOKIE_MESSAGE.length()).trim();
+        transportFactory.setCookie(packet.getAddress(), cookie);
+        PeerState peer = peerStates.get(new Peer(packet.getAddress().getHostAddress(), packet.getPort()));
+        if (peer == null) {
+            return;
+        }
+        for (Request request : new ArrayList<>(peer.outstanding.values())) {
+            if (!cookie.equals(request.cookie)) {
+                send(request, request.assembler.hasFragments() ? request.assembler.getMissingFragments(MAX_REPAIR_LIST) : null);
+            }
+        }
+    }
+
+    // Add a received fragment to its chunk
+    private void onPacket(DatagramPacket packet) throws IOException {
+        if (packet.getLength() > 0 && packet.getData()[0] == 'C') {
+            onCookie(packet); // Fragments start with the binary length of their key
+            return;
+        }
+        Request request = inFlight.get(packetKey(packet.getData(), packet.getLength()));
+        if (request == null || !request.assembler.add(packet.getData(), packet.getLength())) {
+            return; // Late or duplicate fragment, or another message
+        }
+        PeerState peer = request.peer;
+        long now = System.nanoTime();
+        peer.lastPacket = now;
+        request.attempts = 0;
+        peer.bytesReceived.add(packet.getLength());
+
+        // The peer served the requests sent before this one first: what is still missing of them was lost
+        if (!peer.outstanding.isEmpty() && peer.outstanding.firstKey() < request.sequence) {
+            for (Request lost : new ArrayList<>(peer.outstanding.headMap(request.sequence).values())) {
+                retry(lost);
+            }
+        }
+        if (request.assembler.isComplete()) {
+            completeChunk(request, now);
+        }
+    }
+
+    // Send the request of a chunk again (its missing fragments if some arrived), or move it to another peer
+    private void retry(Request request) throws IOException {
+        PeerState peer = request.peer;
+        Metrics metrics = Metrics.get();
+        if (++request.attempts > MAX_ATTEMPTS) {
+            // The peer does not answer for this file (it may not have it anymore), ask another one
+            metrics.timeouts.increment();
+            request.file.failedPeers.add(peer.peer);
+            requeue(request);
+            return;
+        }
+        String missing = request.assembler.hasFragments() ? request.assembler.getMissingFragments(MAX_REPAIR_LIST) : null;
+        if (missing != null) {
+            metrics.fragmentRepairs.increment();
+            send(request, missing);
+            return;
+        }
+        if (!request.assembler.hasFragments()) {
+            peer.path.failed(request.mtu);
+        }
+        metrics.retransmits.increment();
+        send(request, null);
+    }
+
+    // Put a request back at the front of the chunks to request
+    private void requeue(Request request) {
+        request.peer.outstanding.remove(request.sequence, request);
+        inFlight.remove(key(request.file.metadata.getFileHash(), request.index));
+        request.assembler.release();
+        request.peer = null;
+        pending.addFirst(request);
+    }
+
+    // Send again the requests of the peers that stayed silent for longer than the timeout
+    private void checkTimeouts(long now) throws IOException {
+        long timeout = smoothedLatency < 0 ? chunkTimeout / 2 * 1_000_000L
+                : Math.min(chunkTimeout * 1_000_000L, Math.max(MIN_TIMEOUT * 1_000_000L, 2 * smoothedLatency));
+        for (PeerState peer : peerStates.values()) {
+            if (peer.outstanding.isEmpty() || now - peer.lastPacket < timeout) {
+                continue;
+            }
+            for (Request request : new ArrayList<>(peer.outstanding.values())) {
+                if (now - request.sentAt >= timeout) {
+                    retry(request);
+                }
+            }
+        }
+    }
+
+    // A chunk is complete: copy it to its file, which is verified and written once all its chunks are there
+    private void completeChunk(Request request, long now) throws IOException {
+        PeerState peer = request.peer;
+        FileTask file = request.file;
+        FileMetadata metadata = file.metadata;
+        peer.outstanding.remove(request.sequence, request);
+        inFlight.remove(key(metadata.getFileHash(), request.index));
+        peer.path.succeeded(request.mtu);
+        long latency = now - request.sentAt;
+        smoothedLatency = smoothedLatency < 0 ? latency : (smoothedLatency * 7 + latency) / 8;
+        Metrics.get().chunksReceived.increment();
+        Metrics.get().chunkLatency.record((now - request.firstSent) / 1_000_000);
+
+        int length = FileMetadata.chunkLength(metadata.getFileSize(), metadata.getChunkSize(), request.index);
+        ByteBuffer target = ByteBuffer.wrap(file.data, request.index * metadata.getChunkSize(), length);
+        ByteBuffer chunkData = request.assembler.take();
+        boolean valid;
+        if (request.assembler.getEncoding() == ChunkCompression.RAW) {
+            valid = chunkData.remaining() == length;
+            if (valid) {
+                target.put(chunkData);
+            }
+        } else {
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            valid = request.assembler.getRawLength() == length && ChunkCompression.inflate(inflater, chunkData, target, length);
+        }
+        if (chunkData.isDirect()) {
+            BufferPool.CHUNKS.release(chunkData);
+        }
+        if (!valid) {
+            // An older node that ignored the chunk size, or another version of the file
+            System.out.println("Chunk " + request.index + " of " + metadata.getPath() + " from " + peer.peer + " has the wrong size");
+            file.failedPeers.add(peer.peer);
+            request.peer = null;
+            pending.addFirst(request);
+            return;
+        }
+        if (--file.remaining == 0) {
+            finishFile(file);
+        }
+    }
+
+    // Verify a complete file and write it to its paths, or download it again if it does not match its hash
+    private void finishFile(FileTask file) {
+        FileMetadata metadata = file.metadata;
+        byte[] data = file.data;
+        file.data = null;
+        digest.reset();
+        if (!metadata.getFileHash().equals(toHex(digest.digest(data)))) {
+            buffered.addAndGet(-data.length);
+            System.out.println("Downloaded file does not match its hash: " + metadata.getPath());
+            if (++file.restarts > MAX_RESTARTS) {
+                failFile(file);
+                return;
+            }
+            int chunks = FileMetadata.chunkCount(metadata.getFileSize(), metadata.getChunkSize());
+            file.remaining = chunks;
+            for (int i = chunks - 1; i >= 0; i--) {
+                pending.addFirst(new Request(file, i));
+            }
+            return;
+        }
+        file.finished = true;
+        List<File> targets = new ArrayList<>(file.targets);
+        Runnable write = () -> {
+            for (File target : targets) {
+                try {
+                    target.getParentFile().mkdirs();
+                    Path part = new File(target.getPath() + ".part").toPath();
+                    Files.write(part, data);
+                    moveToTarget(part, target.toPath());
+                    fileDone(1);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    fileFailed(1);
+                }
+            }
+            buffered.addAndGet(-data.length);
+        };
+        if (writers != null) {
+            writers.execute(write); // The next files are received meanwhile
+        } else {
+            write.run();
+        }
+    }
+
+    // Give up a file: drop its requests
+    private void failFile(FileTask file) {
+        file.finished = true;
+        fileFailed(file.targets.size());
+        if (file.data != null) {
+            buffered.addAndGet(-file.data.length);
+            file.data = null;
+        }
+        for (Request request : new ArrayList<>(inFlight.values())) {
+            if (request.file == file) {
+                request.peer.outstanding.remove(request.sequence, request);
+                inFlight.remove(key(file.metadata.getFileHash(), request.index));
+                request.assembler.release();
+            }
+        }
+        pending.removeIf(request -> request.file == file);
+    }
+
+    private static void moveToTarget(Path part, Path target) throws IOException {
+        try {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Wait until the rate limit allows to request the bytes
+    private void acquireRate(long bytes) {
+        if (rateLimiter != null) {
+            try {
+                rateLimiter.acquire(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopped = true;
+            }
+        }
+    }
+
+    private synchronized void fileDone(int count) {
+        filesDone += count;
+        updateProgress();
+    }
+
+    private synchronized void fileFailed(int count) {
+        filesFailed += count;
+        updateProgress();
+    }
+
+    // Update the progress of the folder on the listener (files done or given up over all the files)
+    private void updateProgress() {
+        int progress = files.isEmpty() ? 100 : (int) ((filesDone + filesFailed) * 100L / files.size());
+        if (progress != lastProgress) {
+            lastProgress = progress;
+            listener.updateDownloadProgress(name, progress);
+        }
+    }
+
+    private static String key(String fileHash, int index) {
+        return fileHash + ":" + index;
+    }
+
+    // "hash:index" of a fragment (see ChunkAssembler.add), null if it is not a fragment
+    private static String packetKey(byte[] data, int length) {
+        if (length < 2) {
+            return null;
+        }
+        int keyLength = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+        if (length < 2 + keyLength + 4) {
+            return null;
+        }
+        int index = ByteBuffer.wrap(data, 2 + keyLength, 4).getInt();
+        return key(new String(data, 2, keyLength, StandardCharsets.US_ASCII), index);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,440 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Runs a node without any GUI (build servers, NAS boxes), only java.base classes are loaded
+public class HeadlessNode implements DownloadListener {
+    // Instance variables
+    private NodeConfig config;
+    private NodeDiscovery nodeDiscovery;
+    private PrintStream out;
+
+    // Time to collect the answers of a search
+    private static final long SEARCH_WAIT_MILLIS = 2000;
+
+    // Queue of the downloads of this node
+    private DownloadManager downloadManager;
+
+    public HeadlessNode(NodeConfig config, PrintStream out) {
+        this.config = config;
+        this.out = out;
+    }
+
+    // Entry point of the headless mode
+    public static void main(String[] args) {
+        NodeConfig config;
+        try {
+            config = NodeConfig.fromArgs(args);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Invalid configuration: " + e.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
+
+        HeadlessNode node = new HeadlessNode(config, System.out);
+        try {
+            node.start();
+        } catch (IOException e) {
+            System.err.println("Failed to connect: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        if (config.getCommand().isEmpty()) {
+            // Daemon mode, disconnect cleanly when the process is stopped
+            Runtime.getRuntime().addShutdownHook(new Thread(node::stop));
+            node.readCommands();
+        } else {
+            // One-shot mode, wait until the catalog has been received and run the command
+            node.waitForCatalog();
+            boolean success = node.execute(config.getCommand());
+            node.stop();
+            System.exit(success ? 0 : 1);
+        }
+    }
+
+    // Print the supported options and commands
+    static void printUsage() {
+        System.err.println("Usage: java P2PFileSharingApp --headless [options] [command]");
+        System.err.println("Options: --config <file> --secret <key> --shared <folder> --download <folder>");
+        System.err.println("         --exclude <a,b> --file-port <port> --discovery-port <port> --discovery-group <address> --wait <seconds>");
+        System.err.println("         --metrics-port <port> --compression <true|false> --fec <true|false> --cdc <true|false>");
+        System.err.println("         --max-downloads <n> --download-rate <bytes/s> --queue-file <file>");
+        System.err.println("         --upload-rate <bytes/s> --upload-schedule <hh:mm-hh:mm=rate,...> --upload-weights <ip=weight,...>");
+        System.err.println("         --cache-size <MB> --query-mode <true|false> --auth <true|false>");
+        System.err.println("Commands: list | search <query> | get <hash> [priority] | stream <hash> <file> | folders | get-folder <path> [priority]");
+        System.err.println("          | status");
+        System.err.println("          (no command runs the node as a daemon)");
+        System.err.println("Daemon commands: queue | pause <hash> | resume <hash> | cancel <hash> | priority <hash> <n>");
+    }
+
+    // Connect to the network (same steps as MainScreen.connect)
+    public void start() throws IOException {
+        String ipAddress = NodeDiscovery.getLocalNetworkIP();
+
+        // Create a local node and start discovery
+        Node localNode = new Node(ipAddress, 0, config.getSecretKey(), config.getSharedFolderPath());
+        nodeDiscovery = new NodeDiscovery(localNode, config.getFilePort(), config.getDiscoveryPort());
+        nodeDiscovery.setDiscoveryGroup(config.getDiscoveryGroup());
+        nodeDiscovery.setContentDefinedChunking(config.isContentDefinedChunking());
+        nodeDiscovery.setQueryMode(config.isQueryMode());
+        nodeDiscovery.setAuthentication(config.isAuthentication());
+        nodeDiscovery.getUploadScheduler().setRate(config.getUploadRate());
+        nodeDiscovery.getUploadScheduler().setSchedule(config.getUploadSchedule());
+        nodeDiscovery.getUploadScheduler().setWeights(config.getUploadWeights());
+        nodeDiscovery.setChunkCacheSize(config.getCacheSize());
+
+        // Start File Scanner and Broadcast (the folder is scanned and hashed in the background)
+        FileScanner fileScanner = new FileScanner(config.getSharedFolderPath(), config.getExcludedFolders());
+        nodeDiscovery.scheduleSendDiscoveryPackets(config.getDiscoveryInterval(), TimeUnit.SECONDS);
+        nodeDiscovery.scheduleFileBroadcast(fileScanner, config.getBroadcastInterval(), TimeUnit.SECONDS);
+
+        // Start listening for packets
+        nodeDiscovery.listenPackets();
+
+        // Publish the metrics (JMX and the optional localhost endpoint)
+        Metrics.registerMBean();
+        MetricsServer.startIfEnabled(config.getMetricsPort());
+
+        // Downloads (queued downloads of a previous run start when their peers are known)
+        downloadManager = new DownloadManager(new File(config.getQueueFile()), this);
+        downloadManager.setTransportFactory(nodeDiscovery.getTransportFactory());
+        downloadManager.setMaxConcurrent(config.getMaxDownloads());
+        downloadManager.setRateLimit(config.getDownloadRate());
+        downloadManager.setDownloaderSetup(downloader -> {
+            downloader.setCompression(config.isCompression());
+            downloader.setFec(config.isFec());
+            if (config.isContentDefinedChunking()) {
+                downloader.setBlockMode(nodeDiscovery.getBlockIndex(), nodeDiscovery.getConnectedPeers());
+            }
+        });
+        downloadManager.setOnChangeCallback(download -> log(download.getState() + ": " + download.getFileName()));
+        downloadManager.setLocalLookup(nodeDiscovery::getSharedFile);
+        downloadManager.setPeerLookup(nodeDiscovery::findPeersWithFile);
+
+        nodeDiscovery.setOnNodeDiscoveredCallback(nodeInfo -> log("Node discovered: " + nodeInfo));
+        nodeDiscovery.setOnDisconnectCallback(nodeInfo -> log("Node disconnected: " + nodeInfo));
+
+        log("Connected as " + localNode.getIpAddress() + ":" + localNode.getPort() + ", scanning " + config.getSharedFolderPath());
+    }
+
+    // Disconnect from the network
+    public void stop() {
+        if (downloadManager != null) {
+            downloadManager.shutdown();
+        }
+        if (nodeDiscovery != null) {
+            nodeDiscovery.broadcastDisconnect();
+            nodeDiscovery.stopDiscovery();
+            nodeDiscovery = null;
+        }
+    }
+
+    // Give the other nodes time to announce their files
+    private void waitForCatalog() {
+        try {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(config.getWaitSeconds()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Read commands from the standard input until it is closed
+    private void readCommands() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.equals("quit") || line.equals("exit")) {
+                    System.exit(0);
+                }
+                execute(List.of(line.split("\\s+")));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Standard input is closed (e.g. started by a service manager), keep serving
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Run a single command, returns false if it failed
+    public boolean execute(List<String> command) {
+        switch (command.get(0)) {
+            case "list":
+                listFiles();
+                return true;
+            case "status":
+                printStatus();
+                return true;
+            case "search":
+                if (command.size() < 2) {
+                    out.println("Usage: search <query>");
+                    return false;
+                }
+                search(String.join(" ", command.subList(1, command.size())));
+                return true;
+            case "get":
+                if ((command.size() != 2 && command.size() != 3) || (command.size() == 3 && !isNumber(command.get(2)))) {
+                    out.println("Usage: get <hash> [priority]");
+                    return false;
+                }
+                // In one-shot mode wait for the download, in daemon mode run it in the background
+                int priority = command.size() == 3 ? Integer.parseInt(command.get(2)) : 0;
+                return download(command.get(1), priority, !config.getCommand().isEmpty());
+            case "stream":
+                if (command.size() != 3) {
+                    out.println("Usage: stream <hash> <file>");
+                    return false;
+                }
+                return stream(command.get(1), command.get(2), !config.getCommand().isEmpty());
+            case "folders":
+                for (String folder : nodeDiscovery.getKnownFolders()) {
+                    out.println(folder);
+                }
+                return true;
+            case "get-folder":
+                if ((command.size() != 2 && command.size() != 3) || (command.size() == 3 && !isNumber(command.get(2)))) {
+                    out.println("Usage: get-folder <path> [priority]");
+                    return false;
+                }
+                int folderPriority = command.size() == 3 ? Integer.parseInt(command.get(2)) : 0;
+                return downloadFolder(command.get(1), folderPriority, !config.getCommand().isEmpty());
+            case "queue":
+                printQueue();
+                return true;
+            case "pause":
+            case "resume":
+            case "cancel":
+                if (command.size() != 2) {
+                    out.println("Usage: " + command.get(0) + " <hash>");
+                    return false;
+                }
+                if (command.get(0).equals("pause")) {
+                    downloadManager.pause(command.get(1));
+                } else if (command.get(0).equals("resume")) {
+                    downloadManager.resume(command.get(1));
+                } else {
+                    downloadManager.cancel(command.get(1));
+                }
+                return true;
+            case "priority":
+                if (command.size() != 3 || !isNumber(command.get(2))) {
+                    out.println("Usage: priority <hash> <n>");
+                    return false;
+                }
+                downloadManager.setPriority(command.get(1), Integer.parseInt(command.get(2)));
+                return true;
+            default:
+                out.println("Unknown command: " + command.get(0));
+                return false;
+        }
+    }
+
+    // True if the argument is an integer (a priority)
+    private static boolean isNumber(String argument) {
+        try {
+            Integer.parseInt(argument);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // Print the files available in the network (hash, size, name)
+    private void listFiles() {
+        String localIP = nodeDiscovery.getLocalNode().getIpAddress();
+        for (FileMetadata metadata : nodeDiscovery.getKnownFiles()) {
+            if (metadata.getOwnerIP().equals(localIP)) {
+                continue; // Skip our own files
+            }
+            out.println(metadata.getFileHash() + "\t" + metadata.getFileSize() + "\t" + metadata.getPath());
+        }
+    }
+
+    // Search the other nodes and print the files found (hash, size, path, owner)
+    private void search(String query) {
+        String id = nodeDiscovery.search(query);
+        sleep(SEARCH_WAIT_MILLIS);
+        for (FileMetadata metadata : nodeDiscovery.getSearchResults(id)) {
+            out.println(metadata.getFileHash() + "\t" + metadata.getFileSize() + "\t" + metadata.getPath() + "\t" + metadata.getOwnerIP());
+        }
+    }
+
+    // Print the state of the node
+    private void printStatus() {
+        Node localNode = nodeDiscovery.getLocalNode();
+        out.println("Node: " + localNode.getIpAddress() + ":" + localNode.getPort());
+        List<File> sharedFiles = nodeDiscovery.getSharedFiles();
+        out.println("Shared folder: " + config.getSharedFolderPath() + " ("
+                + (sharedFiles != null ? sharedFiles.size() + " files" : "scanning") + ")");
+        int hashQueueDepth = nodeDiscovery.getHashQueueDepth();
+        if (hashQueueDepth > 0) {
+            int hashed = nodeDiscovery.getHashedFileCount();
+            out.println("Hashing: " + hashed + " of " + (hashed + hashQueueDepth) + " files");
+        }
+        out.println("Connected nodes: " + nodeDiscovery.getConnectedNodes());
+        out.println("Known files: " + nodeDiscovery.getKnownFiles().size());
+        Metrics metrics = Metrics.get();
+        out.println("Sent: " + metrics.getBytesSent() + " bytes, received: " + metrics.getBytesReceived() + " bytes");
+        out.println("Chunks served: " + metrics.getChunksServed() + ", received: " + metrics.getChunksReceived()
+                + ", timeouts: " + metrics.getTimeouts() + ", retransmits: " + metrics.getRetransmits());
+        out.println("Chunk cache: " + metrics.getChunkCacheHitPercent() + "% hits (" + metrics.getChunkCacheHits() + " hits, "
+                + metrics.getChunkCacheMisses() + " disk reads, " + metrics.getChunksPrefetched() + " prefetched), "
+                + metrics.getChunkCacheBytes() / (1024 * 1024) + " MB");
+        printQueue();
+    }
+
+    // Print the downloads in the order they are scheduled
+    private void printQueue() {
+        for (DownloadManager.Download download : downloadManager.getQueueOrder()) {
+            out.println("Download: " + download.getFileHash() + "\t" + download.getState() + "\t" + download.getProgress()
+                    + "%\tpriority " + download.getPriority() + "\t" + download.getFileName());
+        }
+    }
+
+    // Queue the download of a file by its hash into the download folder
+    private boolean download(String fileHash, int priority, boolean wait) {
+        FileMetadata metadata = findFile(fileHash);
+        if (metadata == null) {
+            return false;
+        }
+
+        downloadManager.enqueue(metadata.getPath(), fileHash, metadata.getFileSize(), metadata.getChunkSize(),
+                config.getDownloadFolderPath(), priority);
+        out.println("Queued " + metadata.getPath() + " (peers: " + nodeDiscovery.getPeersWithFile(fileHash) + ")");
+
+        if (wait) {
+            try {
+                return downloadManager.awaitCompletion(fileHash);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Copy a file to the output (a file or a named pipe read by a player) while it downloads into the download folder,
+    // the copy starts as soon as the first chunks arrive
+    private boolean stream(String fileHash, String output, boolean wait) {
+        FileMetadata metadata = findFile(fileHash);
+        if (metadata == null) {
+            return false;
+        }
+        DownloadChannel channel = downloadManager.openStream(metadata.getPath(), fileHash, metadata.getFileSize(), metadata.getChunkSize(),
+                config.getDownloadFolderPath());
+        if (channel == null) {
+            out.println("Not a valid path inside the download folder: " + metadata.getPath());
+            return false;
+        }
+        out.println("Streaming " + metadata.getPath() + " to " + output + " (peers: " + nodeDiscovery.getPeersWithFile(fileHash) + ")");
+
+        Runnable copy = () -> {
+            try (InputStream in = Channels.newInputStream(channel); OutputStream file = new FileOutputStream(output)) {
+                in.transferTo(file);
+                log("Streamed: " + metadata.getPath());
+            } catch (IOException e) {
+                log("Stream of " + metadata.getPath() + " failed: " + e.getMessage());
+            }
+        };
+        if (!wait) {
+            new Thread(copy, "stream-" + metadata.getFileName()).start();
+            return true;
+        }
+        copy.run();
+        try {
+            return downloadManager.awaitCompletion(fileHash);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Metadata of a file in the network, searched for in query mode, null (and a message) if it is not found
+    private FileMetadata findFile(String fileHash) {
+        FileMetadata metadata = nodeDiscovery.getFileMetadata(fileHash);
+        if (metadata == null && nodeDiscovery.isQueryMode()) {
+            // Not searched yet, ask the other nodes for it
+            nodeDiscovery.findPeersWithFile(fileHash);
+            sleep(SEARCH_WAIT_MILLIS);
+            metadata = nodeDiscovery.getFileMetadata(fileHash);
+        }
+        if (metadata == null) {
+            out.println("File not found in the network: " + fileHash);
+        }
+        return metadata;
+    }
+
+    // Download every file of a folder (relative path as listed by "folders") into the download folder, keeping the sub-folders
+    private boolean downloadFolder(String folder, int priority, boolean wait) {
+        folder = folder.endsWith("/") ? folder.substring(0, folder.length() - 1) : folder;
+        List<FileMetadata> files = nodeDiscovery.getFilesInFolder(folder);
+        if (files.isEmpty()) {
+            out.println("Folder not found in the network: " + folder);
+            return false;
+        }
+
+        FolderDownloader downloader = downloadManager.downloadFolder(folder + "/", files, config.getDownloadFolderPath(), priority,
+                config.isCompression());
+        out.println("Downloading " + files.size() + " files of " + folder);
+
+        if (wait) {
+            try {
+                // The small files are downloaded together, the larger ones through the queue
+                boolean complete = downloadManager.awaitFolder(downloader);
+                for (FileMetadata metadata : files) {
+                    if (!FolderDownloader.isPipelined(metadata)) {
+                        complete &= downloadManager.awaitCompletion(metadata.getFileHash());
+                    }
+                }
+                if (downloader.getFailedFiles() > 0) {
+                    out.println(downloader.getFailedFiles() + " files could not be downloaded");
+                }
+                return complete;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Called by FileDownloader for every written chunk
+    @Override
+    public void updateDownloadProgress(String fileName, int progress) {
+        if (progress == 100) {
+            log("Completed: " + fileName);
+        }
+    }
+
+    // Print a message with a timestamp
+    private void log(String message) {
+        out.println("[" + LocalTime.now().withNano(0) + "] " + message);
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+// Prints per-peer throughput and latency percentiles from a flight recording of a node (see TransferEvents and p2p.jfc)
+// Usage: java JfrReport recording.jfr
+public class JfrReport {
+    // Chunks of one peer in one direction
+    private static class PeerStats {
+        long chunks;
+        long failed;
+        long bytes;
+        long repairs;
+        Instant first;
+        Instant last;
+        final List<Long> latencies = new ArrayList<>(); // microseconds, completed chunks only
+        final Map<String, Long> failures = new TreeMap<>(); // count per result
+
+        void add(RecordedEvent event, long bytes, String result) {
+            if (first == null || event.getStartTime().isBefore(first)) {
+                first = event.getStartTime();
+            }
+            if (last == null || event.getEndTime().isAfter(last)) {
+                last = event.getEndTime();
+            }
+            if (result != null) {
+                failed++;
+                failures.merge(result, 1L, Long::sum);
+                return;
+            }
+            chunks++;
+            this.bytes += bytes;
+            latencies.add(event.getDuration().toNanos() / 1000);
+        }
+
+        // Bytes per second between the first request and the last chunk
+        double throughput() {
+            double seconds = first != null ? (last.toEpochMilli() - first.toEpochMilli()) / 1000.0 : 0;
+            return seconds > 0 ? bytes / seconds : 0;
+        }
+    }
+
+    // Entry point
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java JfrReport <recording.jfr>");
+            System.exit(2);
+        }
+        Path path = Paths.get(args[0]);
+        Map<String, PeerStats> downloads = new TreeMap<>();
+        Map<String, PeerStats> uploads = new TreeMap<>();
+        long requests = 0;
+        long peersDiscovered = 0;
+        long peersExpired = 0;
+        long filesHashed = 0;
+        long bytesHashed = 0;
+        long hashNanos = 0;
+        long scans = 0;
+        long scanNanos = 0;
+
+        try (RecordingFile recording = new RecordingFile(path)) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                String name = event.getEventType().getName();
+                if (!name.startsWith(TransferEvents.PREFIX)) {
+                    continue;
+                }
+                switch (name.substring(TransferEvents.PREFIX.length())) {
+                    case "ChunkDownload": {
+                        String result = event.getString("result");
+                        PeerStats stats = downloads.computeIfAbsent(event.getString("peer"), k -> new PeerStats());
+                        stats.add(event, event.getLong("bytes"), "completed".equals(result) ? null : result);
+                        stats.repairs += event.getInt("repairs");
+                        break;
+                    }
+                    case "ChunkServed":
+                        uploads.computeIfAbsent(event.getString("peer"), k -> new PeerStats()).add(event, event.getLong("bytes"), null);
+                        break;
+                    case "ChunkRequested": requests++; break;
+                    case "PeerDiscovered": peersDiscovered++; break;
+                    case "PeerExpired": peersExpired++; break;
+                    case "FileHashed":
+                        filesHashed++;
+                        bytesHashed += event.getLong("bytes");
+                        hashNanos += event.getDuration().toNanos();
+                        break;
+                    case "ScanCompleted":
+                        scans++;
+                        scanNanos += event.getDuration().toNanos();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        System.out.println("Downloads (" + requests + " requests sent)");
+        printTable(downloads, true);
+        System.out.println();
+        System.out.println("Uploads");
+        printTable(uploads, false);
+        System.out.println();
+        System.out.printf("Peers: %d discovered, %d expired%n", peersDiscovered, peersExpired);
+        System.out.printf("Hashing: %d files, %.1f MB in %.2f s (%.1f MB/s)%n", filesHashed, bytesHashed / 1e6, hashNanos / 1e9,
+                hashNanos > 0 ? bytesHashed / 1e6 / (hashNanos / 1e9) : 0.0);
+        System.out.printf("Scans: %d, %.1f ms on average%n", scans, scans > 0 ? scanNanos / 1e6 / scans : 0.0);
+    }
+
+    // One line per peer: chunks, throughput and latency percentiles in milliseconds
+    private static void printTable(Map<String, PeerStats> peers, boolean failures) {
+        if (peers.isEmpty()) {
+            System.out.println("  (none)");
+            return;
+        }
+        System.out.printf("  %-24s %8s %10s %10s %8s %8s %8s %8s%s%n", "peer", "chunks", "MB", "MB/s", "p50 ms", "p90 ms", "p99 ms",
+                "max ms", failures ? "  failed" : "");
+        for (Map.Entry<String, PeerStats> entry : peers.entrySet()) {
+            PeerStats stats = entry.getValue();
+            Collections.sort(stats.latencies);
+            System.out.printf("  %-24s %8d %10.1f %10.2f %8.1f %8.1f %8.1f %8.1f%s%n", entry.getKey(), stats.chunks, stats.bytes / 1e6,
+                    stats.throughput() / 1e6, percentile(stats.latencies, 50), percentile(stats.latencies, 90),
+                    percentile(stats.latencies, 99), percentile(stats.latencies, 100),
+                    failures ? "  " + stats.failed + (stats.failures.isEmpty() ? "" : " " + stats.failures)
+                            + (stats.repairs > 0 ? ", " + stats.repairs + " repairs" : "") : "");
+        }
+    }
+
+    // Percentile of sorted values in microseconds, in milliseconds (0 if empty)
+    private static double percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(sorted.size() * percentile / 100.0);
+        return sorted.get(Math.max(0, Math.min(sorted.size(), rank) - 1)) / 1000.0;
+    }
+}
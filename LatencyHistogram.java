@@ -0,0 +1,68 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// Fixed bucket latency histogram, recording a value does not allocate
+public class LatencyHistogram {
+    // Upper bounds of the buckets in milliseconds (the last bucket is +Inf)
+    static final long[] BUCKETS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    // Record a latency in milliseconds
+    public void record(long millis) {
+        int i = 0;
+        while (i < BUCKETS.length && millis > BUCKETS[i]) {
+            i++;
+        }
+        counts[i].increment();
+        sum.add(millis);
+    }
+
+    // Number of values in each bucket (not cumulative)
+    public long[] getCounts() {
+        long[] result = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            result[i] = counts[i].sum();
+        }
+        return result;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    // Approximate percentile (upper bound of the bucket containing it), -1 if empty
+    public long getPercentile(double percentile) {
+        long[] values = getCounts();
+        long total = 0;
+        for (long value : values) {
+            total += value;
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < values.length; i++) {
+            seen += values[i];
+            if (seen >= rank) {
+                return i < BUCKETS.length ? BUCKETS[i] : Long.MAX_VALUE;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
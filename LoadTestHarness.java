@@ -0,0 +1,463 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Starts many nodes in one process over a SimulatedNetwork and measures how long the swarm takes to download a file
+public class LoadTestHarness {
+    // Settings (command line flags)
+    private int nodes = 8;
+    private int seeds = 1;
+    private long fileSize = 4 * 1024 * 1024;
+    private double loss = 0.0;
+    private double reorder = 0.0;
+    private long latency = 1; // milliseconds
+    private long jitter = 0; // milliseconds
+    private long bandwidth = 12_500_000; // bytes per second (100 Mbit)
+    private int chunkTimeout = 2000; // milliseconds
+    private long timeout = 300; // seconds
+    private double maxSeconds = 0; // fail if the swarm is slower (0 = no limit)
+    private boolean compressible = false; // share text-like content instead of random bytes
+    private boolean compression = true;
+    private boolean cdc = false; // download by content-defined blocks
+    private boolean versioned = false; // leechers already have an older version of the file
+    private long uploadRate = 0; // bytes per second each node may upload, 0 = unlimited
+    private int mtu = PathMtu.DEFAULT_MTU; // MTU of the simulated links
+    private long cacheSize = NodeDiscovery.DEFAULT_CACHE_SIZE / (1024 * 1024); // MB of chunk cache per node
+    private int treeFiles = 0; // share a folder tree of this many small files instead of one file
+    private boolean pipeline = true; // download the tree with FolderDownloader (false: one FileDownloader per file)
+    private int catalogFiles = 0; // other small files shared by every node (catalog the nodes announce)
+    private boolean queryMode = false; // leechers search for the file instead of receiving the catalogs
+    private boolean auth = true; // authenticate the packets and require cookies for the requests
+    private boolean streaming = false; // leechers read the file while it downloads (the end first, then from the start)
+    private boolean fec = true; // ask for parity fragments when fragments get lost
+
+    // Entry point: java LoadTestHarness --nodes 16 --loss 0.01 --max-seconds 60
+    public static void main(String[] args) throws Exception {
+        LoadTestHarness harness = new LoadTestHarness();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--nodes": harness.nodes = Integer.parseInt(value); break;
+                case "--seeds": harness.seeds = Integer.parseInt(value); break;
+                case "--file-size": harness.fileSize = Long.parseLong(value); break;
+                case "--loss": harness.loss = Double.parseDouble(value); break;
+                case "--reorder": harness.reorder = Double.parseDouble(value); break;
+                case "--latency": harness.latency = Long.parseLong(value); break;
+                case "--jitter": harness.jitter = Long.parseLong(value); break;
+                case "--bandwidth": harness.bandwidth = Long.parseLong(value); break;
+                case "--chunk-timeout": harness.chunkTimeout = Integer.parseInt(value); break;
+                case "--timeout": harness.timeout = Long.parseLong(value); break;
+                case "--max-seconds": harness.maxSeconds = Double.parseDouble(value); break;
+                case "--compressible": harness.compressible = Boolean.parseBoolean(value); break;
+                case "--compression": harness.compression = Boolean.parseBoolean(value); break;
+                case "--cdc": harness.cdc = Boolean.parseBoolean(value); break;
+                case "--versioned": harness.versioned = Boolean.parseBoolean(value); break;
+                case "--upload-rate": harness.uploadRate = Long.parseLong(value); break;
+                case "--cache-size": harness.cacheSize = Long.parseLong(value); break;
+                case "--mtu": harness.mtu = Integer.parseInt(value); break;
+                case "--tree": harness.treeFiles = Integer.parseInt(value); break;
+                case "--pipeline": harness.pipeline = Boolean.parseBoolean(value); break;
+                case "--catalog": harness.catalogFiles = Integer.parseInt(value); break;
+                case "--query-mode": harness.queryMode = Boolean.parseBoolean(value); break;
+                case "--auth": harness.auth = Boolean.parseBoolean(value); break;
+                case "--streaming": harness.streaming = Boolean.parseBoolean(value); break;
+                case "--fec": harness.fec = Boolean.parseBoolean(value); break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        Result result = harness.run();
+        System.out.println(result);
+        Metrics metrics = Metrics.get();
+        System.out.println("chunk cache: " + metrics.getChunkCacheHitPercent() + "% hits, " + metrics.getChunkCacheMisses()
+                + " disk reads, " + metrics.getChunksPrefetched() + " prefetched");
+        System.out.println("chunk latency: p50 <= " + metrics.getChunkLatencyP50Millis() + " ms, p99 <= " + metrics.getChunkLatencyP99Millis()
+                + " ms, " + metrics.getTimeouts() + " timeouts, " + metrics.getFragmentRepairs() + " repair requests");
+        if (harness.fec) {
+            System.out.println("fec: " + metrics.getParityFragmentsSent() + " parity fragments sent, " + metrics.getFragmentsRecovered()
+                    + " fragments recovered");
+        }
+        if (harness.auth) {
+            System.out.println("authentication: " + metrics.getPacketsRejected() + " packets rejected, " + metrics.getCookiesSent()
+                    + " cookies sent, " + metrics.getRequestsRateLimited() + " requests rate limited");
+        }
+        if (harness.queryMode) {
+            System.out.println("searches: " + metrics.getSearchesSent() + " sent, " + metrics.getSearchesAnswered() + " answered, "
+                    + metrics.getSearchResultsReceived() + " files found");
+        }
+        boolean failed = !result.complete || (harness.maxSeconds > 0 && result.swarmSeconds > harness.maxSeconds);
+        System.exit(failed ? 1 : 0);
+    }
+
+    // Outcome of a run
+    public static class Result {
+        boolean complete;
+        int leechers;
+        double swarmSeconds;
+        double medianSeconds;
+        double goodput; // bytes of verified file content per second
+        long controlBytes;
+        long controlPackets;
+        long dataBytes;
+        long dataPackets;
+        long droppedPackets;
+
+        @Override
+        public String toString() {
+            double overhead = controlBytes * 100.0 / Math.max(1, controlBytes + dataBytes);
+            return String.format("complete=%s leechers=%d swarmTime=%.2fs medianTime=%.2fs goodput=%.2f MB/s%n"
+                            + "control=%d bytes (%d packets, %.2f%% of traffic) data=%d bytes (%d packets) dropped=%d packets",
+                    complete, leechers, swarmSeconds, medianSeconds, goodput / 1e6,
+                    controlBytes, controlPackets, overhead, dataBytes, dataPackets, droppedPackets);
+        }
+    }
+
+    // Run the scenario once
+    public Result run() throws Exception {
+        SimulatedNetwork network = new SimulatedNetwork();
+        network.setLossRate(loss);
+        network.setReorderRate(reorder);
+        network.setLatency(latency, jitter);
+        network.setBandwidth(bandwidth);
+        network.setMtu(mtu);
+
+        Path root = Files.createTempDirectory("p2p-loadtest");
+        List<NodeDiscovery> discoveries = new ArrayList<>();
+        Result result = new Result();
+        result.leechers = nodes - seeds;
+
+        try {
+            // The seeds share the same random file
+            byte[] content = compressible ? textContent((int) fileSize) : new byte[(int) fileSize];
+            if (!compressible) {
+                new Random(7).nextBytes(content);
+            }
+            String fileHash = null;
+            for (int i = 0; i < nodes; i++) {
+                Path folder = Files.createDirectory(root.resolve("node" + i));
+                if (treeFiles > 0) {
+                    if (i < seeds) {
+                        writeTree(folder.resolve("src"));
+                    }
+                } else if (i < seeds) {
+                    Path file = Files.write(folder.resolve("payload.bin"), content);
+                    fileHash = FileMetadata.calculateHash(file.toFile());
+                } else if (versioned) {
+                    Files.write(folder.resolve("payload-old.bin"), olderVersion(content));
+                }
+                for (int j = 0; j < catalogFiles; j++) {
+                    Files.write(folder.resolve("notes-" + i + "-" + j + ".txt"), ("node " + i + " file " + j).getBytes());
+                }
+            }
+
+            // Start the nodes, each one on its own virtual host
+            for (int i = 0; i < nodes; i++) {
+                String ip = "10.0." + (i / 250) + "." + (i % 250 + 1);
+                String folder = root.resolve("node" + i).toString();
+                Node node = new Node(ip, 0, "loadtest", folder);
+                NodeDiscovery discovery = new NodeDiscovery(node, 0, NodeDiscovery.BROADCAST_PORT, network.host(ip));
+                discovery.setContentDefinedChunking(cdc);
+                discovery.setQueryMode(queryMode);
+                discovery.setAuthentication(auth);
+                discovery.getUploadScheduler().setRate(uploadRate);
+                discovery.setChunkCacheSize(cacheSize * 1024 * 1024);
+                List<File> files = new FileScanner(folder, null).scanForFiles();
+                discovery.scheduleSendDiscoveryPackets(1, TimeUnit.SECONDS);
+                discovery.scheduleFileBroadcast(files, treeFiles > 0 ? 5 : 1, TimeUnit.SECONDS);
+                discovery.listenPackets();
+                discoveries.add(discovery);
+            }
+            if (treeFiles > 0) {
+                return runTree(network, root, discoveries, result);
+            }
+
+            // Wait until every leecher knows a source for the file (in query mode it searches for the hash)
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+            for (int i = seeds; i < nodes; i++) {
+                while (discoveries.get(i).findPeersWithFile(fileHash).isEmpty()) {
+                    if (System.nanoTime() > deadline) {
+                        System.err.println("Node " + i + " did not learn about the file in time");
+                        return collect(result, network);
+                    }
+                    Thread.sleep(50);
+                }
+            }
+            long controlBeforeTransfer = network.controlBytes.sum();
+
+            // Download on every leecher at the same time
+            long start = System.nanoTime();
+            double[] finished = new double[nodes - seeds];
+            double[] firstMegabyte = new double[nodes - seeds];
+            boolean[] streamed = new boolean[nodes - seeds];
+            List<Thread> threads = new ArrayList<>();
+            List<Thread> readers = new ArrayList<>();
+            for (int i = seeds; i < nodes; i++) {
+                int leecher = i - seeds;
+                NodeDiscovery discovery = discoveries.get(i);
+                String target = Files.createDirectory(root.resolve("download" + i)).toString();
+                DownloadListener listener = (fileName, progress) -> {
+                    if (progress == 100) {
+                        finished[leecher] = (System.nanoTime() - start) / 1e9;
+                    }
+                };
+                FileDownloader downloader = new FileDownloader("payload.bin", fileHash, fileSize, target,
+                        new ArrayList<>(discovery.getPeersWithFile(fileHash)), listener, discovery.getTransportFactory());
+                downloader.setChunkTimeout(chunkTimeout);
+                downloader.setCompression(compression);
+                downloader.setFec(fec);
+                if (cdc) {
+                    downloader.setBlockMode(discovery.getBlockIndex(), discovery.getConnectedPeers());
+                }
+                if (streaming) {
+                    int chunkSize = downloader.getChunkSize();
+                    StreamWindow window = new StreamWindow(FileMetadata.chunkCount(fileSize, chunkSize),
+                            Math.max(1, 16 * 1024 * 1024 / chunkSize));
+                    downloader.setStreaming(window);
+                    DownloadChannel channel = new DownloadChannel(new File(target, "payload.bin.part"), new File(target, "payload.bin"),
+                            fileSize, chunkSize, window);
+                    String expectedHash = fileHash;
+                    Thread reader = new Thread(() -> streamed[leecher] = readStream(channel, expectedHash, start, firstMegabyte, leecher),
+                            "reader-" + i);
+                    reader.setDaemon(true);
+                    reader.start();
+                    readers.add(reader);
+                }
+                Thread thread = new Thread(downloader, "download-" + i);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+            for (Thread reader : readers) {
+                reader.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+
+            // Check that every copy is complete and correct
+            result.complete = true;
+            if (streaming) {
+                int verified = 0;
+                for (boolean ok : streamed) {
+                    verified += ok ? 1 : 0;
+                }
+                double[] sortedFirst = firstMegabyte.clone();
+                Arrays.sort(sortedFirst);
+                System.out.printf("streaming: first MB read after %.2fs (median), %.2fs (max), %d of %d streams match the hash%n",
+                        sortedFirst[sortedFirst.length / 2], sortedFirst[sortedFirst.length - 1], verified, streamed.length);
+                result.complete = verified == streamed.length;
+            }
+            for (int i = seeds; i < nodes; i++) {
+                File downloaded = root.resolve("download" + i).resolve("payload.bin").toFile();
+                if (threads.get(i - seeds).isAlive() || !fileHash.equals(FileMetadata.calculateHash(downloaded))) {
+                    result.complete = false;
+                }
+            }
+
+            double[] sorted = finished.clone();
+            Arrays.sort(sorted);
+            result.swarmSeconds = sorted.length > 0 ? sorted[sorted.length - 1] : 0;
+            result.medianSeconds = sorted.length > 0 ? sorted[sorted.length / 2] : 0;
+            result.goodput = result.swarmSeconds > 0 ? fileSize * (double) result.leechers / result.swarmSeconds : 0;
+            collect(result, network);
+            System.out.println("Control bytes before the transfer started: " + controlBeforeTransfer);
+            return result;
+        } finally {
+            for (NodeDiscovery discovery : discoveries) {
+                discovery.stopDiscovery();
+            }
+            deleteFolder(root);
+        }
+    }
+
+    // Read a file while it downloads like a player: the last 64 KB first (where some containers keep their index), then the whole
+    // file from the start; records when the first MB was read, returns true if the data read matches the hash
+    private boolean readStream(DownloadChannel channel, String fileHash, long start, double[] firstMegabyte, int leecher) {
+        try (InputStream in = Channels.newInputStream(channel)) {
+            long size = channel.size();
+            channel.position(Math.max(0, size - 64 * 1024));
+            in.readAllBytes();
+            channel.position(0);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, bytesRead);
+                total += bytesRead;
+                if (firstMegabyte[leecher] == 0 && total >= Math.min(size, 1024 * 1024)) {
+                    firstMegabyte[leecher] = (System.nanoTime() - start) / 1e9;
+                }
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString().equals(fileHash);
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Download the shared tree on every leecher at the same time (the nodes are started)
+    private Result runTree(SimulatedNetwork network, Path root, List<NodeDiscovery> discoveries, Result result) throws Exception {
+        // Wait until every leecher knows every file of the tree
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        for (int i = seeds; i < nodes; i++) {
+            while (discoveries.get(i).getFilesInFolder("src").size() < treeFiles) {
+                if (System.nanoTime() > deadline) {
+                    System.err.println("Node " + i + " did not learn about the tree in time");
+                    return collect(result, network);
+                }
+                Thread.sleep(50);
+            }
+        }
+        long controlBeforeTransfer = network.controlBytes.sum();
+        long treeSize = 0;
+        for (FileMetadata metadata : discoveries.get(seeds).getFilesInFolder("src")) {
+            treeSize += metadata.getFileSize();
+        }
+
+        long start = System.nanoTime();
+        double[] finished = new double[nodes - seeds];
+        List<Thread> threads = new ArrayList<>();
+        for (int i = seeds; i < nodes; i++) {
+            int leecher = i - seeds;
+            NodeDiscovery discovery = discoveries.get(i);
+            String target = Files.createDirectory(root.resolve("download" + i)).toString();
+            TransportFactory transport = discovery.getTransportFactory();
+            List<FileMetadata> files = discovery.getFilesInFolder("src");
+            Runnable task;
+            if (pipeline) {
+                FolderDownloader downloader = new FolderDownloader("src/", files, target, discovery::getPeersWithFile,
+                        (name, progress) -> { }, transport);
+                downloader.setChunkTimeout(chunkTimeout);
+                downloader.setCompression(compression);
+                task = downloader;
+            } else {
+                // One download per file, one after the other (a full round trip per file)
+                task = () -> {
+                    for (FileMetadata metadata : files) {
+                        FileDownloader downloader = new FileDownloader(metadata.getPath(), metadata.getFileHash(), metadata.getFileSize(),
+                                target, new ArrayList<>(discovery.getPeersWithFile(metadata.getFileHash())), (name, progress) -> { }, transport);
+                        downloader.setChunkTimeout(chunkTimeout);
+                        downloader.setCompression(compression);
+                downloader.setFec(fec);
+                        downloader.setChunkSize(metadata.getChunkSize());
+                        downloader.run();
+                    }
+                };
+            }
+            Thread thread = new Thread(() -> {
+                task.run();
+                finished[leecher] = (System.nanoTime() - start) / 1e9;
+            }, "download-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        }
+
+        // Check that every copy of every file is complete and correct
+        result.complete = true;
+        for (int i = seeds; i < nodes; i++) {
+            if (threads.get(i - seeds).isAlive()) {
+                result.complete = false;
+                continue;
+            }
+            for (FileMetadata metadata : discoveries.get(i).getFilesInFolder("src")) {
+                File downloaded = root.resolve("download" + i).resolve(metadata.getPath()).toFile();
+                if (!metadata.getFileHash().equals(FileMetadata.calculateHash(downloaded))) {
+                    result.complete = false;
+                }
+            }
+        }
+
+        double[] sorted = finished.clone();
+        Arrays.sort(sorted);
+        result.swarmSeconds = sorted.length > 0 ? sorted[sorted.length - 1] : 0;
+        result.medianSeconds = sorted.length > 0 ? sorted[sorted.length / 2] : 0;
+        result.goodput = result.swarmSeconds > 0 ? treeSize * (double) result.leechers / result.swarmSeconds : 0;
+        collect(result, network);
+        System.out.println("Tree: " + treeFiles + " files, " + treeSize + " bytes");
+        System.out.println("Control bytes before the transfer started: " + controlBeforeTransfer);
+        return result;
+    }
+
+    // A source-like tree: treeFiles files of 200 bytes to 16 KB in nested folders
+    private void writeTree(Path folder) throws IOException {
+        Random random = new Random(7);
+        for (int i = 0; i < treeFiles; i++) {
+            Path dir = folder.resolve("module" + (i % 8)).resolve("pkg" + (i / 8 % 16));
+            Files.createDirectories(dir);
+            byte[] content = textContent(200 + random.nextInt(16 * 1024));
+            content[0] = (byte) i; // Distinct files
+            content[1] = (byte) (i >> 8);
+            content[2] = (byte) (i >> 16);
+            Files.write(dir.resolve("File" + i + ".java"), content);
+        }
+    }
+
+    // Log-like lines with some variation, compresses about like real text files
+    private static byte[] textContent(int size) {
+        Random random = new Random(7);
+        String[] levels = {"INFO", "DEBUG", "WARN", "ERROR"};
+        StringBuilder sb = new StringBuilder(size + 128);
+        while (sb.length() < size) {
+            sb.append("2024-01-").append(10 + random.nextInt(20)).append(' ').append(random.nextInt(86400000))
+                    .append(' ').append(levels[random.nextInt(levels.length)]).append(" worker-").append(random.nextInt(16))
+                    .append(" processed request ").append(random.nextInt(1000000)).append(" in ")
+                    .append(random.nextInt(500)).append(" ms\n");
+        }
+        byte[] content = new byte[size];
+        System.arraycopy(sb.toString().getBytes(), 0, content, 0, size);
+        return content;
+    }
+
+    // The content with a few small edits (a byte inserted, 100 bytes removed), like two builds of the same image
+    private static byte[] olderVersion(byte[] content) {
+        int insertAt = content.length / 4;
+        int deleteAt = content.length / 2;
+        ByteArrayOutputStream older = new ByteArrayOutputStream(content.length);
+        older.write(content, 0, insertAt);
+        older.write(42);
+        older.write(content, insertAt, deleteAt - insertAt);
+        older.write(content, deleteAt + 100, content.length - deleteAt - 100);
+        return older.toByteArray();
+    }
+
+    // Copy the network counters into the result
+    private static Result collect(Result result, SimulatedNetwork network) {
+        result.controlBytes = network.controlBytes.sum();
+        result.controlPackets = network.controlPackets.sum();
+        result.dataBytes = network.dataBytes.sum();
+        result.dataPackets = network.dataPackets.sum();
+        result.droppedPackets = network.droppedPackets.sum();
+        return result;
+    }
+
+    // Delete the temporary folders of the run
+    private static void deleteFolder(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
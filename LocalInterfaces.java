@@ -0,0 +1,94 @@
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The network interfaces of this host: which one reaches an address, and which ones can carry a multicast group
+class LocalInterfaces {
+    private static final Map<InetAddress, Optional<InetAddress>> LOCAL_ADDRESSES = new ConcurrentHashMap<>();
+
+    // Interface whose subnet contains the address, null if it is not on a local network
+    static NetworkInterface findInterface(InetAddress address) {
+        InterfaceAddress match = findSubnet(address);
+        if (match == null) {
+            return null;
+        }
+        try {
+            return NetworkInterface.getByInetAddress(match.getAddress());
+        } catch (SocketException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Address of this host on the network of the address (cached), null if it is not on a local network
+    // A multi-homed host has to give each network its own address
+    static InetAddress localAddressFor(InetAddress address) {
+        return LOCAL_ADDRESSES.computeIfAbsent(address, k -> {
+            InterfaceAddress match = findSubnet(k);
+            return Optional.ofNullable(match != null ? match.getAddress() : null);
+        }).orElse(null);
+    }
+
+    // Interfaces to join a multicast group on: up, multicast capable, not loopback, with an address of the group's family
+    static List<NetworkInterface> groupInterfaces(InetAddress group) {
+        List<NetworkInterface> result = new ArrayList<>();
+        try {
+            for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp() || networkInterface.isLoopback() || !networkInterface.supportsMulticast()) {
+                    continue;
+                }
+                for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                    if (address.getClass() == group.getClass()) {
+                        result.add(networkInterface);
+                        break;
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+    // Local interface address whose subnet contains the address, null if none
+    private static InterfaceAddress findSubnet(InetAddress address) {
+        try {
+            for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp()) {
+                    continue;
+                }
+                for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+                    if (sameSubnet(interfaceAddress, address)) {
+                        return interfaceAddress;
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static boolean sameSubnet(InterfaceAddress interfaceAddress, InetAddress address) {
+        byte[] a = interfaceAddress.getAddress().getAddress();
+        byte[] b = address.getAddress();
+        int prefix = interfaceAddress.getNetworkPrefixLength();
+        if (a.length != b.length || prefix <= 0) {
+            return false;
+        }
+        for (int bit = 0; bit < prefix; bit++) {
+            int mask = 0x80 >> (bit % 8);
+            if ((a[bit / 8] & mask) != (b[bit / 8] & mask)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
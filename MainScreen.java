@@ -1,23 +1,23 @@
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 import java.awt.*;
 import java.awt.event.MouseListener;
 import java.io.File;
-import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.NetworkInterface;
-import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.util.Enumeration;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
-public class MainScreen {
+public class MainScreen implements DownloadListener {
     // Instance Variables for MainScreen
     private JFrame frame;
     private JList<String> nodeList;
@@ -29,14 +29,39 @@ public class MainScreen {
 
     // Models for JLists and JTable
     private DefaultListModel<String> nodeListModel;
-    private DefaultListModel<String> fileListModel;
-    private DefaultTableModel fileTransfersModel;
+    private FileListModel fileListModel;
+    private TransfersTableModel fileTransfersModel;
     private JTable fileTransfersTable;
     private JLabel hostnameLabel;
     private JLabel ipLabel;
 
-    // Map to store file metadata 
-    private Map<String, String> fileMetadataMap = new HashMap<>();
+    // Events received from the network threads, applied to the models at most once per frame
+    private Map<String, FileMetadata> pendingFiles = new ConcurrentHashMap<>(); // unique key -> metadata
+    private Set<String> pendingDeletes = ConcurrentHashMap.newKeySet(); // file hashes
+    private Map<String, Boolean> pendingNodes = new ConcurrentHashMap<>(); // node info -> connected
+    private Map<String, Integer> pendingProgress = new ConcurrentHashMap<>(); // file name -> progress
+    private Map<String, DownloadManager.Download> pendingStatus = new ConcurrentHashMap<>(); // file name -> changed download
+    private SwingCoalescer modelUpdater = new SwingCoalescer(this::applyPendingUpdates);
+
+    // Search over the files found in the network
+    private static final int MAX_SEARCH_RESULTS = 1000;
+    private FileSearchIndex searchIndex = new FileSearchIndex();
+    private JTextField searchField;
+    private DefaultListModel<String> searchResultsModel = new DefaultListModel<>();
+
+    // In query mode (-Dp2p.queryMode=true) the other nodes are searched once the user stops typing
+    private static final int SEARCH_DELAY_MILLIS = 400;
+    private Timer remoteSearchTimer = new Timer(SEARCH_DELAY_MILLIS, e -> searchNetwork());
+
+    // Progress of the hashing of the shared files, which are announced one by one while they are hashed
+    private JLabel hashingLabel;
+    private Timer hashingTimer = new Timer(1000, e -> updateHashingProgress());
+
+    // Queue of the downloads (-Dp2p.maxDownloads=3, -Dp2p.downloadRate=<bytes per second>)
+    private DownloadManager downloadManager;
+
+    // Upload limit of the files served to other nodes (-Dp2p.uploadRate=<bytes per second>, -Dp2p.uploadSchedule=08:00-18:00=256k)
+    private long uploadRate = Long.getLong("p2p.uploadRate", 0);
 
     // Menu Items
     private JMenuItem connectItem;
@@ -73,12 +98,41 @@ public class MainScreen {
         // File List
         JPanel filePanel = new JPanel(new BorderLayout());
         JLabel fileLabel = new JLabel("Files Found:");
-        filePanel.add(fileLabel, BorderLayout.NORTH);
+        searchField = new JTextField();
+        searchField.setToolTipText("Words in the file name, ext:pdf, >10MB, <1GB, hash:<sha-256>");
+        JPanel fileHeaderPanel = new JPanel(new BorderLayout());
+        fileHeaderPanel.add(fileLabel, BorderLayout.NORTH);
+        fileHeaderPanel.add(searchField, BorderLayout.SOUTH);
+        filePanel.add(fileHeaderPanel, BorderLayout.NORTH);
         filePanel.add(new JScrollPane(fileList), BorderLayout.CENTER);
         topPanel.add(filePanel);
         
-        fileListModel = new DefaultListModel<>();
+        fileListModel = new FileListModel();
         fileList.setModel(fileListModel);
+        // Fixed cell size so that the list does not measure every cell when it changes
+        fileList.setPrototypeCellValue("a-typical-file-name.ext:0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef (99 peers)");
+
+        // Show how many peers hold each file
+        fileList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                String text = String.valueOf(value);
+                FileMetadata metadata = fileListModel.getMetadata(text);
+                if (metadata != null && nodeDiscovery != null) {
+                    int peers = nodeDiscovery.getPeersWithFile(metadata.getFileHash()).size();
+                    text += " (" + peers + (peers == 1 ? " peer)" : " peers)");
+                }
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+
+        // Search as the user types
+        remoteSearchTimer.setRepeats(false);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override public void insertUpdate(DocumentEvent e) { onSearchChanged(); }
+            @Override public void removeUpdate(DocumentEvent e) { onSearchChanged(); }
+            @Override public void changedUpdate(DocumentEvent e) { onSearchChanged(); }
+        });
 
         // Add top panel to the frame
         frame.add(topPanel, BorderLayout.CENTER);
@@ -90,15 +144,51 @@ public class MainScreen {
         JPanel fileTransfersPanel = new JPanel(new BorderLayout());
         JLabel fileTransfersLabel = new JLabel("File Transfers:");
         fileTransfersPanel.add(fileTransfersLabel, BorderLayout.NORTH);
-        fileTransfersModel = new DefaultTableModel(new Object[]{"File Name", "Progress", "Status"}, 0);
+        fileTransfersModel = new TransfersTableModel();
         fileTransfersTable = new JTable(fileTransfersModel);
         fileTransfersPanel.add(new JScrollPane(fileTransfersTable), BorderLayout.CENTER);        
+
+        // Pause, resume, cancel and reorder the selected transfer
+        JPopupMenu transferMenu = new JPopupMenu();
+        JMenuItem pauseItem = new JMenuItem("Pause");
+        JMenuItem resumeItem = new JMenuItem("Resume");
+        JMenuItem cancelItem = new JMenuItem("Cancel");
+        JMenuItem raiseItem = new JMenuItem("Higher Priority");
+        JMenuItem lowerItem = new JMenuItem("Lower Priority");
+        pauseItem.addActionListener(e -> withSelectedDownload(d -> downloadManager.pause(d.getFileHash())));
+        resumeItem.addActionListener(e -> withSelectedDownload(d -> downloadManager.resume(d.getFileHash())));
+        cancelItem.addActionListener(e -> withSelectedDownload(d -> downloadManager.cancel(d.getFileHash())));
+        raiseItem.addActionListener(e -> withSelectedDownload(d -> downloadManager.setPriority(d.getFileHash(), d.getPriority() + 1)));
+        lowerItem.addActionListener(e -> withSelectedDownload(d -> downloadManager.setPriority(d.getFileHash(), d.getPriority() - 1)));
+        transferMenu.add(pauseItem);
+        transferMenu.add(resumeItem);
+        transferMenu.add(cancelItem);
+        transferMenu.addSeparator();
+        transferMenu.add(raiseItem);
+        transferMenu.add(lowerItem);
+        fileTransfersTable.setComponentPopupMenu(transferMenu);
+
+        downloadManager = new DownloadManager(new File(System.getProperty("user.home"), ".p2p-downloads"), this);
+        downloadManager.setMaxConcurrent(Integer.getInteger("p2p.maxDownloads", 3));
+        downloadManager.setRateLimit(Long.getLong("p2p.downloadRate", 0));
+        downloadManager.setDownloaderSetup(downloader -> {
+            downloader.setFec(!"false".equals(System.getProperty("p2p.fec")));
+            if (Boolean.getBoolean("p2p.cdc")) {
+                downloader.setBlockMode(nodeDiscovery.getBlockIndex(), nodeDiscovery.getConnectedPeers());
+            }
+        });
+        downloadManager.setOnChangeCallback(download -> {
+            pendingStatus.put(download.getFileName(), download);
+            modelUpdater.request();
+        });
         
         // Hostname and IP Labels
         hostnameLabel = new JLabel();
         ipLabel = new JLabel();
+        hashingLabel = new JLabel("", SwingConstants.CENTER);
         
         bottomPanel.add(hostnameLabel, BorderLayout.WEST);
+        bottomPanel.add(hashingLabel, BorderLayout.CENTER);
         bottomPanel.add(ipLabel, BorderLayout.EAST);
         bottomPanel.add(fileTransfersPanel, BorderLayout.NORTH);
 
@@ -108,6 +198,10 @@ public class MainScreen {
         // Set hostname and IP
         setHostnameAndIP();
 
+        // Publish the metrics (JMX and the optional localhost endpoint: -Dp2p.metrics.port=9100)
+        Metrics.registerMBean();
+        MetricsServer.startIfEnabled(Integer.getInteger("p2p.metrics.port", 0));
+
         // Menu
         JMenuBar menuBar = new JMenuBar();
         frame.setJMenuBar(menuBar);
@@ -127,6 +221,23 @@ public class MainScreen {
         fileMenu.addSeparator();
         fileMenu.add(exitItem);
 
+        // Transfers Menu
+        JMenu transfersMenu = new JMenu("Transfers");
+        menuBar.add(transfersMenu);
+        JMenuItem downloadFolderItem = new JMenuItem("Download Folder...");
+        JMenuItem maxDownloadsItem = new JMenuItem("Max Concurrent Downloads...");
+        JMenuItem rateLimitItem = new JMenuItem("Download Rate Limit...");
+        JMenuItem uploadRateItem = new JMenuItem("Upload Rate Limit...");
+        transfersMenu.add(downloadFolderItem);
+        transfersMenu.addSeparator();
+        transfersMenu.add(maxDownloadsItem);
+        transfersMenu.add(rateLimitItem);
+        transfersMenu.add(uploadRateItem);
+        downloadFolderItem.addActionListener(e -> askDownloadFolder());
+        maxDownloadsItem.addActionListener(e -> askMaxDownloads());
+        rateLimitItem.addActionListener(e -> askRateLimit());
+        uploadRateItem.addActionListener(e -> askUploadRate());
+
         // Help Menu
         JMenu helpMenu = new JMenu("Help");
         menuBar.add(helpMenu);
@@ -163,50 +274,191 @@ public class MainScreen {
 
         System.out.println("Peers with file: " + peersWithFile); // Uncomment for debugging
     
-        // Start the FileDownloader in a new thread
-        FileDownloader downloader = new FileDownloader(fileName, fileHash, fileSize, sharedFolderPath, peersWithFile, this);
-        new Thread(downloader).start();
+        // Queue the download in the chunk size of the peers, the download manager starts it when a slot is free
+        FileMetadata metadata = nodeDiscovery != null ? nodeDiscovery.getFileMetadata(fileHash) : null;
+        int chunkSize = metadata != null ? metadata.getChunkSize() : FileMetadata.chunkSizeFor(fileSize);
+        downloadManager.enqueue(fileName, fileHash, fileSize, chunkSize, sharedFolderPath, 0);
+    }
 
-        // Add entry to file transfers table
-        fileTransfersModel.addRow(new Object[]{fileName, "0%", "Downloading"});
+    // Run an action on the download of the selected transfer row
+    private void withSelectedDownload(Consumer<DownloadManager.Download> action) {
+        int row = fileTransfersTable.getSelectedRow();
+        if (row < 0) {
+            return;
+        }
+        DownloadManager.Download download = downloadManager.findByName(fileTransfersModel.getFileName(fileTransfersTable.convertRowIndexToModel(row)));
+        if (download != null) {
+            action.accept(download);
+        }
     }
 
-    private void processFileInformation(String fileInfo) {
-        // Extract additional details from fileInfo
-        String[] parts = fileInfo.split(":");
-        String fileName = parts[2];
-        String fileHash = parts[6];
+    // Ask for a folder of the other nodes and download all its files (sub-folders included)
+    private void askDownloadFolder() {
+        List<String> folders = nodeDiscovery != null ? nodeDiscovery.getKnownFolders() : new ArrayList<>();
+        if (folders.isEmpty()) {
+            JOptionPane.showMessageDialog(frame, "No folder found in the network.", "Download Folder", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        Object folder = JOptionPane.showInputDialog(frame, "Folder:", "Download Folder", JOptionPane.PLAIN_MESSAGE, null,
+                folders.toArray(), folders.get(0));
+        if (folder != null) {
+            List<FileMetadata> files = nodeDiscovery.getFilesInFolder(folder.toString());
+            downloadManager.downloadFolder(folder + "/", files, sharedFolderPath, 0, true);
+        }
+    }
 
-        // Combine file name and hash to create a unique key (in case of duplicate file names)
-        String uniqueKey = fileName + ":" + fileHash;
-        
-        // Store the full metadata using the unique key
-        fileMetadataMap.put(uniqueKey, fileInfo);
+    // Ask for the number of downloads running at the same time
+    private void askMaxDownloads() {
+        String value = JOptionPane.showInputDialog(frame, "Max concurrent downloads:", downloadManager.getMaxConcurrent());
+        if (value != null) {
+            try {
+                downloadManager.setMaxConcurrent(Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                JOptionPane.showMessageDialog(frame, "Invalid number: " + value, "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
+    // Ask for the download rate limit of all downloads
+    private void askRateLimit() {
+        String value = JOptionPane.showInputDialog(frame, "Download rate limit in KB/s (0 = unlimited):", downloadManager.getRateLimit() / 1024);
+        if (value != null) {
+            try {
+                downloadManager.setRateLimit(Long.parseLong(value.trim()) * 1024);
+            } catch (NumberFormatException e) {
+                JOptionPane.showMessageDialog(frame, "Invalid number: " + value, "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
+    // Ask for the upload rate limit of the files served to other nodes
+    private void askUploadRate() {
+        String value = JOptionPane.showInputDialog(frame, "Upload rate limit in KB/s (0 = unlimited):", uploadRate / 1024);
+        if (value != null) {
+            try {
+                uploadRate = Long.parseLong(value.trim()) * 1024;
+                if (nodeDiscovery != null) {
+                    nodeDiscovery.getUploadScheduler().setRate(uploadRate);
+                }
+            } catch (NumberFormatException e) {
+                JOptionPane.showMessageDialog(frame, "Invalid number: " + value, "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
 
-        // Add unique key to the file list model
-        if (!fileListModel.contains(uniqueKey)) {
-            fileListModel.addElement(uniqueKey);
+    // Text of the state of a download in the transfers table
+    private static String statusText(DownloadManager.State state) {
+        switch (state) {
+            case QUEUED: return "Queued";
+            case RUNNING: return "Downloading...";
+            case PAUSED: return "Paused";
+            case COMPLETED: return "Completed";
+            default: return "Cancelled";
         }
     }
 
     private void onFileSelected() {
         // Get the selected file's unique key
         String selectedUniqueKey = fileList.getSelectedValue();
+        FileMetadata metadata = selectedUniqueKey != null ? fileListModel.getMetadata(selectedUniqueKey) : null;
         // Check if the file info is available
-        if (selectedUniqueKey != null && fileMetadataMap.containsKey(selectedUniqueKey)) {
-            String fullMetadata = fileMetadataMap.get(selectedUniqueKey);
-            // Extract additional details from fullMetadata
-            String[] parts = fullMetadata.split(":");
-            String fileName = parts[2];
-            String fileHash = parts[6];
-            long fileSize = Long.parseLong(parts[3]);
-
-            startFileDownload(fileName, fileHash, fileSize);
+        if (metadata != null) {
+            startFileDownload(metadata.getPath(), metadata.getFileHash(), metadata.getFileSize());
         } else { // This should never happen
             System.out.println("File info not found for selected file: " + selectedUniqueKey);
         }
     }
 
+    // Apply the pending network events to the models (runs on the EDT)
+    private void applyPendingUpdates() {
+        // Nodes
+        for (String nodeInfo : pendingNodes.keySet()) {
+            Boolean connected = pendingNodes.remove(nodeInfo);
+            if (Boolean.TRUE.equals(connected)) {
+                if (!nodeListModel.contains(nodeInfo)) {
+                    nodeListModel.addElement(nodeInfo);
+                }
+            } else {
+                removeNodeFromList(nodeInfo);
+            }
+        }
+
+        // Files
+        List<FileMetadata> added = new ArrayList<>();
+        for (String key : pendingFiles.keySet()) {
+            FileMetadata metadata = pendingFiles.remove(key);
+            if (metadata != null) {
+                added.add(metadata);
+            }
+        }
+        fileListModel.addAll(added);
+
+        List<String> deleted = new ArrayList<>();
+        for (String fileHash : pendingDeletes) {
+            if (pendingDeletes.remove(fileHash)) {
+                deleted.add(fileHash);
+            }
+        }
+        fileListModel.removeHashes(deleted);
+
+        // Refresh the search results if the catalog changed
+        if (!added.isEmpty() || !deleted.isEmpty()) {
+            updateSearchResults();
+        }
+
+        // Transfers
+        Map<String, Integer> progress = new HashMap<>();
+        for (String fileName : pendingProgress.keySet()) {
+            Integer value = pendingProgress.remove(fileName);
+            if (value != null) {
+                progress.put(fileName, value);
+            }
+        }
+        fileTransfersModel.updateProgress(progress);
+
+        for (String fileName : pendingStatus.keySet()) {
+            DownloadManager.Download download = pendingStatus.remove(fileName);
+            if (download != null) {
+                fileTransfersModel.setStatus(fileName, statusText(download.getState()), download.getPriority());
+            }
+        }
+    }
+
+    // Filter the files found so far, and search the other nodes in query mode
+    private void onSearchChanged() {
+        updateSearchResults();
+        if (nodeDiscovery != null && nodeDiscovery.isQueryMode()) {
+            remoteSearchTimer.restart();
+        }
+    }
+
+    // Send the search field to the other nodes, the files found are added to the list as they arrive
+    private void searchNetwork() {
+        String query = searchField.getText().trim();
+        if (nodeDiscovery != null && !query.isEmpty()) {
+            nodeDiscovery.search(query);
+        }
+    }
+
+    // Show the files matching the search field, or every file if it is empty
+    private void updateSearchResults() {
+        String query = searchField.getText().trim();
+        if (query.isEmpty()) {
+            if (fileList.getModel() != fileListModel) {
+                fileList.setModel(fileListModel);
+            }
+            return;
+        }
+
+        List<String> keys = new ArrayList<>();
+        for (FileMetadata metadata : searchIndex.search(query, MAX_SEARCH_RESULTS)) {
+            keys.add(FileMetadata.keyOf(metadata));
+        }
+        searchResultsModel = new DefaultListModel<>();
+        searchResultsModel.addAll(keys);
+        fileList.setModel(searchResultsModel);
+    }
+
     // Connect to the network
     private void connect() {
         try {
@@ -215,58 +467,64 @@ public class MainScreen {
             // Create a local node and start discovery
             Node localNode = new Node(ipAddress, 0, secretKey, sharedFolderPath);
             nodeDiscovery = new NodeDiscovery(localNode);
-
-            // Start File Scanner and Broadcast
+            nodeDiscovery.setDiscoveryGroup(System.getProperty("p2p.discoveryGroup", NodeDiscovery.DEFAULT_DISCOVERY_GROUP));
+            nodeDiscovery.setContentDefinedChunking(Boolean.getBoolean("p2p.cdc"));
+            nodeDiscovery.setQueryMode(Boolean.getBoolean("p2p.queryMode"));
+            nodeDiscovery.setAuthentication(!"false".equals(System.getProperty("p2p.auth")));
+            nodeDiscovery.getUploadScheduler().setRate(uploadRate);
+            nodeDiscovery.getUploadScheduler().setSchedule(System.getProperty("p2p.uploadSchedule", ""));
+            nodeDiscovery.setChunkCacheSize(Long.getLong("p2p.cacheSize", NodeDiscovery.DEFAULT_CACHE_SIZE / (1024 * 1024)) * 1024 * 1024);
+
+            // Start File Scanner and Broadcast (the folder is scanned and hashed in the background)
             FileScanner fileScanner = new FileScanner(sharedFolderPath, excludedFolders);
-            List<File> fileList = fileScanner.scanForFiles();
             nodeDiscovery.scheduleSendDiscoveryPackets(5, TimeUnit.SECONDS);
-            nodeDiscovery.scheduleFileBroadcast(fileList, 6, TimeUnit.SECONDS);
+            nodeDiscovery.scheduleFileBroadcast(fileScanner, 6, TimeUnit.SECONDS);
+            hashingTimer.start();
 
             // Start listening for packets
             nodeDiscovery.listenPackets();
 
+            // Start the queued downloads (also the ones of the previous run) when their peers are known
+            downloadManager.setTransportFactory(nodeDiscovery.getTransportFactory());
+            downloadManager.setLocalLookup(nodeDiscovery::getSharedFile);
+            downloadManager.setPeerLookup(nodeDiscovery::findPeersWithFile);
+            for (DownloadManager.Download download : downloadManager.getDownloads()) {
+                pendingStatus.put(download.getFileName(), download);
+            }
+            modelUpdater.request();
+
             // Set callbacks (what to do when a node is discovered, file is broadcasted, etc.)
 
             // Discover nodes
             nodeDiscovery.setOnNodeDiscoveredCallback(nodeInfo -> {
-                SwingUtilities.invokeLater(() -> {
-                    if (!nodeListModel.contains(nodeInfo)) {
-                        nodeListModel.addElement(nodeInfo);
-                    }
-                });
+                pendingNodes.put(nodeInfo, Boolean.TRUE);
+                modelUpdater.request();
             });
 
             // Broadcast files
             nodeDiscovery.setOnFileBroadcastCallback(fileInfo -> {
-                SwingUtilities.invokeLater(() -> {
-                    if (!fileListModel.contains(fileInfo)) {
-                        processFileInformation(fileInfo);
-                    }
-                });
+                FileMetadata metadata = NodeDiscovery.parseFileBroadcast(fileInfo, nodeDiscovery.getMessageSecret());
+                if (metadata != null) {
+                    // A file announced again after a delete is back in the network
+                    pendingDeletes.remove(metadata.getFileHash());
+                    searchIndex.add(metadata);
+                    pendingFiles.put(FileMetadata.keyOf(metadata), metadata);
+                    modelUpdater.request();
+                }
             });
 
             // Remove nodes
             nodeDiscovery.setOnDisconnectCallback(nodeInfo -> {
-                SwingUtilities.invokeLater(() -> {
-                    removeNodeFromList(nodeInfo);
-                });
+                pendingNodes.put(nodeInfo, Boolean.FALSE);
+                modelUpdater.request();
             });
 
             // Remove files
             nodeDiscovery.setOnDeleteCallback(fileHash -> {
-                SwingUtilities.invokeLater(() -> {
-                    // Remove the file from the file list
-                    for (int i = fileListModel.getSize() - 1; i >= 0; i--) {
-                        String fileInfo = fileListModel.getElementAt(i);
-                        // Get full metadata from fileMetadataMap
-                        fileInfo = fileMetadataMap.get(fileInfo);
-                        String[] parts = fileInfo.split(":");
-                        String hash = parts[6];
-                        if (hash.equals(fileHash)) {
-                            fileListModel.removeElementAt(i);
-                        }
-                    }
-                });
+                pendingFiles.values().removeIf(metadata -> metadata.getFileHash().equals(fileHash));
+                searchIndex.removeHash(fileHash);
+                pendingDeletes.add(fileHash);
+                modelUpdater.request();
             });
             
             // Disable connect menu item
@@ -284,9 +542,26 @@ public class MainScreen {
         }
     }
 
+    // Show how many shared files are hashed, nothing once they are all hashed
+    private void updateHashingProgress() {
+        if (nodeDiscovery == null) {
+            return;
+        }
+        if (nodeDiscovery.getSharedFiles() == null) {
+            hashingLabel.setText("Scanning shared folder...");
+            return;
+        }
+        int hashed = nodeDiscovery.getHashedFileCount();
+        int queued = nodeDiscovery.getHashQueueDepth();
+        hashingLabel.setText(queued > 0 ? "Hashing shared files: " + hashed + " of " + (hashed + queued) : "");
+    }
+
     // Disconnect from the network
     private void disconnect() {
         if (nodeDiscovery != null) {
+            // Stop the downloads, they stay in the queue
+            downloadManager.suspend();
+
             // Stop broadcasting and listening
             nodeDiscovery.broadcastDisconnect();
             nodeDiscovery.stopDiscovery();
@@ -294,10 +569,19 @@ public class MainScreen {
             "Disconnection", JOptionPane.INFORMATION_MESSAGE);
 
             // Clear the GUI
+            pendingFiles.clear();
+            pendingDeletes.clear();
+            pendingNodes.clear();
+            pendingProgress.clear();
+            pendingStatus.clear();
+            remoteSearchTimer.stop();
+            hashingTimer.stop();
+            hashingLabel.setText("");
+            searchIndex.clear();
             fileListModel.clear();
+            searchField.setText("");
             nodeListModel.clear();
-            fileMetadataMap.clear();
-            fileTransfersModel.setRowCount(0);
+            fileTransfersModel.clear();
             // Enable connect menu item
             connectItem.setEnabled(true);
             // Disable disconnect menu item
@@ -308,17 +592,13 @@ public class MainScreen {
     // Exit the application
     private void exit() {
         disconnect();
+        downloadManager.shutdown();
         System.exit(0);
     }
 
     // Remove a node from the list at the GUI
     private void removeNodeFromList(String nodeInfo) {
-        for (int i = 0; i < nodeListModel.getSize(); i++) {
-            if (nodeListModel.get(i).equals(nodeInfo)) {
-                nodeListModel.remove(i);
-                break;
-            }
-        }
+        nodeListModel.removeElement(nodeInfo);
     }
 
     // Show about information
@@ -329,22 +609,11 @@ public class MainScreen {
     }
 
     // Update the download progress for a file
+    @Override
     public void updateDownloadProgress(String fileName, int progress) {
-        SwingUtilities.invokeLater(() -> {
-            // Find the row for the file and update its progress
-            for (int i = 0; i < fileTransfersModel.getRowCount(); i++) {
-                if (fileTransfersModel.getValueAt(i, 0).equals(fileName)) {
-                    fileTransfersModel.setValueAt(progress + "%", i, 1); // Assuming column 1 is for progress
-                    if (progress == 100) {
-                        fileTransfersModel.setValueAt("Completed", i, 2); // Assuming column 2 is for status
-                    }
-                    return;
-                }
-            }
-    
-            // If the file is not in the table, add it
-            fileTransfersModel.addRow(new Object[]{fileName, progress + "%", "Downloading..."});
-        });
+        // Only the latest progress of each file is shown, once per frame
+        pendingProgress.put(fileName, progress);
+        modelUpdater.request();
     }
 
     // Set the hostname and IP labels at the bottom panel
@@ -352,7 +621,7 @@ public class MainScreen {
         try {
             InetAddress localHost = InetAddress.getLocalHost();
             hostnameLabel.setText(" Hostname: " + localHost.getHostName());
-            ipLabel.setText("IP: " + getLocalNetworkIP() + " ");
+            ipLabel.setText("IP: " + NodeDiscovery.getLocalNetworkIP() + " ");
         } catch (UnknownHostException e) {
             hostnameLabel.setText("Hostname: Unknown");
             ipLabel.setText("IP: Unknown");
@@ -360,29 +629,6 @@ public class MainScreen {
         }
     }
 
-    static String getLocalNetworkIP() {
-        String ipAddress = null;
-        try {
-            Enumeration<NetworkInterface> networkInterfaces = NetworkInterface.getNetworkInterfaces();
-            while (networkInterfaces.hasMoreElements()) {
-                NetworkInterface networkInterface = networkInterfaces.nextElement();
-                if (networkInterface.isUp() && !networkInterface.isLoopback()) {
-                    Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
-                    while (addresses.hasMoreElements()) {
-                        InetAddress address = addresses.nextElement();
-                        if (address instanceof Inet4Address && !address.isLoopbackAddress()) {
-                            ipAddress = address.getHostAddress();
-                            break;
-                        }
-                    }
-                }
-            }
-        } catch (SocketException e) {
-            e.printStackTrace();
-        }
-        return ipAddress;
-    }
-
     // Get the list of peers having the file
     private List<Peer> getPeersWithFile(String fileHash) {
         return nodeDiscovery.getPeersWithFile(fileHash);
@@ -0,0 +1,415 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import javax.management.ObjectName;
+
+// Process wide metrics registry, the hot paths only call LongAdder methods (no locks, no allocation)
+public class Metrics implements MetricsMXBean {
+    private static final Metrics INSTANCE = new Metrics();
+
+    // Traffic counters
+    public final LongAdder bytesSent = new LongAdder();
+    public final LongAdder bytesReceived = new LongAdder();
+    public final LongAdder packetsSent = new LongAdder();
+    public final LongAdder packetsReceived = new LongAdder();
+
+    // Chunk counters
+    public final LongAdder chunksServed = new LongAdder();
+    public final LongAdder chunksRequested = new LongAdder();
+    public final LongAdder chunksReceived = new LongAdder();
+    public final LongAdder timeouts = new LongAdder();
+    public final LongAdder retransmits = new LongAdder();
+    public final LongAdder fragmentRepairs = new LongAdder();
+    public final LongAdder fragmentsRecovered = new LongAdder();
+    public final LongAdder parityFragmentsSent = new LongAdder();
+    public final LatencyHistogram chunkLatency = new LatencyHistogram();
+    public final LongAdder chunksCompressed = new LongAdder();
+    public final LongAdder compressionSavedBytes = new LongAdder();
+    public final LongAdder blocksReused = new LongAdder();
+    public final LongAdder dedupSavedBytes = new LongAdder();
+    public final LongAdder uploadRequestsDropped = new LongAdder();
+    public final LongAdder chunkCacheHits = new LongAdder();
+    public final LongAdder chunkCacheMisses = new LongAdder();
+    public final LongAdder chunksPrefetched = new LongAdder();
+
+    // Search counters (query mode)
+    public final LongAdder searchesSent = new LongAdder();
+    public final LongAdder searchesAnswered = new LongAdder();
+    public final LongAdder searchResultsReceived = new LongAdder();
+
+    // Authentication counters
+    public final LongAdder packetsRejected = new LongAdder();
+    public final LongAdder cookiesSent = new LongAdder();
+    public final LongAdder requestsRateLimited = new LongAdder();
+
+    // Downloads that did not go to the network
+    public final LongAdder downloadsCoalesced = new LongAdder();
+    public final LongAdder downloadsCopiedLocally = new LongAdder();
+
+    // Per peer byte counters (IP:Port -> bytes)
+    private final Map<String, LongAdder> peerBytesSent = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> peerBytesReceived = new ConcurrentHashMap<>();
+
+    // Previous totals used to compute the per peer throughput
+    private final Map<String, long[]> peerThroughputSamples = new ConcurrentHashMap<>();
+
+    // Gauges, set by the components that own the values
+    private volatile IntSupplier hashQueueDepth = () -> 0;
+    private volatile IntSupplier knownNodes = () -> 0;
+    private volatile IntSupplier knownFiles = () -> 0;
+    private volatile IntSupplier uploadQueueDepth = () -> 0;
+    private volatile LongSupplier chunkCacheBytes = () -> 0;
+
+    private Metrics() {
+    }
+
+    // Get the registry of this process
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    // Register the registry as an MBean, can be called more than once
+    public static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("P2PFileSharing:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Counter of the bytes sent to a peer, look it up once per chunk and add to it per packet
+    public LongAdder peerSent(String peer) {
+        return peerBytesSent.computeIfAbsent(peer, k -> new LongAdder());
+    }
+
+    // Counter of the bytes received from a peer, look it up once per chunk and add to it per packet
+    public LongAdder peerReceived(String peer) {
+        return peerBytesReceived.computeIfAbsent(peer, k -> new LongAdder());
+    }
+
+    // Gauge setters
+    public void setHashQueueDepthGauge(IntSupplier gauge) {
+        this.hashQueueDepth = gauge;
+    }
+
+    public void setKnownNodesGauge(IntSupplier gauge) {
+        this.knownNodes = gauge;
+    }
+
+    public void setKnownFilesGauge(IntSupplier gauge) {
+        this.knownFiles = gauge;
+    }
+
+    public void setUploadQueueGauge(IntSupplier gauge) {
+        this.uploadQueueDepth = gauge;
+    }
+
+    public void setChunkCacheGauge(LongSupplier gauge) {
+        this.chunkCacheBytes = gauge;
+    }
+
+    // MXBean attributes
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    @Override
+    public long getChunksServed() {
+        return chunksServed.sum();
+    }
+
+    @Override
+    public long getChunksRequested() {
+        return chunksRequested.sum();
+    }
+
+    @Override
+    public long getChunksReceived() {
+        return chunksReceived.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getFragmentRepairs() {
+        return fragmentRepairs.sum();
+    }
+
+    @Override
+    public long getFragmentsRecovered() {
+        return fragmentsRecovered.sum();
+    }
+
+    @Override
+    public long getParityFragmentsSent() {
+        return parityFragmentsSent.sum();
+    }
+
+    @Override
+    public long getSearchesSent() {
+        return searchesSent.sum();
+    }
+
+    @Override
+    public long getSearchesAnswered() {
+        return searchesAnswered.sum();
+    }
+
+    @Override
+    public long getSearchResultsReceived() {
+        return searchResultsReceived.sum();
+    }
+
+    @Override
+    public long getPacketsRejected() {
+        return packetsRejected.sum();
+    }
+
+    @Override
+    public long getCookiesSent() {
+        return cookiesSent.sum();
+    }
+
+    @Override
+    public long getRequestsRateLimited() {
+        return requestsRateLimited.sum();
+    }
+
+    @Override
+    public long getDownloadsCoalesced() {
+        return downloadsCoalesced.sum();
+    }
+
+    @Override
+    public long getDownloadsCopiedLocally() {
+        return downloadsCopiedLocally.sum();
+    }
+
+    @Override
+    public long getChunksCompressed() {
+        return chunksCompressed.sum();
+    }
+
+    @Override
+    public long getCompressionSavedBytes() {
+        return compressionSavedBytes.sum();
+    }
+
+    @Override
+    public long getBlocksReused() {
+        return blocksReused.sum();
+    }
+
+    @Override
+    public long getDedupSavedBytes() {
+        return dedupSavedBytes.sum();
+    }
+
+    @Override
+    public long getUploadRequestsDropped() {
+        return uploadRequestsDropped.sum();
+    }
+
+    @Override
+    public long getChunkCacheHits() {
+        return chunkCacheHits.sum();
+    }
+
+    @Override
+    public long getChunkCacheMisses() {
+        return chunkCacheMisses.sum();
+    }
+
+    @Override
+    public long getChunksPrefetched() {
+        return chunksPrefetched.sum();
+    }
+
+    // Share of the served chunks found in the cache (0 to 100)
+    @Override
+    public long getChunkCacheHitPercent() {
+        long hits = getChunkCacheHits();
+        long total = hits + getChunkCacheMisses();
+        return total == 0 ? 0 : hits * 100 / total;
+    }
+
+    @Override
+    public long getChunkLatencyCount() {
+        return chunkLatency.getCount();
+    }
+
+    @Override
+    public long getChunkLatencyP50Millis() {
+        return chunkLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getChunkLatencyP99Millis() {
+        return chunkLatency.getPercentile(99);
+    }
+
+    @Override
+    public int getHashQueueDepth() {
+        return hashQueueDepth.getAsInt();
+    }
+
+    @Override
+    public int getKnownNodes() {
+        return knownNodes.getAsInt();
+    }
+
+    @Override
+    public int getKnownFiles() {
+        return knownFiles.getAsInt();
+    }
+
+    @Override
+    public int getUploadQueueDepth() {
+        return uploadQueueDepth.getAsInt();
+    }
+
+    @Override
+    public long getChunkCacheBytes() {
+        return chunkCacheBytes.getAsLong();
+    }
+
+    @Override
+    public Map<String, Long> getPeerBytesSent() {
+        return snapshot(peerBytesSent);
+    }
+
+    @Override
+    public Map<String, Long> getPeerBytesReceived() {
+        return snapshot(peerBytesReceived);
+    }
+
+    // Bytes per second (sent + received) for each peer since the previous call
+    @Override
+    public synchronized Map<String, Long> getPeerThroughput() {
+        Map<String, Long> result = new TreeMap<>();
+        long now = System.nanoTime();
+        Map<String, Long> sent = getPeerBytesSent();
+        Map<String, Long> received = getPeerBytesReceived();
+        TreeMap<String, Long> totals = new TreeMap<>(sent);
+        received.forEach((peer, bytes) -> totals.merge(peer, bytes, Long::sum));
+
+        for (Map.Entry<String, Long> entry : totals.entrySet()) {
+            long[] previous = peerThroughputSamples.put(entry.getKey(), new long[]{entry.getValue(), now});
+            if (previous == null || now == previous[1]) {
+                result.put(entry.getKey(), 0L);
+            } else {
+                long bytes = entry.getValue() - previous[0];
+                result.put(entry.getKey(), bytes * 1_000_000_000L / (now - previous[1]));
+            }
+        }
+        return result;
+    }
+
+    // Copy a map of counters into plain values
+    private static Map<String, Long> snapshot(Map<String, LongAdder> counters) {
+        Map<String, Long> result = new TreeMap<>();
+        counters.forEach((peer, counter) -> result.put(peer, counter.sum()));
+        return result;
+    }
+
+    // Render all metrics in the Prometheus text exposition format
+    public String toPrometheusText() {
+        StringBuilder sb = new StringBuilder();
+        counter(sb, "p2p_bytes_sent_total", "Bytes sent over UDP", getBytesSent());
+        counter(sb, "p2p_bytes_received_total", "Bytes received over UDP", getBytesReceived());
+        counter(sb, "p2p_packets_sent_total", "Packets sent over UDP", getPacketsSent());
+        counter(sb, "p2p_packets_received_total", "Packets received over UDP", getPacketsReceived());
+        counter(sb, "p2p_chunks_served_total", "Chunks sent to other nodes", getChunksServed());
+        counter(sb, "p2p_chunks_requested_total", "Chunk requests sent to other nodes", getChunksRequested());
+        counter(sb, "p2p_chunks_received_total", "Chunks completely received", getChunksReceived());
+        counter(sb, "p2p_timeouts_total", "Chunk receive timeouts", getTimeouts());
+        counter(sb, "p2p_retransmits_total", "Chunks requested again after a failure", getRetransmits());
+        counter(sb, "p2p_fragment_repairs_total", "Requests for the missing fragments of a chunk", getFragmentRepairs());
+        counter(sb, "p2p_fragments_recovered_total", "Lost fragments rebuilt from parity fragments", getFragmentsRecovered());
+        counter(sb, "p2p_parity_fragments_sent_total", "Parity fragments sent with the chunks", getParityFragmentsSent());
+        counter(sb, "p2p_chunks_compressed_total", "Chunks served compressed", getChunksCompressed());
+        counter(sb, "p2p_compression_saved_bytes_total", "Bytes saved by compressing served chunks", getCompressionSavedBytes());
+        counter(sb, "p2p_blocks_reused_total", "Blocks of downloads copied from local files", getBlocksReused());
+        counter(sb, "p2p_dedup_saved_bytes_total", "Bytes of downloads copied from local files", getDedupSavedBytes());
+        counter(sb, "p2p_upload_requests_dropped_total", "Requests of other nodes dropped by the upload scheduler", getUploadRequestsDropped());
+        counter(sb, "p2p_chunk_cache_hits_total", "Served chunks found in the chunk cache", getChunkCacheHits());
+        counter(sb, "p2p_chunk_cache_misses_total", "Served chunks read from disk", getChunkCacheMisses());
+        counter(sb, "p2p_chunks_prefetched_total", "Chunks read ahead into the chunk cache", getChunksPrefetched());
+        counter(sb, "p2p_searches_sent_total", "Searches sent to other nodes", getSearchesSent());
+        counter(sb, "p2p_searches_answered_total", "Searches of other nodes answered from the local index", getSearchesAnswered());
+        counter(sb, "p2p_search_results_received_total", "Files found by searches", getSearchResultsReceived());
+        counter(sb, "p2p_packets_rejected_total", "Received packets dropped because their MAC is not valid", getPacketsRejected());
+        counter(sb, "p2p_cookies_sent_total", "Requests answered with a cookie instead of data", getCookiesSent());
+        counter(sb, "p2p_requests_rate_limited_total", "Requests dropped by the per-host request rate limit", getRequestsRateLimited());
+        counter(sb, "p2p_downloads_coalesced_total", "Download requests attached to a download of the same file", getDownloadsCoalesced());
+        counter(sb, "p2p_downloads_copied_locally_total", "Downloads copied from a local file with the same content", getDownloadsCopiedLocally());
+        gauge(sb, "p2p_hash_queue_depth", "Files waiting to be hashed", getHashQueueDepth());
+        gauge(sb, "p2p_known_nodes", "Connected nodes", getKnownNodes());
+        gauge(sb, "p2p_known_files", "Files known in the network", getKnownFiles());
+        gauge(sb, "p2p_upload_queue_depth", "Requests of other nodes waiting to be served", getUploadQueueDepth());
+        gauge(sb, "p2p_chunk_cache_bytes", "Off-heap memory of the chunk cache", getChunkCacheBytes());
+
+        // Chunk latency histogram (cumulative buckets)
+        sb.append("# HELP p2p_chunk_latency_milliseconds Time from chunk request to assembled chunk\n");
+        sb.append("# TYPE p2p_chunk_latency_milliseconds histogram\n");
+        long[] counts = chunkLatency.getCounts();
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            String bound = i < LatencyHistogram.BUCKETS.length ? String.valueOf(LatencyHistogram.BUCKETS[i]) : "+Inf";
+            sb.append("p2p_chunk_latency_milliseconds_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        sb.append("p2p_chunk_latency_milliseconds_sum ").append(chunkLatency.getSum()).append('\n');
+        sb.append("p2p_chunk_latency_milliseconds_count ").append(cumulative).append('\n');
+
+        // Per peer counters
+        sb.append("# TYPE p2p_peer_bytes_sent_total counter\n");
+        getPeerBytesSent().forEach((peer, bytes) -> sb.append("p2p_peer_bytes_sent_total{peer=\"").append(peer).append("\"} ").append(bytes).append('\n'));
+        sb.append("# TYPE p2p_peer_bytes_received_total counter\n");
+        getPeerBytesReceived().forEach((peer, bytes) -> sb.append("p2p_peer_bytes_received_total{peer=\"").append(peer).append("\"} ").append(bytes).append('\n'));
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,45 @@
+import java.util.Map;
+
+// Attributes published through JMX (P2PFileSharing:type=Metrics)
+public interface MetricsMXBean {
+    long getBytesSent();
+    long getBytesReceived();
+    long getPacketsSent();
+    long getPacketsReceived();
+    long getChunksServed();
+    long getChunksRequested();
+    long getChunksReceived();
+    long getTimeouts();
+    long getRetransmits();
+    long getFragmentRepairs();
+    long getFragmentsRecovered();
+    long getParityFragmentsSent();
+    long getSearchesSent();
+    long getSearchesAnswered();
+    long getSearchResultsReceived();
+    long getPacketsRejected();
+    long getCookiesSent();
+    long getRequestsRateLimited();
+    long getDownloadsCoalesced();
+    long getDownloadsCopiedLocally();
+    long getChunksCompressed();
+    long getCompressionSavedBytes();
+    long getBlocksReused();
+    long getDedupSavedBytes();
+    long getUploadRequestsDropped();
+    long getChunkCacheHits();
+    long getChunkCacheMisses();
+    long getChunksPrefetched();
+    long getChunkCacheHitPercent();
+    long getChunkLatencyCount();
+    long getChunkLatencyP50Millis();
+    long getChunkLatencyP99Millis();
+    int getHashQueueDepth();
+    int getKnownNodes();
+    int getKnownFiles();
+    int getUploadQueueDepth();
+    long getChunkCacheBytes();
+    Map<String, Long> getPeerBytesSent();
+    Map<String, Long> getPeerBytesReceived();
+    Map<String, Long> getPeerThroughput();
+}
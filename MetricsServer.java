@@ -0,0 +1,43 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+// Opt-in HTTP endpoint serving the metrics in Prometheus text format, only reachable from localhost
+public class MetricsServer {
+    private HttpServer server;
+
+    // Start serving http://127.0.0.1:<port>/metrics
+    public MetricsServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = Metrics.get().toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    // Start the endpoint if a port is configured (0 means disabled), returns null if not started
+    public static MetricsServer startIfEnabled(int port) {
+        if (port <= 0) {
+            return null;
+        }
+        try {
+            return new MetricsServer(port);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Stop the endpoint
+    public void stop() {
+        server.stop(0);
+    }
+}
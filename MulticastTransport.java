@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+// Transport of the discovery messages over a multicast group (IPv4 or IPv6): only the hosts that joined the group
+// receive the messages, unlike a broadcast that every host on the segment has to process
+// The group is joined on every interface that can carry it and a packet sent to the group goes out on each of them,
+// so a multi-homed host finds the nodes of all its networks; broadcasts of older nodes to the port are still received
+public class MulticastTransport extends UdpTransport {
+    private static final int TIME_TO_LIVE = 1; // the local network only, like the broadcasts
+
+    private final MulticastSocket socket;
+    private final InetAddress group;
+    private final List<NetworkInterface> interfaces = new ArrayList<>(); // where the group was joined
+
+    // Bind to the port (shared with the other nodes of this host) and join the group
+    public MulticastTransport(int port, InetAddress group) throws IOException {
+        this(new MulticastSocket(port), group);
+    }
+
+    private MulticastTransport(MulticastSocket socket, InetAddress group) throws IOException {
+        super(socket);
+        this.socket = socket;
+        this.group = group;
+        socket.setTimeToLive(TIME_TO_LIVE);
+
+        SocketAddress groupAddress = new InetSocketAddress(group, 0);
+        for (NetworkInterface networkInterface : LocalInterfaces.groupInterfaces(group)) {
+            try {
+                socket.joinGroup(groupAddress, networkInterface);
+                interfaces.add(networkInterface);
+            } catch (IOException e) {
+                System.err.println("Cannot join " + group.getHostAddress() + " on " + networkInterface.getName() + ": " + e.getMessage());
+            }
+        }
+        if (interfaces.isEmpty()) {
+            socket.joinGroup(groupAddress, null); // No usable interface found, let the OS pick one
+        }
+    }
+
+    // Interfaces the group was joined on (empty if the OS picked one)
+    public List<NetworkInterface> getInterfaces() {
+        return interfaces;
+    }
+
+    // Send a packet, a packet to the group is sent on every joined interface
+    @Override
+    public void send(DatagramPacket packet) throws IOException {
+        if (!group.equals(packet.getAddress()) || interfaces.isEmpty()) {
+            super.send(packet);
+            return;
+        }
+        IOException failure = null;
+        boolean sent = false;
+        synchronized (socket) {
+            for (NetworkInterface networkInterface : interfaces) {
+                try {
+                    socket.setNetworkInterface(networkInterface);
+                    socket.send(packet);
+                    sent = true;
+                } catch (IOException e) {
+                    failure = e; // The interface may have gone down, the others still get the packet
+                }
+            }
+        }
+        if (!sent && failure != null) {
+            throw failure;
+        }
+    }
+}
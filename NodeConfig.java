@@ -0,0 +1,251 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+// Settings of a node, read from a properties file and/or command line flags (used by the headless mode)
+public class NodeConfig {
+    // Instance variables
+    private String secretKey;
+    private String sharedFolderPath;
+    private String downloadFolderPath;
+    private Set<String> excludedFolders = new HashSet<>();
+    private int filePort = 0;
+    private int discoveryPort = NodeDiscovery.BROADCAST_PORT;
+    private String discoveryGroup = NodeDiscovery.DEFAULT_DISCOVERY_GROUP; // multicast group, 255.255.255.255 = broadcast
+    private long discoveryInterval = 5; // seconds
+    private long broadcastInterval = 6; // seconds
+    private long waitSeconds = 12; // time to collect the catalog before a one-shot command
+    private int metricsPort = 0; // localhost metrics endpoint, 0 = disabled
+    private boolean compression = true; // ask the peers for compressed chunks
+    private boolean fec = true; // ask the peers for parity fragments when fragments get lost
+    private boolean contentDefinedChunking = false; // index and download files by content-defined blocks
+    private boolean queryMode = false; // search the other nodes instead of receiving their whole catalog
+    private boolean authentication = true; // authenticate every packet (false to talk to older versions)
+    private int maxDownloads = 3; // downloads running at the same time
+    private long downloadRate = 0; // bytes per second for all downloads, 0 = unlimited
+    private long uploadRate = 0; // bytes per second for the files served to other nodes, 0 = unlimited
+    private String uploadSchedule = ""; // upload rates by time of day, e.g. 08:00-18:00=256k
+    private String uploadWeights = ""; // share of the upload per host, e.g. 10.0.0.5=2
+    private long cacheSize = NodeDiscovery.DEFAULT_CACHE_SIZE / (1024 * 1024); // MB of served chunks kept in memory, 0 = disabled
+    private String queueFile = new File(System.getProperty("user.home"), ".p2p-downloads").getPath();
+    private List<String> command = new ArrayList<>();
+
+    // Returns true if the application should start without any GUI
+    public static boolean isHeadless(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("--headless") || arg.equals("--config")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Parse the command line, flags override the values of the config file
+    public static NodeConfig fromArgs(String[] args) throws IOException {
+        NodeConfig config = new NodeConfig();
+        Properties properties = new Properties();
+
+        // Load the config file first so that the flags can override it
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--config")) {
+                try (InputStream in = new FileInputStream(args[i + 1])) {
+                    properties.load(in);
+                }
+            }
+        }
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--headless")) {
+                continue;
+            }
+            if (!arg.startsWith("--")) {
+                // Everything after the flags is the command
+                for (int j = i; j < args.length; j++) {
+                    config.command.add(args[j]);
+                }
+                break;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--config": break; // Already loaded
+                case "--secret": properties.setProperty("secret", value); break;
+                case "--shared": properties.setProperty("shared.folder", value); break;
+                case "--download": properties.setProperty("download.folder", value); break;
+                case "--exclude": properties.setProperty("excluded.folders", value); break;
+                case "--file-port": properties.setProperty("file.port", value); break;
+                case "--discovery-port": properties.setProperty("discovery.port", value); break;
+                case "--discovery-group": properties.setProperty("discovery.group", value); break;
+                case "--wait": properties.setProperty("wait", value); break;
+                case "--metrics-port": properties.setProperty("metrics.port", value); break;
+                case "--compression": properties.setProperty("compression", value); break;
+                case "--fec": properties.setProperty("fec", value); break;
+                case "--cdc": properties.setProperty("cdc", value); break;
+                case "--query-mode": properties.setProperty("query.mode", value); break;
+                case "--auth": properties.setProperty("auth", value); break;
+                case "--max-downloads": properties.setProperty("max.downloads", value); break;
+                case "--download-rate": properties.setProperty("download.rate", value); break;
+                case "--queue-file": properties.setProperty("queue.file", value); break;
+                case "--upload-rate": properties.setProperty("upload.rate", value); break;
+                case "--upload-schedule": properties.setProperty("upload.schedule", value); break;
+                case "--upload-weights": properties.setProperty("upload.weights", value); break;
+                case "--cache-size": properties.setProperty("cache.size", value); break;
+                default: throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        config.load(properties);
+        return config;
+    }
+
+    // Read the values from the properties
+    private void load(Properties properties) {
+        secretKey = properties.getProperty("secret", "");
+        sharedFolderPath = properties.getProperty("shared.folder", "");
+
+        // If secret key or shared folder path is empty, the node cannot start
+        if (secretKey.isEmpty() || sharedFolderPath.isEmpty()) {
+            throw new IllegalArgumentException("Secret key and shared folder path cannot be empty.");
+        }
+        if (!new File(sharedFolderPath).isDirectory()) {
+            throw new IllegalArgumentException("Shared folder does not exist: " + sharedFolderPath);
+        }
+
+        downloadFolderPath = properties.getProperty("download.folder", sharedFolderPath);
+
+        // Excluded folders are relative to the shared folder (same as the setup screen)
+        for (String folder : properties.getProperty("excluded.folders", "").split(",")) {
+            folder = folder.trim();
+            if (!folder.isEmpty()) {
+                excludedFolders.add(new File(sharedFolderPath, folder).getAbsolutePath());
+            }
+        }
+
+        filePort = Integer.parseInt(properties.getProperty("file.port", String.valueOf(filePort)));
+        discoveryPort = Integer.parseInt(properties.getProperty("discovery.port", String.valueOf(discoveryPort)));
+        discoveryGroup = properties.getProperty("discovery.group", discoveryGroup);
+        discoveryInterval = Long.parseLong(properties.getProperty("discovery.interval", String.valueOf(discoveryInterval)));
+        broadcastInterval = Long.parseLong(properties.getProperty("broadcast.interval", String.valueOf(broadcastInterval)));
+        waitSeconds = Long.parseLong(properties.getProperty("wait", String.valueOf(waitSeconds)));
+        metricsPort = Integer.parseInt(properties.getProperty("metrics.port", String.valueOf(metricsPort)));
+        compression = Boolean.parseBoolean(properties.getProperty("compression", String.valueOf(compression)));
+        fec = Boolean.parseBoolean(properties.getProperty("fec", String.valueOf(fec)));
+        contentDefinedChunking = Boolean.parseBoolean(properties.getProperty("cdc", String.valueOf(contentDefinedChunking)));
+        queryMode = Boolean.parseBoolean(properties.getProperty("query.mode", String.valueOf(queryMode)));
+        authentication = Boolean.parseBoolean(properties.getProperty("auth", String.valueOf(authentication)));
+        maxDownloads = Integer.parseInt(properties.getProperty("max.downloads", String.valueOf(maxDownloads)));
+        downloadRate = Long.parseLong(properties.getProperty("download.rate", String.valueOf(downloadRate)));
+        queueFile = properties.getProperty("queue.file", queueFile);
+        uploadRate = Long.parseLong(properties.getProperty("upload.rate", String.valueOf(uploadRate)));
+        uploadSchedule = properties.getProperty("upload.schedule", uploadSchedule);
+        uploadWeights = properties.getProperty("upload.weights", uploadWeights);
+        cacheSize = Long.parseLong(properties.getProperty("cache.size", String.valueOf(cacheSize)));
+    }
+
+    // Getters
+    public String getSecretKey() {
+        return secretKey;
+    }
+
+    public String getSharedFolderPath() {
+        return sharedFolderPath;
+    }
+
+    public String getDownloadFolderPath() {
+        return downloadFolderPath;
+    }
+
+    public Set<String> getExcludedFolders() {
+        return excludedFolders;
+    }
+
+    public int getFilePort() {
+        return filePort;
+    }
+
+    public int getDiscoveryPort() {
+        return discoveryPort;
+    }
+
+    public String getDiscoveryGroup() {
+        return discoveryGroup;
+    }
+
+    public long getDiscoveryInterval() {
+        return discoveryInterval;
+    }
+
+    public long getBroadcastInterval() {
+        return broadcastInterval;
+    }
+
+    public long getWaitSeconds() {
+        return waitSeconds;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public boolean isFec() {
+        return fec;
+    }
+
+    public boolean isContentDefinedChunking() {
+        return contentDefinedChunking;
+    }
+
+    public boolean isQueryMode() {
+        return queryMode;
+    }
+
+    public boolean isAuthentication() {
+        return authentication;
+    }
+
+    public int getMaxDownloads() {
+        return maxDownloads;
+    }
+
+    public long getDownloadRate() {
+        return downloadRate;
+    }
+
+    public String getQueueFile() {
+        return queueFile;
+    }
+
+    public long getUploadRate() {
+        return uploadRate;
+    }
+
+    public String getUploadSchedule() {
+        return uploadSchedule;
+    }
+
+    public String getUploadWeights() {
+        return uploadWeights;
+    }
+
+    // Size of the chunk cache in bytes
+    public long getCacheSize() {
+        return cacheSize * 1024 * 1024;
+    }
+
+    public List<String> getCommand() {
+        return command;
+    }
+}
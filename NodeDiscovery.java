@@ -2,23 +2,34 @@ import java.io.*;
 import java.net.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 public class NodeDiscovery {
     // Node class and socket variables
     private Node localNode;
-    private DatagramSocket socket;
-    private DatagramSocket discoverySocket;
+    private Transport socket;
+    private Transport discoverySocket;
+    private TransportFactory transportFactory;
+    private PacketAuth packetAuth; // null without authentication
+    private volatile String messageSecret; // the shared secret, or the network id with authentication
 
     // Thread pool for scheduling tasks
     private ScheduledExecutorService executorService;
@@ -30,17 +41,96 @@ public class NodeDiscovery {
     private Consumer<String> onDeleteCallback;
 
     // Maps to keep track of files and peers
-    private Map<String, List<Peer>> filePeersMap = new ConcurrentHashMap<>();
+    private Map<String, CopyOnWriteArrayList<Peer>> filePeersMap = new ConcurrentHashMap<>();
     private Map<String, FileMetadata> fileHashMap = new ConcurrentHashMap<>();
+    private Map<String, FileMetadata> filePathMap = new ConcurrentHashMap<>(); // relative path -> latest announcement (other nodes)
+
+    // Query mode: the other nodes are searched instead of announcing all their files, so only the files found are kept
+    private volatile boolean queryMode;
+    private FileSearchIndex localIndex = new FileSearchIndex(); // shared files of this node, answers the searches of the others
+    private Map<File, FileMetadata> localMetadata = new ConcurrentHashMap<>();
+    private Map<String, Search> searches = new ConcurrentHashMap<>(); // search id -> results so far
+    private Map<String, Long> hashSearches = new ConcurrentHashMap<>(); // file hash -> time of the last search for its peers
+    private Map<InetAddress, RequestBudget> requestBudgets = new HashMap<>();
+
+    // Content summaries (query mode): a filter of the file hashes of each node, so that a file is only searched on the
+    // nodes that may have it
+    private Map<String, Summary> summaries = new ConcurrentHashMap<>(); // IP:Port of the node -> its filter
+    private ContentFilter publishedSummary; // only used by the broadcast thread
+    private long summaryPublishedAt;
+    private Set<String> summaryReceivers = new HashSet<>(); // nodes that received the published filter
+
+    // Compressor of the chunks served by this node
+    private ChunkCompression compression = new ChunkCompression();
+
+    // Content-defined blocks of the local files, shared files are indexed when they are broadcast if enabled
+    private BlockIndex blockIndex = new BlockIndex();
+    private volatile boolean contentDefinedChunking;
+
+    // Serves the chunk, block and manifest requests: upload rate limit and fair share between the requesting hosts
+    private UploadScheduler uploadScheduler = new UploadScheduler();
+
+    // Served chunks kept off the heap, and the buffer the upload thread reads them into
+    private ChunkCache chunkCache = new ChunkCache(DEFAULT_CACHE_SIZE);
+    private byte[] chunkBuffer = new byte[FileMetadata.LEGACY_CHUNK_SIZE]; // grows to the largest chunk size requested
+    private byte[] parityBuffer = new byte[0]; // parity fragments of the chunk being sent, grows as needed
+
+    // Local files by hash (filled when the files are broadcast) with their last modified time when hashed
+    private Map<String, File> localFiles = new ConcurrentHashMap<>();
+    private Map<File, Long> localFilesModified = new ConcurrentHashMap<>();
+
+    // Hashes the shared files in the background, each file is announced as soon as it is hashed
+    private final FileHasher fileHasher = new FileHasher(this::announceFile);
+    private volatile List<File> sharedFiles; // null until the shared folder is scanned
 
     // Set to keep track of recently disconnected nodes
     private Set<String> recentlyDisconnectedNodes = new HashSet<>();
 
     // Constants
     private static final int BUFFER_SIZE = 1024; // 1 KB
-    private static final int CHUNK_SIZE = 512 * 1024; // 512 KB
-    private static final int MAX_UDP_PACKET_SIZE = 8192; // 8 KB
-    private static final int BROADCAST_PORT = 5000; // port for broadcasting
+    private static final int MAX_UDP_PACKET_SIZE = 8192; // 8 KB, for requesters that do not send their MTU
+    private static final int MIN_MTU = 576; // smallest MTU accepted from a requester
+    static final String CHUNK_SIZE_OPTION = "cs="; // request option, the chunk size of the requester (512 KB without it)
+    static final long DEFAULT_CACHE_SIZE = 64 * 1024 * 1024; // 64 MB of served chunks
+    static final int BROADCAST_PORT = 5000; // default port for broadcasting
+    static final String DEFAULT_DISCOVERY_GROUP = "239.255.42.42"; // organization-local scope (RFC 2365)
+    static final int MAX_SEARCH_RESULTS = 100; // files sent back for one search
+    private static final int MAX_QUERY_LENGTH = 256;
+    private static final long SEARCH_LIFETIME = TimeUnit.SECONDS.toNanos(30); // later results are ignored
+    private static final long HASH_SEARCH_INTERVAL = TimeUnit.SECONDS.toNanos(5); // between two searches for the peers of a file
+
+    private static final long SUMMARY_REFRESH = TimeUnit.MINUTES.toNanos(1); // an unchanged filter is sent again after this
+    private static final long SUMMARY_LIFETIME = TimeUnit.MINUTES.toNanos(3); // a filter that was not sent again is dropped
+
+    // Filter of the files of another node, filled page by page
+    private static class Summary {
+        ContentFilter filter; // guarded by this
+        long updatedAt;
+    }
+
+    // A search sent to the other nodes and the files found so far
+    private static class Search {
+        final String query;
+        final long startedAt = System.nanoTime();
+        final List<FileMetadata> results = new CopyOnWriteArrayList<>();
+        final Set<Peer> awaitingCookie = ConcurrentHashMap.newKeySet(); // nodes that may answer with a cookie instead
+
+        Search(String query) {
+            this.query = query;
+        }
+    }
+
+    private static final int MAX_REQUESTS_PER_SECOND = 5000; // requests handled per host, also the burst
+
+    // Requests a host may still send (token bucket, only used by the receive thread)
+    private static class RequestBudget {
+        double tokens = MAX_REQUESTS_PER_SECOND;
+        long lastRefill = System.nanoTime();
+    }
+
+    // Port and group (multicast, or the broadcast address of older versions) of the discovery and disconnect messages
+    private int discoveryPort;
+    private InetAddress discoveryGroup;
 
      // A map to keep track of connected nodes
     private Set<String> connectedNodes = Collections.synchronizedSet(new HashSet<>());
@@ -53,22 +143,130 @@ public class NodeDiscovery {
             }
             connectedNodes.add(nodeInfoString);
         }
+        TransferEvents.PeerDiscovered event = new TransferEvents.PeerDiscovered();
+        if (event.shouldCommit()) {
+            event.peer = nodeInfoString;
+            event.commit();
+        }
     }
 
     // Call this method when a node disconnects
     private void removeNode(String nodeInfo) {
+        boolean removed;
         synchronized (connectedNodes) {
-            connectedNodes.remove(nodeInfo);
+            removed = connectedNodes.remove(nodeInfo);
+        }
+        TransferEvents.PeerExpired event = new TransferEvents.PeerExpired();
+        if (removed && event.shouldCommit()) {
+            event.peer = nodeInfo;
+            event.reason = "disconnected";
+            event.commit();
         }
     }
 
     // Constructor
-    public NodeDiscovery(Node localNode) throws SocketException {
+    public NodeDiscovery(Node localNode) throws IOException {
+        this(localNode, 0, BROADCAST_PORT);
+    }
+
+    // Constructor with explicit ports (file port 0 picks a free port)
+    public NodeDiscovery(Node localNode, int filePort, int discoveryPort) throws IOException {
+        this(localNode, filePort, discoveryPort, UdpTransport.FACTORY);
+    }
+
+    // Constructor with explicit ports and transport (used by the load test to run many nodes in one process)
+    public NodeDiscovery(Node localNode, int filePort, int discoveryPort, TransportFactory transportFactory) throws IOException {
         this.localNode = localNode;
-        this.socket = new DatagramSocket(0);
-        this.discoverySocket = new DatagramSocket(BROADCAST_PORT);
+        this.discoveryPort = discoveryPort;
+        this.transportFactory = transportFactory;
+        this.messageSecret = localNode.getSharedSecret();
+        this.socket = transportFactory.open(filePort);
+        this.discoveryGroup = InetAddress.getByName(DEFAULT_DISCOVERY_GROUP);
+        this.discoverySocket = transportFactory.openGroup(discoveryPort, discoveryGroup);
         localNode.setPort(socket.getLocalPort());
         this.executorService = Executors.newSingleThreadScheduledExecutor();
+
+        // Publish the size of the network to the metrics
+        Metrics.get().setKnownNodesGauge(connectedNodes::size);
+        Metrics.get().setKnownFilesGauge(fileHashMap::size);
+        Metrics.get().setUploadQueueGauge(uploadScheduler::getQueueDepth);
+        Metrics.get().setChunkCacheGauge(() -> chunkCache.getMemoryBytes());
+        Metrics.get().setHashQueueDepthGauge(fileHasher::getQueueDepth);
+        fileHasher.start();
+    }
+
+    // Getter for the local node
+    public Node getLocalNode() {
+        return localNode;
+    }
+
+    // Getter for the block index of the local files
+    public BlockIndex getBlockIndex() {
+        return blockIndex;
+    }
+
+    // Index the blocks of the shared files so that other nodes can download them by block
+    public void setContentDefinedChunking(boolean enabled) {
+        this.contentDefinedChunking = enabled;
+    }
+
+    // Authenticate every packet with a key derived from the shared secret (call before listenPackets)
+    // The messages then carry the network id instead of the secret, and data is only sent to requesters with a cookie
+    public void setAuthentication(boolean enabled) {
+        if (!enabled || packetAuth != null) {
+            return;
+        }
+        packetAuth = new PacketAuth(transportFactory, localNode.getSharedSecret());
+        transportFactory = packetAuth;
+        socket = packetAuth.wrap(socket);
+        discoverySocket = packetAuth.wrap(discoverySocket);
+        messageSecret = PacketAuth.networkId(localNode.getSharedSecret());
+    }
+
+    // Transports of this node (authenticated if enabled), to be used by its downloads
+    public TransportFactory getTransportFactory() {
+        return transportFactory;
+    }
+
+    // Secret as it appears in the messages (to parse the file broadcasts passed to the callback)
+    public String getMessageSecret() {
+        return messageSecret;
+    }
+
+    // Search the other nodes instead of receiving all their files (they still answer the searches of this node in both modes)
+    public void setQueryMode(boolean enabled) {
+        this.queryMode = enabled;
+    }
+
+    public boolean isQueryMode() {
+        return queryMode;
+    }
+
+    // Getter for the scheduler of the uploads (rate limit, schedule and weights of the hosts)
+    public UploadScheduler getUploadScheduler() {
+        return uploadScheduler;
+    }
+
+    // Multicast group of the discovery messages (IPv4 or IPv6), or 255.255.255.255 to broadcast like older versions,
+    // set before listening
+    public void setDiscoveryGroup(String group) throws IOException {
+        InetAddress address = InetAddress.getByName(group);
+        if (!address.isMulticastAddress() && !address.equals(transportFactory.getBroadcastAddress())) {
+            throw new IllegalArgumentException("Not a multicast group: " + group);
+        }
+        discoverySocket.close();
+        discoveryGroup = address;
+        discoverySocket = transportFactory.openGroup(discoveryPort, address);
+    }
+
+    public InetAddress getDiscoveryGroup() {
+        return discoveryGroup;
+    }
+
+    // Memory for the cache of the served chunks in bytes (0 = read every chunk from disk), set before listening
+    public void setChunkCacheSize(long bytes) {
+        chunkCache.close();
+        chunkCache = new ChunkCache(bytes);
     }
 
     // Setters for callbacks
@@ -90,23 +288,27 @@ public class NodeDiscovery {
 
     // Send discovery packets to the network
     public void sendDiscoveryPackets() {
-        executorService.scheduleAtFixedRate(() -> {
-            try {
-                byte[] buf;
-                String discoveryMessage = "DISCOVERY:" + localNode.getIpAddress() + ":" + localNode.getPort() + ":" + localNode.getSharedSecret();
-                buf = discoveryMessage.getBytes();
-    
-                InetAddress broadcastAddress = InetAddress.getByName("255.255.255.255");
-                DatagramPacket packet = new DatagramPacket(buf, buf.length, broadcastAddress, BROADCAST_PORT);
-                socket.send(packet);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }, 0, 5, TimeUnit.SECONDS); // Send discovery every 5 seconds
+        executorService.scheduleAtFixedRate(this::sendDiscoveryPacket, 0, 5, TimeUnit.SECONDS); // Send discovery every 5 seconds
+    }
+
+    // Send a single discovery packet to the network
+    private void sendDiscoveryPacket() {
+        try {
+            byte[] buf;
+            String discoveryMessage = "DISCOVERY:" + localNode.getIpAddress() + ":" + localNode.getPort() + ":" + messageSecret;
+            buf = discoveryMessage.getBytes();
+
+            DatagramPacket packet = new DatagramPacket(buf, buf.length, discoveryGroup, discoveryPort);
+            send(discoverySocket, packet);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     // Listen for incoming packets
     public void listenPackets() {
+        uploadScheduler.start();
+
         // Thread for handling discovery and disconnection messages
         new Thread(() -> {
             try {
@@ -114,19 +316,20 @@ public class NodeDiscovery {
                 DatagramPacket discoveryPacket = new DatagramPacket(discoveryBuf, discoveryBuf.length);
                 while (true) {
                     discoverySocket.receive(discoveryPacket);
+                    countReceived(discoveryPacket);
                     String discoveryReceived = new String(discoveryPacket.getData(), 0, discoveryPacket.getLength());
 
                     // Received a discovery message
                     if (discoveryReceived.startsWith("DISCOVERY:")) { 
-                        handleDiscovery(discoveryReceived, discoveryPacket.getAddress().getHostAddress());
+                        handleDiscovery(discoveryReceived, discoveryPacket.getAddress());
                     } 
                     // Received a discovery response
                     else if (discoveryReceived.startsWith("DISCOVERY_RESPONSE:")) {
-                        handleDiscoveryResponse(discoveryReceived, discoveryPacket.getAddress().getHostAddress());
+                        handleDiscoveryResponse(discoveryReceived, discoveryPacket.getAddress());
                     } 
                     // Received a disconnect message
                     else if (discoveryReceived.startsWith("DISCONNECT:")) {
-                        handleDisconnect(discoveryReceived);
+                        handleDisconnect(discoveryReceived, discoveryPacket.getAddress());
                     }
 
                     try {
@@ -147,8 +350,16 @@ public class NodeDiscovery {
                 DatagramPacket packet = new DatagramPacket(buf, buf.length);
                 while (true) {
                     socket.receive(packet);
+                    countReceived(packet);
                     String received = new String(packet.getData(), 0, packet.getLength());
 
+                    // Requests make this node send data: limited per host, and only answered with a cookie when authenticated
+                    if (received.startsWith("REQUEST_") || received.startsWith("SEARCH:")) {
+                        if (!admitRequest(received, packet.getAddress(), packet.getPort())) {
+                            continue;
+                        }
+                    }
+
                     // Received a file broadcast message
                     if (received.startsWith("FILE:")) {
                         handleFileBroadcast(received);
@@ -157,6 +368,30 @@ public class NodeDiscovery {
                     else if (received.startsWith("DELETE:")) {
                         handleDelete(received);
                     }
+                    // Received a search of another node
+                    else if (received.startsWith("SEARCH:")) {
+                        handleSearch(received, packet.getAddress(), packet.getPort());
+                    }
+                    // Received a file found by a search of this node
+                    else if (received.startsWith("FOUND:")) {
+                        handleFound(received);
+                    }
+                    // Received a page of the content summary of another node
+                    else if (received.startsWith("SUMMARY:")) {
+                        handleSummary(received);
+                    }
+                    // Received a cookie for the searches of this node
+                    else if (received.startsWith(PacketAuth.COOKIE_MESSAGE)) {
+                        handleCookie(received, packet.getAddress(), packet.getPort());
+                    }
+                    // Received a request for the block list of a file
+                    else if (received.startsWith("REQUEST_MANIFEST:")) {
+                        handleManifestRequest(received, packet.getAddress(), packet.getPort());
+                    }
+                    // Received a request for a block
+                    else if (received.startsWith("REQUEST_BLOCK:")) {
+                        handleBlockRequest(received, packet.getAddress(), packet.getPort());
+                    }
                     // Received a chunk request 
                     else {
                         handleChunkRequest(received, packet.getAddress(), packet.getPort());
@@ -169,23 +404,32 @@ public class NodeDiscovery {
     }
     
     // Method to handle discovery request
-    private void handleDiscovery(String message, String senderIP) {
+    private void handleDiscovery(String message, InetAddress sender) {
         synchronized (recentlyDisconnectedNodes) {
             try {
                 String[] parts = message.split(":");
-                String nodeInfo = parts[1] + ":" + parts[2]; // IP:Port format
+                if (parts.length != 4) {
+                    return;
+                }
+                String nodeInfo = senderInfo(parts, sender); // IP:Port format
                 if (recentlyDisconnectedNodes.contains(nodeInfo)) {
                     return; // Ignore JOINED message from recently disconnected node
                 }
 
                 // If message is a valid discovery request and the shared secret matches, send a response
-                if (parts.length == 4 && parts[3].equals(localNode.getSharedSecret())) {
+                if (parts[3].equals(messageSecret)) {
                     // Send a response back to the sender
-                    String responseMessage = "DISCOVERY_RESPONSE:" + localNode.getIpAddress() + ":" + localNode.getPort() + ":" + localNode.getSharedSecret();
+                    String responseMessage = "DISCOVERY_RESPONSE:" + localAddressFor(sender) + ":" + localNode.getPort() + ":" + messageSecret;
                     byte[] responseBuf = responseMessage.getBytes();
-                    InetAddress address = InetAddress.getByName(senderIP);
-                    DatagramPacket responsePacket = new DatagramPacket(responseBuf, responseBuf.length, address, BROADCAST_PORT);
-                    socket.send(responsePacket);
+                    DatagramPacket responsePacket = new DatagramPacket(responseBuf, responseBuf.length, sender, discoveryPort);
+                    send(socket, responsePacket);
+
+                    // A new node may only broadcast (older versions) and not hear the group, tell it about this node directly
+                    if (!getConnectedNodes().contains(nodeInfo)) {
+                        String discoveryMessage = "DISCOVERY:" + localAddressFor(sender) + ":" + localNode.getPort() + ":" + messageSecret;
+                        byte[] discoveryBuf = discoveryMessage.getBytes();
+                        send(discoverySocket, new DatagramPacket(discoveryBuf, discoveryBuf.length, sender, discoveryPort));
+                    }
 
                     // Add the node to the connected nodes set
                     addNode(nodeInfo);
@@ -202,17 +446,20 @@ public class NodeDiscovery {
     }
 
     // Method to handle discovery response
-    private void handleDiscoveryResponse(String message, String senderIP) {
+    private void handleDiscoveryResponse(String message, InetAddress sender) {
         synchronized (recentlyDisconnectedNodes) {
             String[] parts = message.split(":");
-            String nodeInfo = parts[1] + ":" + parts[2]; // IP:Port format
+            if (parts.length != 4) {
+                return;
+            }
+            String nodeInfo = senderInfo(parts, sender); // IP:Port format
             if (recentlyDisconnectedNodes.contains(nodeInfo)) {
                 return; // Ignore JOINED message from recently disconnected node
             }
 
-            if (parts.length == 4 && parts[3].equals(localNode.getSharedSecret())) {
+            if (parts[3].equals(messageSecret)) {
                 // Send a response back to the sender
-                sendDiscoveryResponse(senderIP, BROADCAST_PORT);
+                sendDiscoveryResponse(sender, discoveryPort);
 
                 // Trigger the callback
                 if (onNodeDiscoveredCallback != null) {
@@ -223,10 +470,16 @@ public class NodeDiscovery {
     }
 
     // Method to handle disconnect message
-    private void handleDisconnect(String message) {
+    private void handleDisconnect(String message, InetAddress sender) {
         String[] parts = message.split(":");
-        if (parts.length == 4 && parts[3].equals(localNode.getSharedSecret())) {
-            String nodeInfo = parts[1] + ":" + parts[2]; // IP:Port format
+        if (parts.length == 4 && parts[3].equals(messageSecret)) {
+            int port;
+            try {
+                port = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException e) {
+                return; // Malformed message, dropped
+            }
+            String nodeInfo = senderInfo(parts, sender); // IP:Port format
             synchronized (recentlyDisconnectedNodes) {
                 recentlyDisconnectedNodes.add(nodeInfo);
                 //remove the node from this set after a certain timeout
@@ -236,6 +489,13 @@ public class NodeDiscovery {
                 removeNode(nodeInfo);
             }
 
+            // The node no longer serves any file
+            Peer peer = new Peer(nodeInfo.substring(0, nodeInfo.lastIndexOf(':')), port);
+            for (List<Peer> peers : filePeersMap.values()) {
+                peers.remove(peer);
+            }
+            summaries.remove(peer.toString());
+
             if (onDisconnectCallback != null) {
                 onDisconnectCallback.accept(nodeInfo);
             }
@@ -244,28 +504,63 @@ public class NodeDiscovery {
 
     // Method to handle file broadcast
     private void handleFileBroadcast(String message) {
+        FileMetadata metadata = parseFileBroadcast(message, messageSecret);
+        // In query mode only the files found by a search are kept, announcements only refresh them
+        if (metadata != null && (!queryMode || fileHashMap.containsKey(metadata.getFileHash()))) {
+            addFile(message, metadata);
+        }
+    }
+
+    // Add an announced or found file to the maps
+    private void addFile(String message, FileMetadata metadata) {
+        String fileHash = metadata.getFileHash();
+        String ipAddress = metadata.getOwnerIP();
+
+        // Create a peer object
+        Peer peer = new Peer(ipAddress, metadata.getOwnerPort());
+
+        // Add the file to the maps
+        fileHashMap.put(fileHash, metadata);
+        if (!ipAddress.equals(localNode.getIpAddress())) {
+            filePathMap.put(metadata.getPath(), metadata);
+        }
+
+        // Add the peer to the list of peers for this file
+        filePeersMap.computeIfAbsent(fileHash, k -> new CopyOnWriteArrayList<>()).addIfAbsent(peer);
+
+        if (onFileBroadcastCallback != null && !ipAddress.equals(localNode.getIpAddress())) {
+            onFileBroadcastCallback.accept(message);
+        }
+    }
+
+    // Parse a file broadcast message (FILE:secret:name:size:ip:port:hash[:chunk size[:path]]), returns null if invalid or the secret does not match
+    // Older nodes do not send the chunk size, they serve 512 KB chunks; files without a (valid) path are at the top of the shared folder
+    static FileMetadata parseFileBroadcast(String message, String sharedSecret) {
         String[] parts = message.split(":");
-        if (parts.length >= 5 && parts[0].equals("FILE") && parts[1].equals(localNode.getSharedSecret())) {
+        if (parts.length >= 7 && parts[0].equals("FILE") && parts[1].equals(sharedSecret)) {
             String fileHash = parts[6];
             String ipAddress = parts[4];
             String fileName = parts[2];
             String fileSize = parts[3];
             int port = Integer.parseInt(parts[5]);
+            int chunkSize = parts.length >= 8 ? parseChunkSize(parts[7]) : FileMetadata.LEGACY_CHUNK_SIZE;
+            String path = parts.length >= 9 ? FileMetadata.decodePath(parts[8]) : null;
+            return new FileMetadata(fileName, Long.parseLong(fileSize), ipAddress, port, fileHash, chunkSize, path != null ? path : fileName);
+        }
+        return null;
+    }
 
-            // Create a peer object
-            Peer peer = new Peer(ipAddress, port);
-
-            // Add the file to the map
-            FileMetadata metadata = new FileMetadata(fileName, Long.parseLong(fileSize), ipAddress, port, fileHash);
-            fileHashMap.put(fileHash, metadata);
-
-            // Add the peer to the list of peers for this file
-            filePeersMap.computeIfAbsent(fileHash, k -> new ArrayList<>()).add(peer);
-
-            if (onFileBroadcastCallback != null && !ipAddress.equals(localNode.getIpAddress())) {
-                onFileBroadcastCallback.accept(message);
+    // Parse an advertised or requested chunk size, the 512 KB of older nodes if it is not valid
+    private static int parseChunkSize(String value) {
+        try {
+            int chunkSize = Integer.parseInt(value);
+            if (FileMetadata.isValidChunkSize(chunkSize)) {
+                return chunkSize;
             }
+        } catch (NumberFormatException e) {
+            // Fall back to the default
         }
+        return FileMetadata.LEGACY_CHUNK_SIZE;
     }
 
     // Method to handle delete message
@@ -275,6 +570,7 @@ public class NodeDiscovery {
             String fileHash = parts[1];
             filePeersMap.remove(fileHash);
             fileHashMap.remove(fileHash);
+            filePathMap.values().removeIf(metadata -> metadata.getFileHash().equals(fileHash));
 
             if (onDeleteCallback != null) {
                 onDeleteCallback.accept(fileHash);
@@ -282,49 +578,290 @@ public class NodeDiscovery {
         }
     }
 
-    // Method to handle chunk request
+    // Whether to handle a request: within the request rate of the host and, with authentication, with a valid cookie
+    // A request without one is answered with a cookie, which is smaller than the request so that it cannot amplify traffic
+    private boolean admitRequest(String message, InetAddress address, int port) {
+        long now = System.nanoTime();
+        if (requestBudgets.size() > 1024) {
+            requestBudgets.values().removeIf(budget -> now - budget.lastRefill > TimeUnit.SECONDS.toNanos(10));
+        }
+        RequestBudget budget = requestBudgets.computeIfAbsent(address, k -> new RequestBudget());
+        budget.tokens = Math.min(MAX_REQUESTS_PER_SECOND, budget.tokens + (now - budget.lastRefill) * MAX_REQUESTS_PER_SECOND / 1e9);
+        budget.lastRefill = now;
+        if (budget.tokens < 1) {
+            Metrics.get().requestsRateLimited.increment();
+            return false;
+        }
+        budget.tokens--;
+
+        if (packetAuth == null || packetAuth.isValidCookie(requestCookie(message), address)) {
+            return true;
+        }
+        try {
+            byte[] buf = (PacketAuth.COOKIE_MESSAGE + packetAuth.issueCookie(address)).getBytes();
+            send(socket, new DatagramPacket(buf, buf.length, address, port));
+            Metrics.get().cookiesSent.increment();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    // Cookie option of a request (ck=<hex> after a ':' or a ','), null if there is none
+    private static String requestCookie(String message) {
+        int start = message.indexOf(PacketAuth.COOKIE_OPTION);
+        while (start > 0 && message.charAt(start - 1) != ',' && message.charAt(start - 1) != ':') {
+            start = message.indexOf(PacketAuth.COOKIE_OPTION, start + 1);
+        }
+        if (start <= 0) {
+            return null;
+        }
+        start += PacketAuth.COOKIE_OPTION.length();
+        int end = start;
+        while (end < message.length() && Character.digit(message.charAt(end), 16) >= 0) {
+            end++;
+        }
+        return message.substring(start, end);
+    }
+
+    // Method to handle a cookie of another node (COOKIE:<hex>): it is kept for the next requests, and the searches that
+    // the node did not answer because of a missing or expired cookie are sent to it again
+    private void handleCookie(String message, InetAddress address, int port) {
+        if (packetAuth == null) {
+            return;
+        }
+        packetAuth.setCookie(address, message.substring(PacketAuth.COOKIE_MESSAGE.length()).trim());
+        Peer peer = new Peer(address.getHostAddress(), port);
+        for (Map.Entry<String, Search> entry : searches.entrySet()) {
+            if (entry.getValue().awaitingCookie.remove(peer)) {
+                sendSearch(entry.getKey(), entry.getValue().query, peer); // Only once, a search is not resent in a loop
+            }
+        }
+    }
+
+    // Method to handle a search of another node (SEARCH:secret:id:query, FileSearchIndex syntax)
+    // The matching shared files are sent back as FOUND:id:<file broadcast>, at most MAX_SEARCH_RESULTS of them
+    private void handleSearch(String message, InetAddress address, int port) {
+        String[] parts = message.split(":", 4);
+        if (parts.length != 4 || !parts[1].equals(messageSecret)) {
+            return;
+        }
+        String id = parts[2].contains(",") ? parts[2].substring(0, parts[2].indexOf(',')) : parts[2]; // id[,ck=cookie]
+        List<FileMetadata> results = localIndex.search(parts[3], MAX_SEARCH_RESULTS);
+        Metrics.get().searchesAnswered.increment();
+
+        // Matching files that are not hashed yet are hashed next, a repeated search finds them
+        fileHasher.prioritize(file -> FileSearchIndex.matches(parts[3], file.getName(), file.length()));
+        if (results.isEmpty()) {
+            return;
+        }
+
+        // Answer when it is the turn of the requester, like its chunk requests
+        uploadScheduler.submit(address, () -> {
+            long bytesSent = 0;
+            for (FileMetadata metadata : results) {
+                byte[] buf = ("FOUND:" + id + ":" + fileMessage(metadata, address)).getBytes();
+                uploadScheduler.pace(buf.length);
+                send(socket, new DatagramPacket(buf, buf.length, address, port));
+                bytesSent += buf.length;
+            }
+            return bytesSent;
+        });
+    }
+
+    // Method to handle a file found by a search of this node (FOUND:id:<file broadcast>), late or unknown results are ignored
+    private void handleFound(String message) {
+        String[] parts = message.split(":", 3);
+        Search search = parts.length == 3 ? searches.get(parts[1]) : null;
+        if (search == null || System.nanoTime() - search.startedAt > SEARCH_LIFETIME) {
+            return;
+        }
+        FileMetadata metadata = parseFileBroadcast(parts[2], messageSecret);
+        if (metadata != null) {
+            search.results.add(metadata);
+            Metrics.get().searchResultsReceived.increment();
+            addFile(parts[2], metadata);
+        }
+    }
+
+    // Method to handle a page of the content summary of another node (SUMMARY:secret:ip:port:page:pages:bits in base64)
+    private void handleSummary(String message) {
+        String[] parts = message.split(":", -1);
+        if (parts.length != 7 || !parts[1].equals(messageSecret)) {
+            return;
+        }
+        try {
+            int page = Integer.parseInt(parts[4]);
+            int pages = Integer.parseInt(parts[5]);
+            if (page < 0 || page >= pages || pages > ContentFilter.MAX_PAGES) {
+                return;
+            }
+            byte[] bits = Base64.getDecoder().decode(parts[6]);
+            Summary summary = summaries.computeIfAbsent(parts[2] + ":" + parts[3], k -> new Summary());
+            synchronized (summary) {
+                if (summary.filter == null || summary.filter.getPageCount() != pages) {
+                    summary.filter = new ContentFilter(pages); // The node resized its filter
+                }
+                summary.filter.setPage(page, bits);
+                summary.updatedAt = System.nanoTime();
+            }
+        } catch (IllegalArgumentException e) {
+            // Malformed page, it is sent again later
+        }
+    }
+
+    // Method to handle chunk request (REQUEST_CHUNK:hash:index[:options], options are comma separated)
     private void handleChunkRequest(String message, InetAddress address, int port) {
-        System.out.println("Received chunk request: " + message); // Uncomment for debugging
+        // System.out.println("Received chunk request: " + message); // Uncomment for debugging
         String[] parts = message.split(":");
         if (parts.length >= 3 && parts[0].equals("REQUEST_CHUNK")) {
             String fileHash = parts[1];
-            int chunkIndex = Integer.parseInt(parts[2]);
+            int chunkIndex;
+            try {
+                chunkIndex = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException e) {
+                return; // Malformed request, dropped
+            }
+            if (chunkIndex < 0) {
+                return; // Past the end of the file is checked once the file is found (see sendChunk)
+            }
+            List<String> options = parts.length >= 4 ? Arrays.asList(parts[3].split(",")) : null;
+            int chunkSize = FileMetadata.LEGACY_CHUNK_SIZE; // Requesters without cs= use the chunks of older nodes
+            if (options != null) {
+                for (String option : options) {
+                    if (option.startsWith(CHUNK_SIZE_OPTION)) {
+                        chunkSize = parseChunkSize(option.substring(CHUNK_SIZE_OPTION.length()));
+                    }
+                }
+            }
+            int size = chunkSize;
     
-            // Find and send the requested chunk
-            sendChunk(fileHash, chunkIndex, address, port);
+            // Find and send the requested chunk when it is the turn of the requester
+            uploadScheduler.submit(address, () -> sendChunk(fileHash, chunkIndex, size, address, port, options));
+        }
+    }
+
+    // Method to handle manifest request (REQUEST_MANIFEST:hash:page[:options])
+    // The page is sent like a chunk of the file with the index -1 - page
+    private void handleManifestRequest(String message, InetAddress address, int port) {
+        String[] parts = message.split(":");
+        if (parts.length >= 3) {
+            String fileHash = parts[1];
+            int page;
+            try {
+                page = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException e) {
+                return; // Malformed request, dropped
+            }
+            if (page < 0) {
+                return;
+            }
+            List<String> options = parts.length >= 4 ? Arrays.asList(parts[3].split(",")) : Collections.emptyList();
+            uploadScheduler.submit(address, () -> {
+                List<ContentChunker.Block> manifest = blockIndex.getManifest(fileHash);
+                if (manifest == null) {
+                    // Not indexed yet, split the file now
+                    File file = findLocalFile(fileHash);
+                    if (file == null) {
+                        return 0;
+                    }
+                    manifest = blockIndex.addFile(file, fileHash);
+                }
+                byte[] data = ContentChunker.encodeManifestPage(manifest, page);
+                return sendData(data, data.length, fileHash, -1 - page, null, address, port, options);
+            });
+        }
+    }
+
+    // Method to handle block request (REQUEST_BLOCK:blockHash[:options]), answers NO_BLOCK:blockHash if no local file contains it
+    private void handleBlockRequest(String message, InetAddress address, int port) {
+        String[] parts = message.split(":");
+        if (parts.length >= 2) {
+            String blockHash = parts[1];
+            List<String> options = parts.length >= 3 ? Arrays.asList(parts[2].split(",")) : Collections.emptyList();
+            uploadScheduler.submit(address, () -> {
+                TransferEvents.ChunkServed event = new TransferEvents.ChunkServed();
+                event.begin();
+                byte[] data = blockIndex.readBlock(blockHash);
+                if (data == null) {
+                    byte[] buf = ("NO_BLOCK:" + blockHash).getBytes();
+                    send(socket, new DatagramPacket(buf, buf.length, address, port));
+                    return buf.length;
+                }
+                long bytesSent = sendData(data, data.length, blockHash, 0, null, address, port, options);
+                Metrics.get().chunksServed.increment();
+                event.end();
+                if (event.shouldCommit()) {
+                    event.peer = address.getHostAddress();
+                    event.key = blockHash;
+                    event.bytes = bytesSent;
+                    event.commit();
+                }
+                return bytesSent;
+            });
         }
     }
 
     // Method to send a discovery response
-    private void sendDiscoveryResponse(String ipAddress, int port) {
+    private void sendDiscoveryResponse(InetAddress address, int port) {
         try {
             byte[] responseBuf;
-            String responseMessage = "DISCOVERY_RESPONSE:" + localNode.getIpAddress() + ":" + localNode.getPort() + ":" + localNode.getSharedSecret();
+            String responseMessage = "DISCOVERY_RESPONSE:" + localAddressFor(address) + ":" + localNode.getPort() + ":" + messageSecret;
             responseBuf = responseMessage.getBytes();
     
             // Send the response to the discovered node
-            InetAddress address = InetAddress.getByName(ipAddress);
             DatagramPacket packet = new DatagramPacket(responseBuf, responseBuf.length, address, port);
-            discoverySocket.send(packet);
+            send(discoverySocket, packet);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // Method to get the local network IP address
+    // IP:Port of the node that sent a discovery message: the address the packet came from, which is the address of a
+    // multi-homed node on this network, or the address in the message for IPv6 packets and the messages of this node
+    private String senderInfo(String[] parts, InetAddress sender) {
+        String messageInfo = parts[1] + ":" + parts[2];
+        if (!(sender instanceof Inet4Address) || messageInfo.equals(localNode.getIpAddress() + ":" + localNode.getPort())) {
+            return messageInfo;
+        }
+        return sender.getHostAddress() + ":" + parts[2];
+    }
+
+    // IP address of this node as seen from the address: the local address on its network, or the address of the node
+    private String localAddressFor(InetAddress address) {
+        InetAddress local = address instanceof Inet4Address ? transportFactory.getLocalAddress(address) : null;
+        return local instanceof Inet4Address ? local.getHostAddress() : localNode.getIpAddress();
+    }
+
+    // Method to get the local network IP address: the address of the default route, else the first site-local IPv4 address
     static String getLocalNetworkIP() {
+        // Connecting a UDP socket sends nothing, it only picks the route (192.0.2.1 is a documentation address)
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.connect(InetAddress.getByName("192.0.2.1"), 9);
+            InetAddress address = probe.getLocalAddress();
+            if (address instanceof Inet4Address && !address.isAnyLocalAddress() && !address.isLoopbackAddress()) {
+                return address.getHostAddress();
+            }
+        } catch (IOException e) {
+            // No default route, look at the interfaces
+        }
+
         String ipAddress = null;
         try {
             Enumeration<NetworkInterface> networkInterfaces = NetworkInterface.getNetworkInterfaces();
             while (networkInterfaces.hasMoreElements()) {
                 NetworkInterface networkInterface = networkInterfaces.nextElement();
-                if (networkInterface.isUp() && !networkInterface.isLoopback()) {
+                if (networkInterface.isUp() && !networkInterface.isLoopback() && !networkInterface.isVirtual()) {
                     Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
                     while (addresses.hasMoreElements()) {
                         InetAddress address = addresses.nextElement();
                         if (address instanceof Inet4Address && !address.isLoopbackAddress()) {
-                            ipAddress = address.getHostAddress();
-                            break;
+                            if (address.isSiteLocalAddress()) {
+                                return address.getHostAddress();
+                            }
+                            if (ipAddress == null) {
+                                ipAddress = address.getHostAddress();
+                            }
                         }
                     }
                 }
@@ -335,59 +872,234 @@ public class NodeDiscovery {
         return ipAddress;
     }
 
-    // Broadcast the list of files to the network
+    // Broadcast the list of files to the network: the hashed files now, the others as soon as they are hashed
     public void broadcastFileList(List<File> fileList) {
+        List<File> unhashed = new ArrayList<>();
         for (File file : fileList) {
-            try {
-                // Calculate the hash of the file and create a metadata object
-                String fileHash = FileMetadata.calculateHash(file);
-                FileMetadata metadata = new FileMetadata(file.getName(), file.length(), localNode.getIpAddress(), localNode.getPort(), fileHash);
+            String fileHash = fileHasher.getHash(file);
+            if (fileHash != null) {
+                announceFile(file, fileHash);
+            } else {
+                unhashed.add(file); // New or modified
+            }
+        }
+        fileHasher.submit(unhashed);
 
-                String fileBroadcastMessage = "FILE:" + localNode.getSharedSecret() + ":" + metadata.toString();
-                byte[] buf = fileBroadcastMessage.getBytes();
+        // Files that are no longer shared are not found anymore
+        Set<File> shared = new HashSet<>(fileList);
+        for (File file : localMetadata.keySet()) {
+            if (!shared.contains(file)) {
+                FileMetadata removed = localMetadata.remove(file);
+                fileHasher.forget(file);
+                if (removed != null) {
+                    unindexLocalHash(removed.getFileHash());
+                }
+            }
+        }
 
-                synchronized(connectedNodes) {
-                    if (connectedNodes.isEmpty()) {
+        if (queryMode) {
+            publishSummary();
+        }
+    }
+
+    // Index a hashed shared file and announce it to the connected nodes (also called on the hashing thread)
+    private void announceFile(File file, String fileHash) {
+        File sharedFolder = new File(localNode.getSharedFolderPath());
+        long lastModified = file.lastModified();
+        try {
+            localFiles.put(fileHash, file);
+            localFilesModified.put(file, lastModified);
+            if (contentDefinedChunking) {
+                blockIndex.addFile(file, fileHash); // Only splits new or modified files
+            }
+            String path = FileMetadata.relativePath(sharedFolder, file);
+            FileMetadata metadata = new FileMetadata(file.getName(), file.length(), localNode.getIpAddress(), localNode.getPort(), fileHash,
+                    FileMetadata.chunkSizeFor(file.length()), path);
+
+            String fileBroadcastMessage = "FILE:" + messageSecret + ":" + metadata.toString();
+            byte[] buf = fileBroadcastMessage.getBytes();
+            if (buf.length > BUFFER_SIZE - 128) {
+                // Deep paths would not fit in the receive buffer, announce the file without its folder
+                metadata = new FileMetadata(file.getName(), file.length(), localNode.getIpAddress(), localNode.getPort(), fileHash);
+                buf = ("FILE:" + messageSecret + ":" + metadata.toString()).getBytes();
+            }
+            indexLocalFile(file, metadata);
+            if (queryMode) {
+                return; // Only sent to the nodes searching for it
+            }
+
+            synchronized(connectedNodes) {
+                // Broadcast the file to all connected nodes
+                for (String nodeInfo : connectedNodes) {
+                    String[] parts = nodeInfo.split(":");
+                    if (parts.length != 2) {
+                        System.err.println("Invalid node info format: " + nodeInfo);
                         continue;
                     }
-        
-                    // Broadcast the file to all connected nodes
-                    for (String nodeInfo : connectedNodes) {
-                        String[] parts = nodeInfo.split(":");
-                        if (parts.length != 2) {
-                            System.err.println("Invalid node info format: " + nodeInfo); 
-                            continue;
-                        }
 
-                        String ipAddress = parts[0];
-                        int port = Integer.parseInt(parts[1]);
-                        InetAddress address = InetAddress.getByName(ipAddress);
-                        DatagramPacket packet = new DatagramPacket(buf, buf.length, address, port);
-        
-                        socket.send(packet);
+                    String ipAddress = parts[0];
+                    int port = Integer.parseInt(parts[1]);
+                    InetAddress address = InetAddress.getByName(ipAddress);
+
+                    // A multi-homed node announces the address that the node can reach
+                    String ownerIP = localAddressFor(address);
+                    byte[] data = buf;
+                    if (!ownerIP.equals(localNode.getIpAddress())) {
+                        FileMetadata local = new FileMetadata(metadata.getFileName(), metadata.getFileSize(), ownerIP,
+                                metadata.getOwnerPort(), fileHash, metadata.getChunkSize(), metadata.getPath());
+                        data = ("FILE:" + messageSecret + ":" + local.toString()).getBytes();
                     }
+                    DatagramPacket packet = new DatagramPacket(data, data.length, address, port);
+
+                    send(socket, packet);
                 }
-            } catch (Exception e) {
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Send the filter of the shared files to the other nodes, one page per packet: to every node when it changed or
+    // every minute, otherwise only to the nodes that did not receive it yet
+    private void publishSummary() {
+        Set<String> fileHashes = new HashSet<>();
+        for (FileMetadata metadata : localMetadata.values()) {
+            fileHashes.add(metadata.getFileHash());
+        }
+        ContentFilter filter = ContentFilter.of(fileHashes);
+        long now = System.nanoTime();
+        if (!filter.equals(publishedSummary) || now - summaryPublishedAt > SUMMARY_REFRESH) {
+            publishedSummary = filter;
+            summaryPublishedAt = now;
+            summaryReceivers.clear();
+        }
+
+        for (Peer peer : getConnectedPeers()) {
+            if (!summaryReceivers.add(peer.toString())) {
+                continue;
+            }
+            try {
+                InetAddress address = InetAddress.getByName(peer.getIpAddress());
+                String header = "SUMMARY:" + messageSecret + ":" + localAddressFor(address) + ":" + localNode.getPort() + ":";
+                for (int page = 0; page < filter.getPageCount(); page++) {
+                    String bits = Base64.getEncoder().encodeToString(filter.getPage(page));
+                    byte[] buf = (header + page + ":" + filter.getPageCount() + ":" + bits).getBytes();
+                    uploadScheduler.pace(buf.length);
+                    send(socket, new DatagramPacket(buf, buf.length, address, peer.getPort()));
+                }
+            } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    // Whether a node may have a file according to its summary, null if there is no recent summary of the node
+    private Boolean mayHaveFile(Peer peer, String fileHash) {
+        Summary summary = summaries.get(peer.toString());
+        if (summary == null) {
+            return null;
+        }
+        synchronized (summary) {
+            if (summary.filter == null) {
+                return null; // First page not stored yet
+            }
+            if (System.nanoTime() - summary.updatedAt > SUMMARY_LIFETIME) {
+                summaries.remove(peer.toString(), summary);
+                return null;
+            }
+            return summary.filter.mightContain(fileHash);
+        }
+    }
+
+    // Add a shared file to the local index, replacing its previous version
+    private void indexLocalFile(File file, FileMetadata metadata) {
+        FileMetadata previous = localMetadata.put(file, metadata);
+        if (previous != null && !previous.getFileHash().equals(metadata.getFileHash())) {
+            unindexLocalHash(previous.getFileHash());
+        }
+        localIndex.add(metadata); // Already there if the file has not changed
+    }
+
+    // Remove a hash from the local index, the other shared files with the same content stay
+    private void unindexLocalHash(String fileHash) {
+        localIndex.removeHash(fileHash);
+        for (FileMetadata metadata : localMetadata.values()) {
+            if (metadata.getFileHash().equals(fileHash)) {
+                localIndex.add(metadata);
+            }
+        }
+    }
+
+    // File broadcast message of a shared file for a node, a multi-homed node announces the address that the node can reach
+    private String fileMessage(FileMetadata metadata, InetAddress address) {
+        String ownerIP = localAddressFor(address);
+        if (!ownerIP.equals(metadata.getOwnerIP())) {
+            metadata = new FileMetadata(metadata.getFileName(), metadata.getFileSize(), ownerIP, metadata.getOwnerPort(),
+                    metadata.getFileHash(), metadata.getChunkSize(), metadata.getPath());
+        }
+        return "FILE:" + messageSecret + ":" + metadata.toString();
+    }
+
     // Broadcast the list of files to the network at a fixed interval
     public void scheduleFileBroadcast(List<File> fileList, long interval, TimeUnit unit) {
+        sharedFiles = fileList;
         Runnable fileBroadcastTask = () -> broadcastFileList(fileList);
         executorService.scheduleAtFixedRate(fileBroadcastTask, 0, interval, unit);
     }
+
+    // Scan the shared folder in the background and broadcast its files at a fixed interval, the files are hashed in
+    // the order of the scan and each one is announced as soon as it is hashed
+    public void scheduleFileBroadcast(FileScanner fileScanner, long interval, TimeUnit unit) {
+        Thread scanThread = new Thread(() -> {
+            List<File> fileList = fileScanner.scanForFiles();
+            sharedFiles = fileList;
+            fileHasher.submit(fileList);
+        }, "file-scanner");
+        scanThread.setDaemon(true);
+        scanThread.start();
+
+        Runnable fileBroadcastTask = () -> {
+            List<File> fileList = sharedFiles;
+            if (fileList != null) {
+                broadcastFileList(fileList);
+            }
+        };
+        executorService.scheduleAtFixedRate(fileBroadcastTask, interval, interval, unit);
+    }
+
+    // Shared file with the hash if it was hashed and has not changed since, null otherwise (never hashes a file)
+    public File getSharedFile(String fileHash) {
+        File file = localFiles.get(fileHash);
+        return file != null && fileHash.equals(fileHasher.getHash(file)) ? file : null;
+    }
+
+    // Shared files, null while the shared folder is being scanned
+    public List<File> getSharedFiles() {
+        return sharedFiles;
+    }
+
+    // Files hashed since hashing started (0 once every file is hashed)
+    public int getHashedFileCount() {
+        return fileHasher.getHashedCount();
+    }
+
+    // Files waiting to be hashed
+    public int getHashQueueDepth() {
+        return fileHasher.getQueueDepth();
+    }
     
-    // Send a chunk request to the network at a fixed interval
+    // Send a discovery packet to the network at a fixed interval
     public void scheduleSendDiscoveryPackets(long interval, TimeUnit unit) {
-        Runnable discoveryTask = () -> sendDiscoveryPackets();
+        Runnable discoveryTask = () -> sendDiscoveryPacket();
         executorService.scheduleAtFixedRate(discoveryTask, 0, interval, unit);
     }
     
     // Stop the discovery process
     public void stopDiscovery() {
         executorService.shutdownNow();
+        fileHasher.stop();
+        uploadScheduler.stop();
+        chunkCache.close();
         if (socket != null && !socket.isClosed()) {
             socket.close();
             discoverySocket.close();
@@ -397,11 +1109,10 @@ public class NodeDiscovery {
     // Broadcast a disconnect message to the network
     public void broadcastDisconnect() {
         try {
-            String disconnectMessage = "DISCONNECT:" + localNode.getIpAddress() + ":" + localNode.getPort() + ":" + localNode.getSharedSecret();
+            String disconnectMessage = "DISCONNECT:" + localNode.getIpAddress() + ":" + localNode.getPort() + ":" + messageSecret;
             byte[] buf = disconnectMessage.getBytes();
-            InetAddress broadcastAddress = InetAddress.getByName("255.255.255.255");
-            DatagramPacket packet = new DatagramPacket(buf, buf.length, broadcastAddress, BROADCAST_PORT);
-            discoverySocket.send(packet);
+            DatagramPacket packet = new DatagramPacket(buf, buf.length, discoveryGroup, discoveryPort);
+            send(discoverySocket, packet);
 
             // Send files which should be deleted to other nodes
             for (FileMetadata metadata : fileHashMap.values()) {
@@ -426,7 +1137,7 @@ public class NodeDiscovery {
                         int port = Integer.parseInt(parts[1]);
                         InetAddress address = InetAddress.getByName(ipAddress);
                         packet = new DatagramPacket(buf, buf.length, address, port);
-                        socket.send(packet);
+                        send(socket, packet);
                     }
                 }
             }
@@ -435,62 +1146,241 @@ public class NodeDiscovery {
         }
     }
 
-    // Method to send a chunk to the network
-    private void sendChunk(String fileHash, int chunkIndex, InetAddress address, int port) {
+    // Method to send a chunk to the network (options == null for requesters that only know the original format), returns the bytes sent
+    private long sendChunk(String fileHash, int chunkIndex, int chunkSize, InetAddress address, int port, List<String> options) {
         // Find the file with the given hash
-        File file = findFileByHash(fileHash, new File(localNode.getSharedFolderPath()));
-        if (file != null) {
-            // Send the chunk to the requester
-            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-                // Seek to the start of the chunk
-                long chunkPosition = (long) chunkIndex * CHUNK_SIZE;
-                raf.seek(chunkPosition);
-
-                // Read the chunk data
-                byte[] buffer = new byte[CHUNK_SIZE];
-                int bytesRead = raf.read(buffer);
-
-                // Send the chunk data to the requester in fragments
-                sendFragments(buffer, bytesRead, fileHash, chunkIndex, address, port);
+        File file = findLocalFile(fileHash);
+        if (file != null && chunkIndex < FileMetadata.chunkCount(file.length(), chunkSize)) {
+            // Send the chunk to the requester (the chunk cache reads it from disk if needed)
+            TransferEvents.ChunkServed event = new TransferEvents.ChunkServed();
+            event.begin();
+            try {
+                if (chunkBuffer.length < chunkSize) {
+                    chunkBuffer = new byte[chunkSize];
+                }
+                int bytesRead = chunkCache.read(file, fileHash, chunkSize, chunkIndex, chunkBuffer, address.getHostAddress());
+                long bytesSent = sendData(chunkBuffer, bytesRead, fileHash, chunkIndex, file.getName(), address, port, options);
+                Metrics.get().chunksServed.increment();
+                event.end();
+                if (event.shouldCommit()) {
+                    event.peer = address.getHostAddress();
+                    event.key = fileHash;
+                    event.chunkIndex = chunkIndex;
+                    event.bytes = bytesSent;
+                    event.commit();
+                }
+                return bytesSent;
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+        return 0;
+    }
+
+    // Send a chunk (or block, or manifest page) in fragments, compressed if the requester can decompress it and it is worth it
+    // options == null sends the original format, fileName is used to skip compressed formats (null if unknown), returns the bytes sent
+    private long sendData(byte[] data, int length, String key, int index, String fileName, InetAddress address, int port,
+                          List<String> options) throws IOException {
+        if (options == null) {
+            return sendFragments(data, length, key, index, address, port, false, ChunkCompression.RAW, length, MAX_UDP_PACKET_SIZE, null, 0);
+        }
+        int datagramSize = datagramSize(options, address);
+        BitSet only = fragmentFilter(options);
+        int fecGroupSize = fecGroupSize(options);
+        int compressedLength = -1;
+        if (options.contains(ChunkCompression.OPTION) && (fileName == null || !ChunkCompression.isCompressedFormat(fileName))) {
+            compressedLength = compression.compress(data, length);
+        }
+        if (compressedLength >= 0) {
+            Metrics.get().chunksCompressed.increment();
+            Metrics.get().compressionSavedBytes.add(length - compressedLength);
+            return sendFragments(compression.getOutput(), compressedLength, key, index, address, port, true, ChunkCompression.DEFLATE, length,
+                    datagramSize, only, fecGroupSize);
+        }
+        return sendFragments(data, length, key, index, address, port, true, ChunkCompression.RAW, length, datagramSize, only, fecGroupSize);
     }
 
-    // Method to send a chunk in fragments
-    private void sendFragments(byte[] chunkData, int bytesRead, String fileHash, int chunkIndex, InetAddress address, int port) throws IOException {
+    // Fragments the requester asks again (frags=<ranges>), null for all of them
+    // The fragments are the same as in the first answer: same data, compression and MTU
+    private static BitSet fragmentFilter(List<String> options) {
+        for (String option : options) {
+            if (option.startsWith(ChunkAssembler.FRAGMENTS_OPTION)) {
+                return ChunkAssembler.parseFragments(option.substring(ChunkAssembler.FRAGMENTS_OPTION.length()));
+            }
+        }
+        return null;
+    }
+
+    // Data fragments per parity fragment the requester asks for (fec=<n>), 0 for none
+    private static int fecGroupSize(List<String> options) {
+        for (String option : options) {
+            if (option.startsWith(ChunkFec.OPTION)) {
+                return ChunkFec.parseGroupSize(option);
+            }
+        }
+        return 0;
+    }
+
+    // Largest datagram for a requester: within the MTU it asked for and the MTU of the local link to it (8 KB for older nodes)
+    private int datagramSize(List<String> options, InetAddress address) {
+        for (String option : options) {
+            if (option.startsWith(PathMtu.OPTION)) {
+                try {
+                    int mtu = Integer.parseInt(option.substring(PathMtu.OPTION.length()));
+                    int linkMtu = transportFactory.getMtu(address);
+                    if (linkMtu > 0) {
+                        mtu = Math.min(mtu, linkMtu);
+                    }
+                    return PathMtu.datagramSize(Math.max(mtu, MIN_MTU), address) - transportFactory.getOverhead();
+                } catch (NumberFormatException e) {
+                    break;
+                }
+            }
+        }
+        return MAX_UDP_PACKET_SIZE;
+    }
+
+    // Method to send a chunk in fragments of at most datagramSize bytes, paced by the upload rate limit, returns the bytes sent
+    // only = the fragments to send (null for all), fecGroupSize = data fragments per parity fragment (0 for none)
+    private long sendFragments(byte[] chunkData, int bytesRead, String fileHash, int chunkIndex, InetAddress address, int port,
+                               boolean extended, byte encoding, int rawLength, int datagramSize, BitSet only, int fecGroupSize) throws IOException {
         int headerLength = 64 + 4 * 4; // File hash (64 bytes) + 4 integers (4 bytes each)
-        int maxDataSizePerFragment = MAX_UDP_PACKET_SIZE - headerLength;
+        if (extended) {
+            headerLength = 2 + fileHash.length() + 4 * 4 + 1 + 4; // Length of the hash, hash, 4 integers, encoding, raw length
+        }
+        if (fecGroupSize > 0) {
+            headerLength += ChunkFec.PARITY_HEADER; // Also for the data fragments, so that they are the same in a repair
+        }
+        int maxDataSizePerFragment = datagramSize - headerLength;
         int totalFragments = (int) Math.ceil((double) bytesRead / maxDataSizePerFragment);
+        LongAdder peerBytesSent = Metrics.get().peerSent(address.getHostAddress() + ":" + port);
+        long bytesSent = 0;
+
+        // Parity of the groups of fragments, sent after the data (not with the fragments asked again)
+        int groupCount = 0;
+        if (fecGroupSize > 0 && only == null && totalFragments >= 2) {
+            groupCount = ChunkFec.groupCount(totalFragments, fecGroupSize);
+            if (parityBuffer.length < groupCount * maxDataSizePerFragment) {
+                parityBuffer = new byte[groupCount * maxDataSizePerFragment];
+            }
+            ChunkFec.encode(chunkData, bytesRead, maxDataSizePerFragment, groupCount, parityBuffer);
+        }
     
         // Send the chunk data in fragments
         for (int i = 0; i < totalFragments; i++) {
+            if (only != null && !only.get(i)) {
+                continue;
+            }
             int start = i * maxDataSizePerFragment;
             int end = Math.min(start + maxDataSizePerFragment, bytesRead);
-            byte[] fragmentData = Arrays.copyOfRange(chunkData, start, end);
-    
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.writeUTF(fileHash); // fileHash is a string, its length can vary
-            dos.writeInt(chunkIndex);
-            dos.writeInt(i); // Fragment index
-            dos.writeInt(totalFragments); // Total number of fragments
-            dos.writeInt(end - start); // Size of this fragment
-            dos.write(fragmentData);
-    
-            byte[] packetData = baos.toByteArray();
+            byte[] packetData = extended
+                    ? encodeFragment(chunkData, start, end, fileHash, chunkIndex, i, totalFragments, encoding, rawLength)
+                    : encodeFragment(chunkData, start, end, fileHash, chunkIndex, i, totalFragments);
 
-            System.out.println("Packet data length: " + packetData.length); // Uncomment for debugging
+            // System.out.println("Packet data length: " + packetData.length); // Uncomment for debugging
 
-            if (packetData.length > MAX_UDP_PACKET_SIZE + 10) {
+            if (packetData.length > datagramSize + 10) {
                 throw new IOException("Fragment size exceeds maximum UDP packet size");
             }
     
+            uploadScheduler.pace(packetData.length);
             DatagramPacket packet = new DatagramPacket(packetData, packetData.length, address, port);
-            socket.send(packet);
+            send(socket, packet);
+            peerBytesSent.add(packetData.length);
+            bytesSent += packetData.length;
+        }
+
+        for (int group = 0; group < groupCount; group++) {
+            byte[] packetData = encodeParity(parityBuffer, group * maxDataSizePerFragment, maxDataSizePerFragment, fileHash, chunkIndex,
+                    group, totalFragments, encoding, rawLength, groupCount, bytesRead);
+            uploadScheduler.pace(packetData.length);
+            send(socket, new DatagramPacket(packetData, packetData.length, address, port));
+            Metrics.get().parityFragmentsSent.increment();
+            peerBytesSent.add(packetData.length);
+            bytesSent += packetData.length;
         }
-    }    
+        return bytesSent;
+    }
+
+    // Encode one fragment of a chunk (header followed by chunkData[start, end))
+    static byte[] encodeFragment(byte[] chunkData, int start, int end, String fileHash, int chunkIndex, int fragmentIndex, int totalFragments) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeUTF(fileHash); // fileHash is a string, its length can vary
+        dos.writeInt(chunkIndex);
+        dos.writeInt(fragmentIndex); // Fragment index
+        dos.writeInt(totalFragments); // Total number of fragments
+        dos.writeInt(end - start); // Size of this fragment
+        dos.write(chunkData, start, end - start);
+        return baos.toByteArray();
+    }
+
+    // Encode one fragment in the extended format, sent only to requesters that sent options
+    // The total number of fragments is negated to mark the format, followed by the encoding and the uncompressed chunk length
+    static byte[] encodeFragment(byte[] chunkData, int start, int end, String fileHash, int chunkIndex, int fragmentIndex, int totalFragments,
+                                 byte encoding, int rawLength) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(end - start + 96);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeUTF(fileHash);
+        dos.writeInt(chunkIndex);
+        dos.writeInt(fragmentIndex);
+        dos.writeInt(-totalFragments); // Extended format marker
+        dos.writeInt(end - start);
+        dos.writeByte(encoding);
+        dos.writeInt(rawLength);
+        dos.write(chunkData, start, end - start);
+        return baos.toByteArray();
+    }
+
+    // Encode the parity fragment of a group (see ChunkFec): extended format with the negative fragment index -1 - group,
+    // followed by the number of groups and the length of the data
+    static byte[] encodeParity(byte[] parity, int offset, int length, String fileHash, int chunkIndex, int group, int totalFragments,
+                               byte encoding, int rawLength, int groupCount, int dataLength) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(length + 96);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeUTF(fileHash);
+        dos.writeInt(chunkIndex);
+        dos.writeInt(-1 - group); // Parity marker
+        dos.writeInt(-totalFragments);
+        dos.writeInt(length);
+        dos.writeByte(encoding);
+        dos.writeInt(rawLength);
+        dos.writeInt(groupCount);
+        dos.writeInt(dataLength);
+        dos.write(parity, offset, length);
+        return baos.toByteArray();
+    }
+
+    // Send a packet and count it
+    private void send(Transport transport, DatagramPacket packet) throws IOException {
+        transport.send(packet);
+        Metrics.get().packetsSent.increment();
+        Metrics.get().bytesSent.add(packet.getLength());
+    }
+
+    // Count a received packet
+    private void countReceived(DatagramPacket packet) {
+        Metrics.get().packetsReceived.increment();
+        Metrics.get().bytesReceived.add(packet.getLength());
+    }
+
+    // Find a shared file by its hash, from the hashes computed for the broadcasts if the file has not changed since
+    private File findLocalFile(String fileHash) {
+        File file = localFiles.get(fileHash);
+        if (file != null && localFilesModified.getOrDefault(file, -1L) == file.lastModified()) {
+            return file;
+        }
+        localFiles.remove(fileHash);
+        if (fileHasher.isBusy()) {
+            return null; // Still hashing, the file was not announced with this hash (the hashes are cached afterwards)
+        }
+        file = findFileByHash(fileHash, new File(localNode.getSharedFolderPath()));
+        if (file != null) {
+            localFiles.put(fileHash, file);
+            localFilesModified.put(file, file.lastModified());
+        }
+        return file;
+    }
 
     // Method to find a file by its hash
     private File findFileByHash(String fileHash, File folder) {
@@ -503,7 +1393,7 @@ public class NodeDiscovery {
                         return found;
                     }
                 } else {
-                    String currentFileHash = FileMetadata.calculateHash(file);
+                    String currentFileHash = fileHasher.hashNow(file);
                     if (currentFileHash.equals(fileHash)) {
                         return file;
                     }
@@ -515,6 +1405,134 @@ public class NodeDiscovery {
 
     // Method to get the list of files
     public List<Peer> getPeersWithFile(String fileHash) {
-        return filePeersMap.getOrDefault(fileHash, Collections.emptyList());
+        List<Peer> peers = filePeersMap.get(fileHash);
+        return peers != null ? peers : Collections.emptyList();
+    }
+
+    // Method to get the peers of a file for a download: in query mode the nodes whose summary may contain the file are
+    // searched for it (and the nodes without a summary while no peer is known), at most every 5 seconds
+    // The peers found are returned by a later call
+    public List<Peer> findPeersWithFile(String fileHash) {
+        List<Peer> peers = getPeersWithFile(fileHash);
+        if (!queryMode) {
+            return peers;
+        }
+        List<Peer> candidates = new ArrayList<>();
+        for (Peer peer : getConnectedPeers()) {
+            if (peers.contains(peer)) {
+                continue;
+            }
+            Boolean mayHave = mayHaveFile(peer, fileHash);
+            if (Boolean.TRUE.equals(mayHave) || (mayHave == null && peers.isEmpty())) {
+                candidates.add(peer);
+            }
+        }
+        long now = System.nanoTime();
+        hashSearches.values().removeIf(time -> now - time > HASH_SEARCH_INTERVAL);
+        if (!candidates.isEmpty() && hashSearches.putIfAbsent(fileHash, now) == null) {
+            search("hash:" + fileHash, candidates);
+        }
+        return peers;
+    }
+
+    // Send a search to the other nodes (FileSearchIndex syntax), returns its id
+    // The files found are added like announced files (file broadcast callback) as their answers arrive
+    public String search(String query) {
+        return search(query, getConnectedPeers());
+    }
+
+    // Send a search to some of the nodes
+    private String search(String query, List<Peer> nodes) {
+        long now = System.nanoTime();
+        searches.values().removeIf(search -> now - search.startedAt > SEARCH_LIFETIME);
+        String id = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        query = query.trim();
+        if (query.length() > MAX_QUERY_LENGTH) {
+            query = query.substring(0, MAX_QUERY_LENGTH);
+        }
+        Search search = new Search(query);
+        searches.put(id, search);
+        for (Peer peer : nodes) {
+            if (packetAuth != null) {
+                search.awaitingCookie.add(peer);
+            }
+            sendSearch(id, query, peer);
+        }
+        return id;
+    }
+
+    // Send a search to a node, with the cookie the node gave to this node (SEARCH:secret:id[,ck=cookie]:query)
+    private void sendSearch(String id, String query, Peer peer) {
+        try {
+            InetAddress address = InetAddress.getByName(peer.getIpAddress());
+            String cookie = transportFactory.getCookie(address);
+            String idField = cookie != null ? id + "," + PacketAuth.COOKIE_OPTION + cookie : id;
+            byte[] buf = ("SEARCH:" + messageSecret + ":" + idField + ":" + query).getBytes();
+            send(socket, new DatagramPacket(buf, buf.length, address, peer.getPort()));
+            Metrics.get().searchesSent.increment();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Method to get the files found so far by a search (empty once it expired)
+    public List<FileMetadata> getSearchResults(String id) {
+        Search search = searches.get(id);
+        return search != null ? new ArrayList<>(search.results) : Collections.emptyList();
+    }
+
+    // Method to get the connected nodes other than this one as peers (possible sources of blocks)
+    public List<Peer> getConnectedPeers() {
+        List<Peer> peers = new ArrayList<>();
+        for (String nodeInfo : getConnectedNodes()) {
+            String[] parts = nodeInfo.split(":");
+            Peer peer = new Peer(parts[0], Integer.parseInt(parts[1]));
+            if (!(parts[0].equals(localNode.getIpAddress()) && peer.getPort() == localNode.getPort())) {
+                peers.add(peer);
+            }
+        }
+        return peers;
+    }
+
+    // Method to get a snapshot of the connected nodes (IP:Port format)
+    public List<String> getConnectedNodes() {
+        synchronized (connectedNodes) {
+            return new ArrayList<>(connectedNodes);
+        }
+    }
+
+    // Method to get the metadata of every file known in the network
+    public List<FileMetadata> getKnownFiles() {
+        return new ArrayList<>(fileHashMap.values());
+    }
+
+    // Method to get the metadata of a known file by its hash
+    public FileMetadata getFileMetadata(String fileHash) {
+        return fileHashMap.get(fileHash);
+    }
+
+    // Method to get the files of other nodes inside a folder (relative path, "" for every file), sorted by path
+    public List<FileMetadata> getFilesInFolder(String folder) {
+        String prefix = folder.isEmpty() || folder.endsWith("/") ? folder : folder + "/";
+        List<FileMetadata> files = new ArrayList<>();
+        for (FileMetadata metadata : filePathMap.values()) {
+            if (metadata.getPath().startsWith(prefix)) {
+                files.add(metadata);
+            }
+        }
+        files.sort(Comparator.comparing(FileMetadata::getPath));
+        return files;
+    }
+
+    // Method to get the folders that hold files of other nodes (relative paths), sorted
+    public List<String> getKnownFolders() {
+        Set<String> folders = new TreeSet<>();
+        for (FileMetadata metadata : filePathMap.values()) {
+            String path = metadata.getPath();
+            for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+                folders.add(path.substring(0, slash));
+            }
+        }
+        return new ArrayList<>(folders);
     }
 }
\ No newline at end of file
@@ -1,6 +1,10 @@
 public class P2PFileSharingApp {
-    // Start the application by creating a new SetupScreen
+    // Start the application by creating a new SetupScreen (or without GUI when --headless/--config is given)
     public static void main(String[] args) {
+        if (NodeConfig.isHeadless(args)) {
+            HeadlessNode.main(args);
+            return;
+        }
         new SetupScreen();
     }
 }
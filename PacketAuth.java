@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Authenticated transports of a node: every packet ends with a MAC (HMAC-SHA256 truncated to 8 bytes) under a key derived
+// from the shared secret, and packets without a valid MAC are dropped before anything reads them
+// Also issues and keeps the cookies that prove a requester receives at its address (data is only sent to proven addresses)
+class PacketAuth implements TransportFactory {
+    static final int MAC_LENGTH = 8;
+    static final String COOKIE_OPTION = "ck="; // request option, the cookie given by the peer
+    static final String COOKIE_MESSAGE = "COOKIE:"; // answer to a request without a valid cookie
+    private static final long COOKIE_PERIOD = TimeUnit.MINUTES.toMillis(2); // a cookie stays valid for one to two periods
+
+    private final TransportFactory transportFactory;
+    private final SecretKeySpec packetKey;
+    private final SecretKeySpec cookieKey; // random, only this node checks its cookies
+    private final Map<InetAddress, String> cookies = new ConcurrentHashMap<>(); // cookies given to this node by its peers
+
+    // Not thread-safe, one instance per thread for each key
+    private final ThreadLocal<Mac> packetMac;
+    private final ThreadLocal<Mac> cookieMac;
+    private final ThreadLocal<byte[]> sendBuffer = ThreadLocal.withInitial(() -> new byte[PathMtu.MAX_DATAGRAM]);
+
+    PacketAuth(TransportFactory transportFactory, String sharedSecret) {
+        this.transportFactory = transportFactory;
+        this.packetKey = new SecretKeySpec(derive(sharedSecret, "p2p packet key"), "HmacSHA256");
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        this.cookieKey = new SecretKeySpec(random, "HmacSHA256");
+        this.packetMac = ThreadLocal.withInitial(() -> newMac(packetKey));
+        this.cookieMac = ThreadLocal.withInitial(() -> newMac(cookieKey));
+    }
+
+    // Value sent instead of the secret in the messages: it identifies the network but does not give away the secret
+    static String networkId(String sharedSecret) {
+        byte[] id = derive(sharedSecret, "p2p network id");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            sb.append(String.format("%02x", id[i]));
+        }
+        return sb.toString();
+    }
+
+    // Wrap a transport of this node
+    Transport wrap(Transport transport) {
+        return new AuthTransport(transport);
+    }
+
+    @Override
+    public Transport open(int port) throws IOException {
+        return wrap(transportFactory.open(port));
+    }
+
+    @Override
+    public Transport openGroup(int port, InetAddress group) throws IOException {
+        return wrap(transportFactory.openGroup(port, group));
+    }
+
+    @Override
+    public InetAddress getBroadcastAddress() throws UnknownHostException {
+        return transportFactory.getBroadcastAddress();
+    }
+
+    @Override
+    public InetAddress getLocalAddress(InetAddress address) {
+        return transportFactory.getLocalAddress(address);
+    }
+
+    @Override
+    public int getMtu(InetAddress address) {
+        return transportFactory.getMtu(address);
+    }
+
+    @Override
+    public int getOverhead() {
+        return MAC_LENGTH;
+    }
+
+    @Override
+    public String getCookie(InetAddress peer) {
+        return cookies.get(peer);
+    }
+
+    @Override
+    public void setCookie(InetAddress peer, String cookie) {
+        cookies.put(peer, cookie);
+    }
+
+    // Cookie of a requester for the current period
+    String issueCookie(InetAddress requester) {
+        return cookie(requester, System.currentTimeMillis() / COOKIE_PERIOD);
+    }
+
+    // Whether the cookie was issued to the requester in this period or the previous one
+    boolean isValidCookie(String cookie, InetAddress requester) {
+        if (cookie == null) {
+            return false;
+        }
+        long period = System.currentTimeMillis() / COOKIE_PERIOD;
+        byte[] given = cookie.getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(given, cookie(requester, period).getBytes(StandardCharsets.US_ASCII))
+                || MessageDigest.isEqual(given, cookie(requester, period - 1).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String cookie(InetAddress requester, long period) {
+        Mac mac = cookieMac.get();
+        mac.update(requester.getAddress());
+        mac.update(ByteBuffer.allocate(Long.BYTES).putLong(period).array());
+        byte[] digest = mac.doFinal();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            sb.append(String.format("%02x", digest[i]));
+        }
+        return sb.toString();
+    }
+
+    // MAC of the bytes into out at the offset
+    private void computeMac(byte[] data, int offset, int length, byte[] out, int outOffset) {
+        Mac mac = packetMac.get();
+        mac.update(data, offset, length);
+        byte[] digest = mac.doFinal();
+        System.arraycopy(digest, 0, out, outOffset, MAC_LENGTH);
+    }
+
+    // Whether the packet ends with the MAC of the bytes before it
+    private boolean verify(byte[] data, int offset, int length) {
+        if (length < MAC_LENGTH) {
+            return false;
+        }
+        Mac mac = packetMac.get();
+        mac.update(data, offset, length - MAC_LENGTH);
+        byte[] digest = mac.doFinal();
+        int difference = 0;
+        for (int i = 0; i < MAC_LENGTH; i++) {
+            difference |= digest[i] ^ data[offset + length - MAC_LENGTH + i];
+        }
+        return difference == 0;
+    }
+
+    private static byte[] derive(String sharedSecret, String label) {
+        Mac mac = newMac(new SecretKeySpec(sharedSecret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        return mac.doFinal(label.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Mac newMac(SecretKeySpec key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e); // Required of every Java platform
+        }
+    }
+
+    // Transport that adds the MAC to the sent packets and drops the received packets without a valid one
+    private class AuthTransport implements Transport {
+        private final Transport transport;
+
+        AuthTransport(Transport transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public void send(DatagramPacket packet) throws IOException {
+            byte[] buffer = sendBuffer.get();
+            int length = packet.getLength();
+            if (length + MAC_LENGTH > buffer.length) {
+                throw new IOException("Packet too large: " + length + " bytes");
+            }
+            System.arraycopy(packet.getData(), packet.getOffset(), buffer, 0, length);
+            computeMac(buffer, 0, length, buffer, length);
+            transport.send(new DatagramPacket(buffer, length + MAC_LENGTH, packet.getAddress(), packet.getPort()));
+        }
+
+        @Override
+        public void receive(DatagramPacket packet) throws IOException {
+            int capacity = packet.getData().length - packet.getOffset();
+            while (true) {
+                packet.setLength(capacity);
+                transport.receive(packet);
+                if (verify(packet.getData(), packet.getOffset(), packet.getLength())) {
+                    packet.setLength(packet.getLength() - MAC_LENGTH);
+                    return;
+                }
+                Metrics.get().packetsRejected.increment(); // Forged, corrupted, truncated or from another network
+            }
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException {
+            transport.setSoTimeout(timeout);
+        }
+
+        @Override
+        public int getLocalPort() {
+            return transport.getLocalPort();
+        }
+
+        @Override
+        public void close() {
+            transport.close();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return transport.isClosed();
+        }
+    }
+}
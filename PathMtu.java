@@ -0,0 +1,116 @@
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Path MTU towards a peer, so that a fragment fits in one IP packet (a lost IP fragment loses the whole datagram)
+// It starts at the smaller of the link MTU and 1500, probes the next larger size (jumbo frames, loopback) while fragments
+// come through, and steps down when requests at the current size get no fragment at all (tunnels, VPNs)
+// Random loss does not change the size: the lost fragments are requested again
+class PathMtu {
+    static final String OPTION = "mtu="; // request option, followed by the MTU of the requester
+    static final int DEFAULT_MTU = 1500;
+    static final int MAX_DATAGRAM = 65507; // largest UDP payload over IPv4
+    private static final int[] SIZES = {1280, 1500, 4352, 9000, 16384, 65535}; // IPv6 minimum, Ethernet, FDDI, jumbo, large loopback sizes
+    private static final long PROBE_BACKOFF = TimeUnit.MINUTES.toNanos(1); // wait after a failed probe
+    private static final int FAILURES_TO_STEP_DOWN = 3; // requests in a row without any fragment at the current size
+
+    private static final Map<String, PathMtu> PEERS = new ConcurrentHashMap<>();
+    private static final Map<InetAddress, Integer> LINK_MTUS = new ConcurrentHashMap<>();
+
+    private final int linkMtu;
+    private int current;
+    private int failures;
+    private long lastFailedProbe;
+
+    private PathMtu(int linkMtu) {
+        this.linkMtu = linkMtu;
+        this.current = Math.min(linkMtu, DEFAULT_MTU);
+    }
+
+    // State of the path to a peer (shared by all the downloads), linkMtu = MTU of the local link to it (0 if unknown)
+    static PathMtu forPeer(Peer peer, int linkMtu) {
+        return PEERS.computeIfAbsent(peer.getIpAddress(), k -> new PathMtu(linkMtu > 0 ? linkMtu : DEFAULT_MTU));
+    }
+
+    // MTU to ask for in the next request: the current size, or the next larger one if it is time to probe
+    synchronized int next() {
+        int larger = nextSize(current);
+        if (larger > current && failures == 0 && System.nanoTime() - lastFailedProbe > PROBE_BACKOFF) {
+            return larger;
+        }
+        return current;
+    }
+
+    // Fragments sent with this MTU arrived
+    synchronized void succeeded(int mtu) {
+        current = Math.max(current, mtu);
+        failures = 0;
+    }
+
+    // No fragment sent with this MTU arrived
+    synchronized void failed(int mtu) {
+        if (mtu > current) {
+            lastFailedProbe = System.nanoTime(); // The larger size does not pass, keep the current one
+        } else if (++failures >= FAILURES_TO_STEP_DOWN) {
+            current = previousSize(current);
+            failures = 0;
+        }
+    }
+
+    // Largest datagram payload for an MTU (IP and UDP headers excluded)
+    static int datagramSize(int mtu, InetAddress address) {
+        int headers = (address instanceof Inet6Address ? 40 : 20) + 8;
+        return Math.min(mtu - headers, MAX_DATAGRAM);
+    }
+
+    // MTU of the local interface that reaches the address, 0 if it is not on a local network
+    static int linkMtu(InetAddress address) {
+        return LINK_MTUS.computeIfAbsent(address, PathMtu::findLinkMtu);
+    }
+
+    private static int findLinkMtu(InetAddress address) {
+        try {
+            // One of the local addresses (also loopback)
+            NetworkInterface local = NetworkInterface.getByInetAddress(address);
+            if (local != null) {
+                return local.getMTU();
+            }
+            if (address.isLoopbackAddress()) {
+                return SIZES[SIZES.length - 1];
+            }
+
+            // The interface whose subnet contains the address
+            NetworkInterface networkInterface = LocalInterfaces.findInterface(address);
+            if (networkInterface != null) {
+                return networkInterface.getMTU();
+            }
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    // Next probe size within the link MTU (the link MTU itself if it is between two sizes)
+    private int nextSize(int mtu) {
+        for (int size : SIZES) {
+            if (size > mtu) {
+                return Math.min(size, linkMtu);
+            }
+        }
+        return Math.min(mtu, linkMtu);
+    }
+
+    private static int previousSize(int mtu) {
+        int previous = SIZES[0];
+        for (int size : SIZES) {
+            if (size < mtu) {
+                previous = size;
+            }
+        }
+        return previous;
+    }
+}
@@ -16,6 +16,20 @@ public class Peer {
         return port;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Peer)) {
+            return false;
+        }
+        Peer other = (Peer) o;
+        return port == other.port && ipAddress.equals(other.ipAddress);
+    }
+
+    @Override
+    public int hashCode() {
+        return ipAddress.hashCode() * 31 + port;
+    }
+
     @Override
     public String toString() {
         return ipAddress + ":" + port;
@@ -0,0 +1,36 @@
+// Token bucket shared by the downloads, limits the total rate of the requested data (bursts up to one second of data)
+public class RateLimiter {
+    private long bytesPerSecond; // 0 = unlimited
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    // Change the limit (bytes per second, 0 = unlimited)
+    public synchronized void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.tokens = Math.min(tokens, this.bytesPerSecond);
+    }
+
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    // Take the bytes from the bucket, waits if the bucket is empty
+    public void acquire(long bytes) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+            lastRefill = now;
+
+            // Take the bytes now (the bucket may go negative) so that the callers are served in order
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / bytesPerSecond) : 0;
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+    }
+}
@@ -0,0 +1,295 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// In-memory datagram network for running many nodes in one process, with packet loss, reordering, latency and bandwidth
+public class SimulatedNetwork {
+    // Settings
+    private double lossRate;
+    private double reorderRate;
+    private long latencyMicros;
+    private long jitterMicros;
+    private long bandwidth; // bytes per second per host uplink, 0 = unlimited
+    private int queueCapacity = 2048; // packets buffered per endpoint (like a socket receive buffer)
+    private int mtu = PathMtu.DEFAULT_MTU; // larger datagrams are split into IP fragments, losing one loses the datagram
+
+    // Endpoints by virtual address and port
+    private final Map<InetSocketAddress, SimulatedTransport> endpoints = new ConcurrentHashMap<>();
+    private final Map<InetAddress, long[]> uplinks = new ConcurrentHashMap<>(); // host -> time its uplink is free (ns)
+    private final AtomicInteger nextEphemeralPort = new AtomicInteger(40000);
+    private final DelayQueue<Delivery> inFlight = new DelayQueue<>();
+    private final Random random = new Random(1);
+    private final InetAddress broadcastAddress;
+
+    // Counters (control = text messages, data = chunk fragments)
+    public final LongAdder controlBytes = new LongAdder();
+    public final LongAdder controlPackets = new LongAdder();
+    public final LongAdder dataBytes = new LongAdder();
+    public final LongAdder dataPackets = new LongAdder();
+    public final LongAdder droppedPackets = new LongAdder();
+
+    public SimulatedNetwork() {
+        try {
+            broadcastAddress = InetAddress.getByAddress(new byte[]{(byte) 255, (byte) 255, (byte) 255, (byte) 255});
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // Delivery thread, hands the packets to their endpoints when their time has come
+        Thread deliveryThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Delivery delivery = inFlight.take();
+                    deliver(delivery);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "simulated-network");
+        deliveryThread.setDaemon(true);
+        deliveryThread.start();
+    }
+
+    // Setters for the link properties
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    public void setReorderRate(double reorderRate) {
+        this.reorderRate = reorderRate;
+    }
+
+    public void setLatency(long millis, long jitterMillis) {
+        this.latencyMicros = millis * 1000;
+        this.jitterMicros = jitterMillis * 1000;
+    }
+
+    public void setBandwidth(long bytesPerSecond) {
+        this.bandwidth = bytesPerSecond;
+    }
+
+    public void setQueueCapacity(int packets) {
+        this.queueCapacity = packets;
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    // Factory for the transports of the host with the given (virtual) IP address
+    public TransportFactory host(String ipAddress) throws UnknownHostException {
+        InetAddress address = InetAddress.getByName(ipAddress);
+        return new TransportFactory() {
+            @Override
+            public Transport open(int port) throws IOException {
+                int localPort = port != 0 ? port : nextEphemeralPort.getAndIncrement();
+                SimulatedTransport transport = new SimulatedTransport(new InetSocketAddress(address, localPort));
+                if (endpoints.putIfAbsent(transport.localAddress, transport) != null) {
+                    throw new SocketException("Address already in use: " + transport.localAddress);
+                }
+                return transport;
+            }
+
+            @Override
+            public InetAddress getBroadcastAddress() {
+                return broadcastAddress;
+            }
+
+            @Override
+            public int getMtu(InetAddress address) {
+                return mtu;
+            }
+
+            @Override
+            public InetAddress getLocalAddress(InetAddress remote) {
+                return address; // One virtual address per host
+            }
+        };
+    }
+
+    // Apply the link properties to a sent packet and schedule its delivery
+    private void send(SimulatedTransport from, DatagramPacket packet) {
+        byte[] data = new byte[packet.getLength()];
+        System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
+
+        // Text messages (DISCOVERY, FILE, REQUEST_CHUNK...) start with an upper case letter, fragments with a binary header
+        if (data.length > 0 && data[0] >= 'A' && data[0] <= 'Z') {
+            controlBytes.add(data.length);
+            controlPackets.increment();
+        } else {
+            dataBytes.add(data.length);
+            dataPackets.increment();
+        }
+
+        long now = System.nanoTime();
+        long departure = now;
+        double lossDraw;
+        double reorderDraw;
+        long jitter;
+        synchronized (random) {
+            lossDraw = random.nextDouble();
+            reorderDraw = random.nextDouble();
+            jitter = jitterMicros > 0 ? (long) (random.nextDouble() * jitterMicros) : 0;
+        }
+
+        // The packet leaves when the uplink of the host is free
+        if (bandwidth > 0) {
+            long[] uplink = uplinks.computeIfAbsent(from.localAddress.getAddress(), k -> new long[1]);
+            synchronized (uplink) {
+                departure = Math.max(now, uplink[0]) + data.length * 1_000_000_000L / bandwidth;
+                uplink[0] = departure;
+            }
+        }
+
+        // Every IP fragment of the datagram (20 bytes of IP header each, 8 bytes of UDP header once) must arrive
+        int ipPackets = (data.length + 8 + mtu - 21) / (mtu - 20);
+        double datagramLossRate = ipPackets > 1 ? 1 - Math.pow(1 - lossRate, ipPackets) : lossRate;
+        if (lossDraw < datagramLossRate) {
+            droppedPackets.increment();
+            return;
+        }
+
+        long arrival = departure + (latencyMicros + jitter) * 1000;
+        if (reorderDraw < reorderRate) {
+            // Hold the packet back so that the following ones overtake it
+            arrival += Math.max(latencyMicros, 1000) * 1000;
+        }
+        inFlight.add(new Delivery(arrival, from.localAddress, new InetSocketAddress(packet.getAddress(), packet.getPort()), data));
+    }
+
+    // Hand a packet to its endpoint, or to every endpoint on the port for a broadcast (every host is in every multicast group)
+    private void deliver(Delivery delivery) {
+        if (delivery.to.getAddress().equals(broadcastAddress) || delivery.to.getAddress().isMulticastAddress()) {
+            for (SimulatedTransport endpoint : endpoints.values()) {
+                if (endpoint.localAddress.getPort() == delivery.to.getPort()) {
+                    endpoint.enqueue(delivery);
+                }
+            }
+        } else {
+            SimulatedTransport endpoint = endpoints.get(delivery.to);
+            if (endpoint != null) {
+                endpoint.enqueue(delivery);
+            } else {
+                droppedPackets.increment();
+            }
+        }
+    }
+
+    // A packet on its way
+    private static class Delivery implements Delayed {
+        final long arrival;
+        final InetSocketAddress from;
+        final InetSocketAddress to;
+        final byte[] data;
+
+        Delivery(long arrival, InetSocketAddress from, InetSocketAddress to, byte[] data) {
+            this.arrival = arrival;
+            this.from = from;
+            this.to = to;
+            this.data = data;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(arrival - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(arrival, ((Delivery) other).arrival);
+        }
+    }
+
+    // Endpoint of the simulated network
+    private class SimulatedTransport implements Transport {
+        final InetSocketAddress localAddress;
+        final BlockingQueue<Delivery> queue = new ArrayBlockingQueue<>(queueCapacity);
+        volatile int timeout;
+        volatile boolean closed;
+
+        SimulatedTransport(InetSocketAddress localAddress) {
+            this.localAddress = localAddress;
+        }
+
+        void enqueue(Delivery delivery) {
+            if (closed || !queue.offer(delivery)) {
+                droppedPackets.increment(); // Receive buffer full
+            }
+        }
+
+        @Override
+        public void send(DatagramPacket packet) throws IOException {
+            if (closed) {
+                throw new SocketException("Socket closed");
+            }
+            SimulatedNetwork.this.send(this, packet);
+        }
+
+        @Override
+        public void receive(DatagramPacket packet) throws IOException {
+            Delivery delivery;
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new SocketException("Socket closed");
+                    }
+                    // Wake up regularly to notice close()
+                    long wait = timeout > 0 ? timeout : 200;
+                    delivery = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (delivery != null) {
+                        break;
+                    }
+                    if (timeout > 0) {
+                        throw new SocketTimeoutException("Receive timed out");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SocketException("Interrupted");
+            }
+
+            // Same semantics as a UDP socket: copy what fits into the buffer
+            int capacity = packet.getData().length - packet.getOffset();
+            int length = Math.min(capacity, delivery.data.length);
+            System.arraycopy(delivery.data, 0, packet.getData(), packet.getOffset(), length);
+            packet.setLength(length);
+            packet.setAddress(delivery.from.getAddress());
+            packet.setPort(delivery.from.getPort());
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int getLocalPort() {
+            return localAddress.getPort();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            endpoints.remove(localAddress, this);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+    }
+}
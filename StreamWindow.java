@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.BitSet;
+import java.util.function.IntPredicate;
+
+// Chunks of a streamed download that can be read, and the chunk its reader waits for
+// The downloader fetches the chunks from the read position up to the look-ahead window first, then the remaining
+// chunks in file order (such as the part skipped by a seek), so the file still completes like any download
+class StreamWindow {
+    private final int totalChunks;
+    private final int lookAhead; // chunks after the read position that come first
+    private final BitSet available = new BitSet(); // chunks written to the file, guarded by this
+    private int readChunk; // chunk the reader needs next
+    private boolean complete;
+    private String failure; // why the file cannot be read, null if it can
+
+    StreamWindow(int totalChunks, int lookAhead) {
+        this.totalChunks = totalChunks;
+        this.lookAhead = Math.max(1, lookAhead);
+    }
+
+    // Chunks already in the file (resumed download)
+    synchronized void addAvailable(BitSet chunks) {
+        available.or(chunks);
+        notifyAll();
+    }
+
+    // A chunk was written to the file
+    synchronized void chunkAvailable(int index) {
+        available.set(index);
+        notifyAll();
+    }
+
+    // Next chunk to download, skipping the chunks the downloader already has in progress, -1 if there is none
+    synchronized int nextChunk(IntPredicate inProgress) {
+        int end = (int) Math.min(totalChunks, (long) readChunk + lookAhead);
+        for (int i = available.nextClearBit(readChunk); i < end; i = available.nextClearBit(i + 1)) {
+            if (!inProgress.test(i)) {
+                return i;
+            }
+        }
+        for (int i = available.nextClearBit(0); i < totalChunks; i = available.nextClearBit(i + 1)) {
+            if (!inProgress.test(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Wait until the chunk can be read, it becomes the read position so the downloader fetches it next
+    synchronized void await(int index) throws IOException {
+        readChunk = index;
+        while (!complete && !available.get(index)) {
+            if (failure != null) {
+                throw new IOException(failure);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for chunk " + index);
+            }
+        }
+        if (failure != null) {
+            throw new IOException(failure);
+        }
+    }
+
+    // The whole file was downloaded and verified (it was renamed from its .part file)
+    synchronized void complete() {
+        complete = true;
+        notifyAll();
+    }
+
+    // The download was cancelled or its data is not the expected file, the readers get an IOException
+    synchronized void fail(String reason) {
+        failure = reason;
+        notifyAll();
+    }
+
+    synchronized boolean isComplete() {
+        return complete;
+    }
+}
@@ -0,0 +1,26 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.Timer;
+
+// Runs an update on the EDT at most once per frame, however often it is requested from other threads
+public class SwingCoalescer {
+    private static final int FRAME_MILLIS = 16; // ~60 updates per second
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Timer timer;
+
+    public SwingCoalescer(Runnable update) {
+        timer = new Timer(FRAME_MILLIS, e -> {
+            // Clear the flag first so that requests made during the update schedule the next frame
+            scheduled.set(false);
+            update.run();
+        });
+        timer.setRepeats(false);
+    }
+
+    // Ask for an update, can be called from any thread
+    public void request() {
+        if (scheduled.compareAndSet(false, true)) {
+            timer.start();
+        }
+    }
+}
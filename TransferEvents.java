@@ -0,0 +1,166 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Java Flight Recorder events of the transfers, recorded with the p2p.jfc profile and read by JfrReport
+// While no recording is running an event is never committed and the JIT removes it, the fields are only filled in
+// after shouldCommit() so a disabled event costs nothing on the hot paths
+class TransferEvents {
+    static final String PREFIX = "p2p.";
+
+    // A request for a chunk, block or manifest page was sent (also the requests for the missing fragments)
+    @Name(PREFIX + "ChunkRequested")
+    @Label("Chunk Requested")
+    @Category({"P2P", "Download"})
+    @StackTrace(false)
+    static class ChunkRequested extends Event {
+        @Label("Peer")
+        String peer;
+
+        @Label("Request")
+        String request;
+
+        @Label("MTU")
+        int mtu;
+
+        @Label("Repair")
+        @Description("Only the missing fragments were requested")
+        boolean repair;
+    }
+
+    // A fragment of the requested chunk arrived (many per chunk, disabled in the default settings)
+    @Name(PREFIX + "FragmentReceived")
+    @Label("Fragment Received")
+    @Category({"P2P", "Download"})
+    @StackTrace(false)
+    static class FragmentReceived extends Event {
+        @Label("Peer")
+        String peer;
+
+        @Label("Key")
+        @Description("File hash, or block hash in block mode")
+        String key;
+
+        @Label("Chunk")
+        int chunkIndex;
+
+        @Label("Size")
+        @DataAmount
+        int bytes;
+    }
+
+    // A chunk, block or manifest page from its first request to the last fragment (or to the failure)
+    @Name(PREFIX + "ChunkDownload")
+    @Label("Chunk Download")
+    @Category({"P2P", "Download"})
+    @StackTrace(false)
+    static class ChunkDownload extends Event {
+        @Label("Peer")
+        String peer;
+
+        @Label("Key")
+        @Description("File hash, or block hash in block mode")
+        String key;
+
+        @Label("Chunk")
+        int chunkIndex;
+
+        @Label("Result")
+        @Description("completed, timeout, missing (the peer does not have it), corrupt, stopped or error")
+        String result;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Fragments")
+        int fragments;
+
+        @Label("Repairs")
+        @Description("Requests for the missing fragments")
+        int repairs;
+
+        @Label("Recovered")
+        @Description("Missing fragments rebuilt from the parity fragments")
+        int recovered;
+
+        @Label("MTU")
+        int mtu;
+    }
+
+    // A chunk or block was read and sent to a requester, including the wait for the upload rate limit
+    @Name(PREFIX + "ChunkServed")
+    @Label("Chunk Served")
+    @Category({"P2P", "Upload"})
+    @StackTrace(false)
+    static class ChunkServed extends Event {
+        @Label("Requester")
+        @Description("Address of the requesting node (its requests come from changing ports)")
+        String peer;
+
+        @Label("Key")
+        @Description("File hash, or block hash for a block")
+        String key;
+
+        @Label("Chunk")
+        int chunkIndex;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    // A shared file was hashed
+    @Name(PREFIX + "FileHashed")
+    @Label("File Hashed")
+    @Category({"P2P", "Files"})
+    @StackTrace(false)
+    static class FileHashed extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    // The shared folder was scanned
+    @Name(PREFIX + "ScanCompleted")
+    @Label("Scan Completed")
+    @Category({"P2P", "Files"})
+    @StackTrace(false)
+    static class ScanCompleted extends Event {
+        @Label("Folder")
+        String folder;
+
+        @Label("Files")
+        int files;
+    }
+
+    // A node answered the discovery of this node or announced itself
+    @Name(PREFIX + "PeerDiscovered")
+    @Label("Peer Discovered")
+    @Category({"P2P", "Discovery"})
+    @StackTrace(false)
+    static class PeerDiscovered extends Event {
+        @Label("Peer")
+        String peer;
+    }
+
+    // A node left the network
+    @Name(PREFIX + "PeerExpired")
+    @Label("Peer Expired")
+    @Category({"P2P", "Discovery"})
+    @StackTrace(false)
+    static class PeerExpired extends Event {
+        @Label("Peer")
+        String peer;
+
+        @Label("Reason")
+        String reason;
+    }
+}
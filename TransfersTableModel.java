@@ -0,0 +1,106 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.swing.table.AbstractTableModel;
+
+// Table model of the file transfers, rows are indexed by file name
+public class TransfersTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    private static final String[] COLUMNS = {"File Name", "Progress", "Status", "Priority"};
+
+    private final List<Object[]> rows = new ArrayList<>();
+    private final Map<String, Integer> rowIndex = new HashMap<>(); // file name -> row
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        return rows.get(row)[column];
+    }
+
+    // Add a transfer, or reset the row if the file is already in the table
+    public void addTransfer(String fileName, String status) {
+        Integer row = rowIndex.get(fileName);
+        if (row != null) {
+            rows.get(row)[1] = "0%";
+            rows.get(row)[2] = status;
+            fireTableRowsUpdated(row, row);
+            return;
+        }
+        rowIndex.put(fileName, rows.size());
+        rows.add(new Object[]{fileName, "0%", status, 0});
+        fireTableRowsInserted(rows.size() - 1, rows.size() - 1);
+    }
+
+    // Apply a batch of progress updates (file name -> percentage) with one notification
+    public void updateProgress(Map<String, Integer> progressByFile) {
+        int firstUpdated = Integer.MAX_VALUE;
+        int lastUpdated = -1;
+        int firstInserted = rows.size();
+        for (Map.Entry<String, Integer> entry : progressByFile.entrySet()) {
+            int progress = entry.getValue();
+            Integer row = rowIndex.get(entry.getKey());
+            if (row == null) {
+                // If the file is not in the table, add it
+                rowIndex.put(entry.getKey(), rows.size());
+                rows.add(new Object[]{entry.getKey(), progress + "%", progress == 100 ? "Completed" : "Downloading...", 0});
+                continue;
+            }
+            rows.get(row)[1] = progress + "%";
+            if (progress == 100) {
+                rows.get(row)[2] = "Completed";
+            }
+            if (row < firstInserted) {
+                firstUpdated = Math.min(firstUpdated, row);
+                lastUpdated = Math.max(lastUpdated, row);
+            }
+        }
+        if (lastUpdated >= 0) {
+            fireTableRowsUpdated(firstUpdated, lastUpdated);
+        }
+        if (rows.size() > firstInserted) {
+            fireTableRowsInserted(firstInserted, rows.size() - 1);
+        }
+    }
+
+    // Set the status and priority of a transfer, added if it is not in the table
+    public void setStatus(String fileName, String status, int priority) {
+        Integer row = rowIndex.get(fileName);
+        if (row == null) {
+            addTransfer(fileName, status);
+            row = rowIndex.get(fileName);
+        }
+        rows.get(row)[2] = status;
+        rows.get(row)[3] = priority;
+        fireTableRowsUpdated(row, row);
+    }
+
+    // File name of a row
+    public String getFileName(int row) {
+        return (String) rows.get(row)[0];
+    }
+
+    // Remove every transfer
+    public void clear() {
+        int size = rows.size();
+        rows.clear();
+        rowIndex.clear();
+        if (size > 0) {
+            fireTableRowsDeleted(0, size - 1);
+        }
+    }
+}
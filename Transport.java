@@ -0,0 +1,21 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketException;
+
+// Datagram endpoint used by NodeDiscovery and FileDownloader (a UDP socket, or the in-memory network of the load test)
+public interface Transport {
+    // Send a packet to the address and port set in the packet
+    void send(DatagramPacket packet) throws IOException;
+
+    // Wait for a packet, throws SocketTimeoutException when the timeout expires
+    void receive(DatagramPacket packet) throws IOException;
+
+    // Receive timeout in milliseconds (0 waits forever)
+    void setSoTimeout(int timeout) throws SocketException;
+
+    int getLocalPort();
+
+    void close();
+
+    boolean isClosed();
+}
@@ -0,0 +1,41 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+// Creates the transports of a node, so that many nodes can share one process in the load test
+public interface TransportFactory {
+    // Open a transport bound to the port (0 picks a free port)
+    Transport open(int port) throws IOException;
+
+    // Address that reaches every node of the network
+    InetAddress getBroadcastAddress() throws UnknownHostException;
+
+    // Open the discovery transport: bound to the port and a member of the group (a multicast address, or the broadcast address)
+    default Transport openGroup(int port, InetAddress group) throws IOException {
+        return open(port);
+    }
+
+    // Address of this host on the network of the address (multi-homed hosts), null if unknown
+    default InetAddress getLocalAddress(InetAddress address) {
+        return LocalInterfaces.localAddressFor(address);
+    }
+
+    // MTU of the local link to the address, 0 if unknown
+    default int getMtu(InetAddress address) {
+        return PathMtu.linkMtu(address);
+    }
+
+    // Bytes the transports add to every packet (authentication)
+    default int getOverhead() {
+        return 0;
+    }
+
+    // Cookie given to this node by the peer, to put in the requests sent to it (null if none)
+    default String getCookie(InetAddress peer) {
+        return null;
+    }
+
+    // Keep the cookie given to this node by the peer
+    default void setCookie(InetAddress peer, String cookie) {
+    }
+}
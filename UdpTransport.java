@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+
+// Transport over a real UDP socket
+public class UdpTransport implements Transport {
+    // Room for a whole chunk burst plus the next one, so that no fragment is dropped
+    // while the receiver is busy with the previous packets
+    static final int RECEIVE_BUFFER_SIZE = 2 * 1024 * 1024;
+
+    // Factory used by the application (discovery over a multicast group, or the limited broadcast of older versions)
+    public static final TransportFactory FACTORY = new TransportFactory() {
+        @Override
+        public Transport open(int port) throws IOException {
+            DatagramSocket socket = new DatagramSocket(port);
+            socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE); // The OS may cap it (net.core.rmem_max on Linux)
+            return new UdpTransport(socket);
+        }
+
+        @Override
+        public InetAddress getBroadcastAddress() throws UnknownHostException {
+            return InetAddress.getByName("255.255.255.255");
+        }
+
+        @Override
+        public Transport openGroup(int port, InetAddress group) throws IOException {
+            return group.isMulticastAddress() ? new MulticastTransport(port, group) : open(port);
+        }
+    };
+
+    private DatagramSocket socket;
+
+    public UdpTransport(DatagramSocket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public void send(DatagramPacket packet) throws IOException {
+        socket.send(packet);
+    }
+
+    @Override
+    public void receive(DatagramPacket packet) throws IOException {
+        socket.receive(packet);
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+}
@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.time.LocalTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Serves the requests of the other nodes (chunks, blocks, manifests) on one thread:
+// deficit round robin across the requesting hosts (weighted) under a global upload rate limit,
+// which can follow a time-of-day schedule; requests that waited too long are dropped (the requester asks again)
+public class UploadScheduler {
+    // Work to serve a request, returns the number of bytes sent
+    interface Task {
+        long run() throws IOException;
+    }
+
+    // A queued request
+    private static class Request {
+        final Task task;
+        final long queuedAt = System.nanoTime();
+
+        Request(Task task) {
+            this.task = task;
+        }
+    }
+
+    // Requests of one host and its deficit (bytes it may still send in its current turn, negative after an overdraft)
+    private static class HostQueue {
+        final String host;
+        final ArrayDeque<Request> requests = new ArrayDeque<>();
+        long deficit;
+        boolean inTurn;
+
+        HostQueue(String host) {
+            this.host = host;
+        }
+    }
+
+    // Time of day window with its own rate
+    private static class Window {
+        final LocalTime start;
+        final LocalTime end;
+        final long rate;
+
+        Window(LocalTime start, LocalTime end, long rate) {
+            this.start = start;
+            this.end = end;
+            this.rate = rate;
+        }
+
+        boolean contains(LocalTime time) {
+            if (start.isBefore(end)) {
+                return !time.isBefore(start) && time.isBefore(end);
+            }
+            return !time.isBefore(start) || time.isBefore(end); // Window over midnight
+        }
+    }
+
+    private static final long QUANTUM = 512 * 1024; // bytes per turn for a host of weight 1
+
+    private final Map<String, HostQueue> queues = new HashMap<>(); // guarded by this
+    private final ArrayDeque<HostQueue> active = new ArrayDeque<>(); // hosts with requests in round robin order
+    private final RateLimiter limiter = new RateLimiter();
+    private volatile Map<String, Double> weights = new HashMap<>();
+    private volatile long baseRate; // bytes per second outside the schedule windows, 0 = unlimited
+    private volatile List<Window> schedule = new ArrayList<>();
+    private long lastRateUpdate;
+    private int maxQueuedPerHost = 64;
+    private long maxQueueDelay = TimeUnit.SECONDS.toNanos(5); // the requester gives up after its chunk timeout
+    private int queued;
+    private Thread thread;
+
+    // Global upload limit in bytes per second (0 = unlimited)
+    public void setRate(long bytesPerSecond) {
+        this.baseRate = bytesPerSecond;
+        updateRate(true);
+    }
+
+    // Rates by time of day, e.g. "08:00-18:00=256k,18:00-23:00=2m" (0 = unlimited), other times use the global limit
+    public void setSchedule(String spec) {
+        List<Window> windows = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            String[] parts = entry.split("[-=]");
+            long rate = parts.length == 3 ? FileSearchIndex.parseSize(parts[2].trim().toLowerCase()) : -1;
+            if (rate < 0) {
+                throw new IllegalArgumentException("Invalid upload schedule entry: " + entry);
+            }
+            windows.add(new Window(LocalTime.parse(parts[0].trim()), LocalTime.parse(parts[1].trim()), rate));
+        }
+        this.schedule = windows;
+        updateRate(true);
+    }
+
+    // Share of the upload per host, e.g. "10.0.0.5=2,10.0.0.6=0.5" (default weight 1)
+    public void setWeights(String spec) {
+        Map<String, Double> map = new HashMap<>();
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split("=");
+            if (parts.length == 2) {
+                map.put(parts[0].trim(), Double.parseDouble(parts[1].trim()));
+            }
+        }
+        this.weights = map;
+    }
+
+    // Number of requests waiting to be served
+    public synchronized int getQueueDepth() {
+        return queued;
+    }
+
+    // Queue a request of a host, returns false if the host has too many requests waiting
+    public synchronized boolean submit(InetAddress address, Task task) {
+        String host = address.getHostAddress();
+        HostQueue queue = queues.get(host);
+        if (queue == null) {
+            queue = new HostQueue(host);
+            queues.put(host, queue);
+            active.addLast(queue);
+        }
+        if (queue.requests.size() >= maxQueuedPerHost) {
+            Metrics.get().uploadRequestsDropped.increment();
+            return false;
+        }
+        queue.requests.addLast(new Request(task));
+        queued++;
+        notifyAll();
+        return true;
+    }
+
+    // Wait until the rate limit allows to send a packet (called by the serving thread for every data packet)
+    public void pace(int bytes) {
+        updateRate(false);
+        try {
+            limiter.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Start the serving thread
+    public void start() {
+        thread = new Thread(this::serve, "upload-scheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Stop the serving thread, the waiting requests are dropped
+    public void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    // Serving loop
+    private void serve() {
+        while (!Thread.currentThread().isInterrupted()) {
+            HostQueue queue;
+            Request request;
+            synchronized (this) {
+                try {
+                    while (active.isEmpty()) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                // Start the turn of the host at the head: it may send up to its quantum (plus what is left of it)
+                queue = active.peekFirst();
+                if (!queue.inTurn) {
+                    queue.deficit += (long) (QUANTUM * weights.getOrDefault(queue.host, 1.0));
+                    queue.inTurn = true;
+                }
+                if (queue.deficit <= 0) {
+                    endTurn(queue); // Still paying back an earlier overdraft
+                    continue;
+                }
+                request = queue.requests.pollFirst();
+                queued--;
+                if (System.nanoTime() - request.queuedAt > maxQueueDelay) {
+                    Metrics.get().uploadRequestsDropped.increment(); // The requester has given up
+                    finishRequest(queue, 0);
+                    continue;
+                }
+            }
+
+            long bytesSent = 0;
+            try {
+                bytesSent = request.task.run();
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace(); // One failed request must not stop the serving of the others
+            }
+            synchronized (this) {
+                finishRequest(queue, bytesSent);
+            }
+        }
+    }
+
+    // Charge the host for a served request (called with the lock held)
+    private void finishRequest(HostQueue queue, long bytesSent) {
+        queue.deficit -= bytesSent;
+        if (queue.requests.isEmpty()) {
+            // Idle hosts do not keep credit
+            active.remove(queue);
+            queues.remove(queue.host);
+        } else if (queue.deficit <= 0) {
+            endTurn(queue);
+        }
+    }
+
+    // Move the host to the end of the round (called with the lock held)
+    private void endTurn(HostQueue queue) {
+        queue.inTurn = false;
+        active.remove(queue);
+        active.addLast(queue);
+    }
+
+    // Apply the rate of the current time of day (checked at most once per second unless forced)
+    private void updateRate(boolean force) {
+        long now = System.nanoTime();
+        synchronized (limiter) {
+            if (!force && now - lastRateUpdate < TimeUnit.SECONDS.toNanos(1)) {
+                return;
+            }
+            lastRateUpdate = now;
+        }
+        long rate = baseRate;
+        LocalTime time = LocalTime.now();
+        for (Window window : schedule) {
+            if (window.contains(time)) {
+                rate = window.rate;
+                break;
+            }
+        }
+        if (rate != limiter.getRate()) {
+            limiter.setRate(rate);
+        }
+    }
+}
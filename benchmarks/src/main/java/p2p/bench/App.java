@@ -0,0 +1,43 @@
+package p2p.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+// The application classes live in the default package, which cannot be imported: bind to them through method handles
+final class App {
+    private App() {
+    }
+
+    // Handle to a (possibly non-public) static or instance method of an application class
+    static MethodHandle method(String className, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = Class.forName(className).getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot bind " + className + "." + name, e);
+        }
+    }
+
+    // Handle to a constructor of an application class
+    static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+        try {
+            Constructor<?> constructor = Class.forName(className).getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot bind " + className + " constructor", e);
+        }
+    }
+
+    // Class of the application
+    static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
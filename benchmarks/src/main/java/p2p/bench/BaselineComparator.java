@@ -0,0 +1,186 @@
+package p2p.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Compares a JMH JSON result (-rf json) against a stored baseline, exits with 1 if a benchmark regressed
+public final class BaselineComparator {
+    private BaselineComparator() {
+    }
+
+    // Usage: BaselineComparator <baseline.json> <result.json> [allowed regression in percent, default 10]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java -cp target/benchmarks.jar p2p.bench.BaselineComparator <baseline.json> <result.json> [percent]");
+            System.exit(2);
+        }
+        double allowed = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+        Map<String, Score> baseline = read(args[0]);
+        Map<String, Score> result = read(args[1]);
+
+        boolean regressed = false;
+        System.out.printf("%-75s %14s %14s %9s%n", "Benchmark", "Baseline", "Current", "Change");
+        for (Map.Entry<String, Score> entry : result.entrySet()) {
+            Score current = entry.getValue();
+            Score base = baseline.get(entry.getKey());
+            if (base == null) {
+                System.out.printf("%-75s %14s %14.3f %9s%n", entry.getKey(), "-", current.value, "new");
+                continue;
+            }
+
+            // Positive change is always an improvement (higher throughput or lower time)
+            double change = (current.value - base.value) / base.value * 100.0;
+            if (!current.higherIsBetter) {
+                change = -change;
+            }
+            boolean worse = change < -allowed;
+            regressed |= worse;
+            System.out.printf("%-75s %14.3f %14.3f %+8.1f%%%s%n", entry.getKey(), base.value, current.value, change,
+                    worse ? "  REGRESSION" : "");
+        }
+        System.exit(regressed ? 1 : 0);
+    }
+
+    // Score of a benchmark in its own unit
+    private static final class Score {
+        final double value;
+        final boolean higherIsBetter;
+
+        Score(double value, boolean higherIsBetter) {
+            this.value = value;
+            this.higherIsBetter = higherIsBetter;
+        }
+    }
+
+    // Read the scores of a JMH JSON file, keyed by benchmark name and parameters
+    @SuppressWarnings("unchecked")
+    private static Map<String, Score> read(String path) throws IOException {
+        String json = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+        List<Object> runs = (List<Object>) new JsonReader(json).readValue();
+        Map<String, Score> scores = new TreeMap<>();
+        for (Object item : runs) {
+            Map<String, Object> run = (Map<String, Object>) item;
+            String name = ((String) run.get("benchmark")).replace("p2p.bench.", "");
+            Map<String, Object> params = (Map<String, Object>) run.get("params");
+            if (params != null) {
+                name += new TreeMap<>(params).toString();
+            }
+            Map<String, Object> metric = (Map<String, Object>) run.get("primaryMetric");
+            boolean higherIsBetter = "thrpt".equals(run.get("mode"));
+            scores.put(name, new Score(((Number) metric.get("score")).doubleValue(), higherIsBetter));
+        }
+        return scores;
+    }
+
+    // Minimal JSON reader, enough for the files written by JMH
+    private static final class JsonReader {
+        private final String text;
+        private int pos;
+
+        JsonReader(String text) {
+            this.text = text;
+        }
+
+        Object readValue() {
+            skipWhitespace();
+            char c = text.charAt(pos);
+            switch (c) {
+                case '{': return readObject();
+                case '[': return readArray();
+                case '"': return readString();
+                case 't': pos += 4; return Boolean.TRUE;
+                case 'f': pos += 5; return Boolean.FALSE;
+                case 'n': pos += 4; return null;
+                default: return readNumber();
+            }
+        }
+
+        private Map<String, Object> readObject() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            pos++; // {
+            skipWhitespace();
+            if (text.charAt(pos) == '}') {
+                pos++;
+                return map;
+            }
+            while (true) {
+                skipWhitespace();
+                String key = readString();
+                skipWhitespace();
+                pos++; // :
+                map.put(key, readValue());
+                skipWhitespace();
+                if (text.charAt(pos++) == '}') {
+                    return map;
+                }
+            }
+        }
+
+        private List<Object> readArray() {
+            List<Object> list = new ArrayList<>();
+            pos++; // [
+            skipWhitespace();
+            if (text.charAt(pos) == ']') {
+                pos++;
+                return list;
+            }
+            while (true) {
+                list.add(readValue());
+                skipWhitespace();
+                if (text.charAt(pos++) == ']') {
+                    return list;
+                }
+            }
+        }
+
+        private String readString() {
+            StringBuilder sb = new StringBuilder();
+            pos++; // opening quote
+            while (true) {
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c == '\\') {
+                    char escaped = text.charAt(pos++);
+                    switch (escaped) {
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'u': sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16)); pos += 4; break;
+                        default: sb.append(escaped);
+                    }
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+
+        private Object readNumber() {
+            int start = pos;
+            while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+                pos++;
+            }
+            String number = text.substring(start, pos);
+            if (number.equals("NaN") || number.isEmpty()) {
+                return Double.NaN;
+            }
+            return Double.parseDouble(number);
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package p2p.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// ContentChunker.split (rolling hash boundaries and block hashes) compared with hashing the whole file
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ChunkingBenchmark {
+    private static final MethodHandle SPLIT = App.method("ContentChunker", "split", File.class);
+
+    @Param({"524288", "16777216"})
+    public int fileSize;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        byte[] data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        file = File.createTempFile("p2p-cdc", ".bin");
+        Files.write(file.toPath(), data);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Benchmark
+    public List<?> split() throws Throwable {
+        return (List<?>) SPLIT.invokeExact(file);
+    }
+}
@@ -0,0 +1,41 @@
+package p2p.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Parsing of the control messages handled by NodeDiscovery
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ControlMessageBenchmark {
+    private static final MethodHandle PARSE_FILE = App.method("NodeDiscovery", "parseFileBroadcast", String.class, String.class)
+            .asType(MethodType.methodType(Object.class, String.class, String.class));
+
+    private static final String SECRET = "secret";
+
+    private String fileMessage;
+    private String discoveryMessage;
+
+    @Setup
+    public void setup() {
+        fileMessage = "FILE:" + SECRET + ":report-2024.csv:1048576:192.168.1.20:53211:9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+        discoveryMessage = "DISCOVERY:192.168.1.20:53211:" + SECRET;
+    }
+
+    @Benchmark
+    public Object parseFileBroadcast() throws Throwable {
+        return PARSE_FILE.invokeExact(fileMessage, SECRET);
+    }
+
+    // Same steps as NodeDiscovery.handleDiscovery before it answers
+    @Benchmark
+    public String parseDiscovery() {
+        String[] parts = discoveryMessage.split(":");
+        return parts.length == 4 && parts[3].equals(SECRET) ? parts[1] + ":" + parts[2] : null;
+    }
+}
@@ -0,0 +1,70 @@
+package p2p.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.*;
+
+// FileScanner.scanForFiles on a synthetic tree (10 files per folder, 10 sub folders per level)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FileScannerBenchmark {
+    private static final MethodHandle NEW_SCANNER = App.constructor("FileScanner", String.class, Set.class)
+            .asType(MethodType.methodType(Object.class, String.class, Set.class));
+    private static final MethodHandle SCAN = App.method("FileScanner", "scanForFiles")
+            .asType(MethodType.methodType(List.class, Object.class));
+
+    @Param({"1000", "10000"})
+    public int fileCount;
+
+    private Path root;
+    private Object scanner;
+
+    @Setup(Level.Trial)
+    public void createTree() throws Throwable {
+        root = Files.createTempDirectory("p2p-scan");
+        createFolder(root, fileCount);
+        Set<String> excluded = new HashSet<>();
+        scanner = NEW_SCANNER.invokeExact(root.toString(), excluded);
+    }
+
+    // Put 10 files in the folder and spread the rest over 10 sub folders
+    private static void createFolder(Path folder, int files) throws IOException {
+        int here = Math.min(10, files);
+        for (int i = 0; i < here; i++) {
+            Files.write(folder.resolve("file" + i + ".txt"), new byte[]{(byte) i});
+        }
+        int remaining = files - here;
+        for (int i = 0; i < 10 && remaining > 0; i++) {
+            int share = (remaining + (9 - i)) / (10 - i);
+            Path sub = Files.createDirectory(folder.resolve("dir" + i));
+            createFolder(sub, share);
+            remaining -= share;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public List<?> scanForFiles() throws Throwable {
+        return (List<?>) SCAN.invokeExact(scanner);
+    }
+}
@@ -0,0 +1,82 @@
+package p2p.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Encoding of a chunk into fragments (NodeDiscovery.sendFragments) and their decoding and assembly (ChunkAssembler)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FragmentBenchmark {
+    private static final MethodHandle ENCODE = App.method("NodeDiscovery", "encodeFragment",
+            byte[].class, int.class, int.class, String.class, int.class, int.class, int.class);
+    private static final MethodHandle NEW_ASSEMBLER = App.constructor("ChunkAssembler", String.class, int.class);
+    private static final MethodHandle ADD = App.method("ChunkAssembler", "add", byte[].class, int.class);
+    private static final MethodHandle TAKE = App.method("ChunkAssembler", "take");
+    private static final MethodHandle RELEASE = App.method("BufferPool", "release", ByteBuffer.class);
+
+    // Same values as the application (512 KB chunks, 8 KB datagrams minus the header)
+    private static final int CHUNK_SIZE = 512 * 1024;
+    private static final int FRAGMENT_SIZE = 8192 - (64 + 4 * 4);
+    private static final String HASH = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    private byte[] chunk;
+    private byte[][] packets;
+    private int[] packetLengths;
+    private int totalFragments;
+    private Object chunkPool; // BufferPool.CHUNKS
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        chunk = new byte[CHUNK_SIZE];
+        new Random(42).nextBytes(chunk);
+        totalFragments = (CHUNK_SIZE + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE;
+        packets = new byte[totalFragments][];
+        packetLengths = new int[totalFragments];
+        for (int i = 0; i < totalFragments; i++) {
+            // Received packets live in buffers larger than the datagram, as in FileDownloader.requestAndReceive
+            byte[] encoded = encode(i);
+            packets[i] = new byte[8192 + 20];
+            packetLengths[i] = encoded.length;
+            System.arraycopy(encoded, 0, packets[i], 0, encoded.length);
+        }
+        Field pool = App.type("BufferPool").getDeclaredField("CHUNKS");
+        pool.setAccessible(true);
+        chunkPool = pool.get(null);
+    }
+
+    private byte[] encode(int fragmentIndex) throws Throwable {
+        int start = fragmentIndex * FRAGMENT_SIZE;
+        int end = Math.min(start + FRAGMENT_SIZE, CHUNK_SIZE);
+        return (byte[]) ENCODE.invokeExact(chunk, start, end, HASH, 7, fragmentIndex, totalFragments);
+    }
+
+    // One 512 KB chunk encoded into datagram payloads
+    @Benchmark
+    public void encodeChunk(Blackhole blackhole) throws Throwable {
+        for (int i = 0; i < totalFragments; i++) {
+            blackhole.consume(encode(i));
+        }
+    }
+
+    // One 512 KB chunk decoded from datagram payloads and assembled (the pooled buffer is given back as the downloader does)
+    @Benchmark
+    public int decodeAndAssembleChunk() throws Throwable {
+        Object assembler = NEW_ASSEMBLER.invoke(HASH, 7);
+        for (int i = 0; i < totalFragments; i++) {
+            ADD.invoke(assembler, packets[i], packetLengths[i]);
+        }
+        ByteBuffer chunk = (ByteBuffer) TAKE.invoke(assembler);
+        int length = chunk.remaining();
+        RELEASE.invoke(chunkPool, chunk);
+        return length;
+    }
+}
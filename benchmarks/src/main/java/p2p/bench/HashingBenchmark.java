@@ -0,0 +1,43 @@
+package p2p.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// FileMetadata.calculateHash on files of various sizes (served from the page cache)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HashingBenchmark {
+    private static final MethodHandle CALCULATE_HASH = App.method("FileMetadata", "calculateHash", File.class);
+
+    @Param({"4096", "524288", "16777216"})
+    public int fileSize;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        byte[] data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        file = File.createTempFile("p2p-hash", ".bin");
+        Files.write(file.toPath(), data);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Benchmark
+    public String calculateHash() throws Throwable {
+        return (String) CALCULATE_HASH.invokeExact(file);
+    }
+}
@@ -0,0 +1,85 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+// Chunk size chosen from the file size, and the chunk count and lengths derived from it
+class ChunkMathTest {
+    private static final int KB = 1024;
+    private static final int MB = 1024 * 1024;
+
+    // Files up to 64 chunks of 64 KB get the smallest chunks, larger ones the next power of two, up to 4 MB
+    @Test
+    void chunkSizeForBoundaries() {
+        assertEquals(64 * KB, FileMetadata.chunkSizeFor(0));
+        assertEquals(64 * KB, FileMetadata.chunkSizeFor(1));
+        assertEquals(64 * KB, FileMetadata.chunkSizeFor(64L * 64 * KB));
+        assertEquals(128 * KB, FileMetadata.chunkSizeFor(64L * 64 * KB + 1));
+        assertEquals(2 * MB, FileMetadata.chunkSizeFor(64L * 2 * MB));
+        assertEquals(4 * MB, FileMetadata.chunkSizeFor(64L * 2 * MB + 1));
+        assertEquals(4 * MB, FileMetadata.chunkSizeFor(64L * 4 * MB));
+        assertEquals(4 * MB, FileMetadata.chunkSizeFor(50L * 1024 * MB));
+    }
+
+    // Every chosen size is one a node may ask for
+    @Test
+    void chunkSizeForIsAlwaysValid() {
+        for (long size = 1; size < 1L << 40; size = size * 3 + 1) {
+            assertTrue(FileMetadata.isValidChunkSize(FileMetadata.chunkSizeFor(size)), "size " + size);
+        }
+    }
+
+    @Test
+    void validChunkSizes() {
+        assertTrue(FileMetadata.isValidChunkSize(64 * KB));
+        assertTrue(FileMetadata.isValidChunkSize(FileMetadata.LEGACY_CHUNK_SIZE));
+        assertTrue(FileMetadata.isValidChunkSize(4 * MB));
+        assertFalse(FileMetadata.isValidChunkSize(32 * KB));
+        assertFalse(FileMetadata.isValidChunkSize(96 * KB));
+        assertFalse(FileMetadata.isValidChunkSize(8 * MB));
+        assertFalse(FileMetadata.isValidChunkSize(-64 * KB));
+    }
+
+    @Test
+    void chunkCount() {
+        assertEquals(0, FileMetadata.chunkCount(0, 64 * KB));
+        assertEquals(1, FileMetadata.chunkCount(1, 64 * KB));
+        assertEquals(1, FileMetadata.chunkCount(64 * KB, 64 * KB));
+        assertEquals(2, FileMetadata.chunkCount(64 * KB + 1, 64 * KB));
+        assertEquals(12800, FileMetadata.chunkCount(50L * 1024 * MB, 4 * MB));
+    }
+
+    // Full chunks, then a shorter last chunk, then nothing past the end of the file
+    @Test
+    void chunkLengthOfLastPartialChunk() {
+        long fileSize = 3L * 64 * KB + 100;
+        assertEquals(64 * KB, FileMetadata.chunkLength(fileSize, 64 * KB, 0));
+        assertEquals(64 * KB, FileMetadata.chunkLength(fileSize, 64 * KB, 2));
+        assertEquals(100, FileMetadata.chunkLength(fileSize, 64 * KB, 3));
+        assertEquals(0, FileMetadata.chunkLength(fileSize, 64 * KB, 4));
+        assertEquals(4 * MB, FileMetadata.chunkLength(50L * 1024 * MB, 4 * MB, 12799));
+    }
+
+    // The chunks of a file add up to its size, whatever the chunk size
+    @Test
+    void chunkLengthsAddUpToTheFileSize() {
+        long fileSize = 5L * MB + 12345;
+        for (int chunkSize = 64 * KB; chunkSize <= 4 * MB; chunkSize *= 2) {
+            long total = 0;
+            int chunks = FileMetadata.chunkCount(fileSize, chunkSize);
+            for (int i = 0; i < chunks; i++) {
+                int length = FileMetadata.chunkLength(fileSize, chunkSize, i);
+                assertTrue(length > 0 && length <= chunkSize);
+                total += length;
+            }
+            assertEquals(fileSize, total, "chunk size " + chunkSize);
+        }
+    }
+
+    @Test
+    void zeroLengthFile() {
+        assertEquals(0, FileMetadata.chunkCount(0, FileMetadata.chunkSizeFor(0)));
+        assertEquals(0, FileMetadata.chunkLength(0, FileMetadata.chunkSizeFor(0), 0));
+    }
+}
@@ -0,0 +1,174 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// A seed and a leecher on a simulated network: the chunk size advertised in the FILE: broadcast, and what the seed
+// answers when a REQUEST_CHUNK asks for another chunk size (cs=) than the advertised one
+class ChunkSizeNegotiationTest {
+    private static final String SEED_IP = "10.0.0.1";
+    private static final long FILE_SIZE = 5L * 1024 * 1024 + 12345; // 128 KB chunks, the last one partial
+
+    @TempDir
+    static Path root;
+
+    private static SimulatedNetwork network;
+    private static NodeDiscovery seed;
+    private static NodeDiscovery leecher;
+    private static Node seedNode;
+    private static byte[] content;
+    private static String fileHash;
+
+    @BeforeAll
+    static void startNodes() throws Exception {
+        network = new SimulatedNetwork();
+        Path shared = Files.createDirectory(root.resolve("seed"));
+        content = new byte[(int) FILE_SIZE];
+        new Random(42).nextBytes(content);
+        Files.write(shared.resolve("payload.bin"), content);
+        fileHash = FileMetadata.calculateHash(shared.resolve("payload.bin").toFile());
+
+        seedNode = new Node(SEED_IP, 0, "test", shared.toString());
+        seed = start(seedNode, shared);
+        leecher = start(new Node("10.0.0.2", 0, "test", Files.createDirectory(root.resolve("leecher")).toString()),
+                root.resolve("leecher"));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (leecher.getFileMetadata(fileHash) == null && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+    private static NodeDiscovery start(Node node, Path folder) throws IOException {
+        NodeDiscovery discovery = new NodeDiscovery(node, 0, NodeDiscovery.BROADCAST_PORT, network.host(node.getIpAddress()));
+        List<File> files = new FileScanner(folder.toString(), null).scanForFiles();
+        discovery.scheduleSendDiscoveryPackets(1, TimeUnit.SECONDS);
+        discovery.scheduleFileBroadcast(files, 1, TimeUnit.SECONDS);
+        discovery.listenPackets();
+        return discovery;
+    }
+
+    @AfterAll
+    static void stopNodes() {
+        if (seed != null) {
+            seed.stopDiscovery();
+        }
+        if (leecher != null) {
+            leecher.stopDiscovery();
+        }
+    }
+
+    // The broadcast carries the chunk size chosen from the file size
+    @Test
+    void broadcastAdvertisesTheChunkSizeOfTheFile() {
+        FileMetadata metadata = leecher.getFileMetadata(fileHash);
+        assertNotNull(metadata, "the leecher did not learn about the file");
+        assertEquals(FileMetadata.chunkSizeFor(FILE_SIZE), metadata.getChunkSize());
+        assertEquals(128 * 1024, metadata.getChunkSize());
+    }
+
+    // A requester that asks for the advertised size gets the chunks at the same offsets, the last one partial
+    @Test
+    void advertisedChunkSize() throws Exception {
+        int chunkSize = FileMetadata.chunkSizeFor(FILE_SIZE);
+        int last = FileMetadata.chunkCount(FILE_SIZE, chunkSize) - 1;
+        assertChunk(0, chunkSize, request(0, "cs=" + chunkSize));
+        assertChunk(last, chunkSize, request(last, "cs=" + chunkSize));
+        assertEquals(12345, request(last, "cs=" + chunkSize).length);
+    }
+
+    // Chunks are cut at the size the requester asks for, even if it differs from the advertised one
+    @Test
+    void otherValidChunkSize() throws Exception {
+        assertChunk(3, 64 * 1024, request(3, "cs=" + 64 * 1024));
+        assertChunk(1, 1024 * 1024, request(1, "cs=" + 1024 * 1024));
+        assertChunk(1, 4 * 1024 * 1024, request(1, "cs=" + 4 * 1024 * 1024));
+    }
+
+    // An invalid size, or none (older requesters), gets the 512 KB chunks of older nodes
+    @Test
+    void invalidOrMissingChunkSizeFallsBackToLegacy() throws Exception {
+        assertChunk(2, FileMetadata.LEGACY_CHUNK_SIZE, request(2, "cs=100000"));
+        assertChunk(2, FileMetadata.LEGACY_CHUNK_SIZE, request(2, "cs=abc"));
+        assertChunk(2, FileMetadata.LEGACY_CHUNK_SIZE, request(2, null));
+    }
+
+    // Chunks outside the file in the requested size are not answered, and the seed keeps serving
+    @Test
+    void chunkOutsideTheFile() throws Exception {
+        int chunks = FileMetadata.chunkCount(FILE_SIZE, 64 * 1024);
+        assertNull(request(chunks, "cs=" + 64 * 1024));
+        assertNull(request(-1, "cs=" + 64 * 1024));
+        assertChunk(chunks - 1, 64 * 1024, request(chunks - 1, "cs=" + 64 * 1024));
+    }
+
+    // A download in another chunk size than the advertised one still gets the whole file
+    @Test
+    void downloadInAnotherChunkSize() throws Exception {
+        for (int chunkSize : new int[] {64 * 1024, FileMetadata.LEGACY_CHUNK_SIZE}) {
+            Path target = Files.createDirectory(root.resolve("download-" + chunkSize));
+            FileDownloader downloader = new FileDownloader("payload.bin", fileHash, FILE_SIZE, target.toString(),
+                    new ArrayList<>(leecher.getPeersWithFile(fileHash)), (fileName, progress) -> { }, leecher.getTransportFactory());
+            downloader.setChunkSize(chunkSize);
+            downloader.run();
+            assertTrue(downloader.isComplete(), "chunk size " + chunkSize);
+            assertEquals(fileHash, FileMetadata.calculateHash(target.resolve("payload.bin").toFile()));
+        }
+    }
+
+    // Send a REQUEST_CHUNK to the seed and assemble the answer, null if there is none
+    private static byte[] request(int chunkIndex, String options) throws IOException {
+        Transport socket = network.host("10.0.0.9").open(0);
+        try {
+            socket.setSoTimeout(1000);
+            String request = "REQUEST_CHUNK:" + fileHash + ":" + chunkIndex + (options != null ? ":" + options : "");
+            byte[] data = request.getBytes();
+            socket.send(new DatagramPacket(data, data.length, InetAddress.getByName(SEED_IP), seedNode.getPort()));
+            ChunkAssembler assembler = new ChunkAssembler(fileHash, chunkIndex);
+            byte[] buffer = new byte[65536];
+            while (!assembler.isComplete()) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    assembler.release();
+                    return null;
+                }
+                assembler.add(packet.getData(), packet.getLength());
+            }
+            ByteBuffer chunk = assembler.take();
+            byte[] bytes = new byte[chunk.remaining()];
+            chunk.get(bytes);
+            BufferPool.CHUNKS.release(chunk);
+            return bytes;
+        } finally {
+            socket.close();
+        }
+    }
+
+    // The chunk is the part of the file at chunkIndex * chunkSize
+    private static void assertChunk(int chunkIndex, int chunkSize, byte[] chunk) {
+        assertNotNull(chunk, "no answer for chunk " + chunkIndex);
+        int start = (int) ((long) chunkIndex * chunkSize);
+        int length = FileMetadata.chunkLength(FILE_SIZE, chunkSize, chunkIndex);
+        assertArrayEquals(Arrays.copyOfRange(content, start, start + length), chunk, "chunk " + chunkIndex + " of " + chunkSize);
+    }
+}